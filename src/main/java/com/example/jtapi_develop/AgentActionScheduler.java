@@ -0,0 +1,147 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Agent 延遲動作排程器 - 所有延遲執行的 Agent 動作（例如 Manual-in 通話後轉 AUX）共用一條排程執行緒
+ * 同一分機同一動作只保留一筆等待中的排程，可在執行前取消
+ */
+@Service
+public class AgentActionScheduler {
+
+    @Autowired
+    private ExecutorService jtapiExecutor;
+
+    /**
+     * 一筆等待執行的動作
+     */
+    private static class ScheduledAction {
+        final String extension;
+        final String action;
+        final long dueTime;
+        volatile ScheduledFuture<?> future;
+
+        ScheduledAction(String extension, String action, long dueTime) {
+            this.extension = extension;
+            this.action = action;
+            this.dueTime = dueTime;
+        }
+    }
+
+    // 分機:動作 -> 等待中的排程
+    private final ConcurrentHashMap<String, ScheduledAction> pendingActions = new ConcurrentHashMap<>();
+
+    private final AtomicLong scheduledCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    // 只負責計時，到期後的動作交給 jtapiExecutor 執行，不會卡住排程
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "agent-action-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 排程延遲動作；同一分機同一動作已有等待中的排程時直接合併，回傳 false
+     */
+    public boolean schedule(String extension, String action, long delayMs, Runnable task) {
+        String key = key(extension, action);
+        ScheduledAction scheduled = new ScheduledAction(extension, action, System.currentTimeMillis() + delayMs);
+
+        ScheduledAction existing = pendingActions.putIfAbsent(key, scheduled);
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            System.out.println("[AGENT_SCHEDULER] 分機 " + extension + " 已有等待中的 " + action + " 動作，合併處理");
+            return false;
+        }
+
+        scheduledCount.incrementAndGet();
+        scheduled.future = timer.schedule(() -> {
+            // 先移除再執行，執行期間可以再排下一筆
+            if (!pendingActions.remove(key, scheduled)) return;
+            jtapiExecutor.execute(() -> {
+                try {
+                    task.run();
+                    executedCount.incrementAndGet();
+                } catch (Exception e) {
+                    failedCount.incrementAndGet();
+                    System.err.println("[AGENT_SCHEDULER] 分機 " + extension + " 的 " + action + " 動作失敗: " + e.getMessage());
+                }
+            });
+        }, delayMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * 取消分機的指定動作，回傳是否有取消到
+     */
+    public boolean cancel(String extension, String action) {
+        ScheduledAction scheduled = pendingActions.remove(key(extension, action));
+        if (scheduled == null) return false;
+
+        if (scheduled.future != null) {
+            scheduled.future.cancel(false);
+        }
+        cancelledCount.incrementAndGet();
+        System.out.println("[AGENT_SCHEDULER] 已取消分機 " + extension + " 等待中的 " + action + " 動作");
+        return true;
+    }
+
+    /**
+     * 取消分機所有等待中的動作（例如 Agent 登出）
+     */
+    public int cancelAll(String extension) {
+        int cancelled = 0;
+        for (ScheduledAction scheduled : pendingActions.values()) {
+            if (scheduled.extension.equals(extension) && cancel(extension, scheduled.action)) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * 目前等待中的動作數
+     */
+    public int getQueueDepth() {
+        return pendingActions.size();
+    }
+
+    /**
+     * 查看排程狀態與統計
+     */
+    public String getSchedulerStatus() {
+        StringBuilder status = new StringBuilder("=== Agent 延遲動作排程 ===\n");
+        status.append("等待中: ").append(pendingActions.size()).append("\n");
+        status.append("已排程: ").append(scheduledCount.get()).append("\n");
+        status.append("已合併: ").append(coalescedCount.get()).append("\n");
+        status.append("已取消: ").append(cancelledCount.get()).append("\n");
+        status.append("已執行: ").append(executedCount.get()).append("\n");
+        status.append("執行失敗: ").append(failedCount.get()).append("\n");
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ScheduledAction> entry : pendingActions.entrySet()) {
+            ScheduledAction scheduled = entry.getValue();
+            status.append("分機 ").append(scheduled.extension)
+                  .append(" - ").append(scheduled.action)
+                  .append(" - ").append(Math.max(0, scheduled.dueTime - now)).append(" ms 後執行\n");
+        }
+        return status.toString();
+    }
+
+    private String key(String extension, String action) {
+        return extension + ":" + action;
+    }
+}
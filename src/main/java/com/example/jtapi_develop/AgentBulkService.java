@@ -0,0 +1,197 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Agent 批次登入/登出服務 - 交接班時一次處理整批 Agent
+ * 以固定並行數執行，每完成一位 Agent 就以 NDJSON 推送一行結果
+ */
+@Service
+public class AgentBulkService {
+
+    @Autowired
+    private AgentService agentService;
+
+    @Autowired
+    private ExecutorService jtapiExecutor;
+
+    private static final int MAX_CONCURRENCY = 100;
+
+    // 整批最長處理時間，超過後結束串流
+    private static final long STREAM_TIMEOUT_MS = 10 * 60 * 1000L;
+
+    /**
+     * 批次請求中的一位 Agent
+     */
+    public static class BulkAgentRequest {
+        public String extension;
+        public String agentId;
+        public String mode;       // 登入後的工作模式：MANUAL_IN、AUTO_IN、AUX，可省略
+    }
+
+    /**
+     * 單一 Agent 的處理結果
+     */
+    public static class BulkAgentResult {
+        public String type = "result";
+        public String extension;
+        public String agentId;
+        public String action;
+        public boolean success;
+        public long latencyMs;
+        public String message;
+
+        public BulkAgentResult(BulkAgentRequest request, String action, boolean success, long latencyMs, String message) {
+            this.extension = request.extension;
+            this.agentId = request.agentId;
+            this.action = action;
+            this.success = success;
+            this.latencyMs = latencyMs;
+            this.message = message;
+        }
+    }
+
+    /**
+     * 整批完成後的統計（串流的最後一行）
+     */
+    public static class BulkSummary {
+        public String type = "summary";
+        public String action;
+        public int total;
+        public int successCount;
+        public int failedCount;
+        public long elapsedMs;
+    }
+
+    /**
+     * 單一 Agent 的處理結果（成功與否以處理後的 Agent 狀態判斷，不看訊息文字）
+     */
+    private static class Outcome {
+        final boolean success;
+        final String message;
+
+        Outcome(boolean success, String message) {
+            this.success = success;
+            this.message = message;
+        }
+    }
+
+    /**
+     * 批次登入，登入成功後依 mode 設定工作模式
+     */
+    public ResponseBodyEmitter streamBulkLogin(List<BulkAgentRequest> requests, int concurrency) {
+        return stream(requests, "login", concurrency);
+    }
+
+    /**
+     * 批次登出
+     */
+    public ResponseBodyEmitter streamBulkLogout(List<BulkAgentRequest> requests, int concurrency) {
+        return stream(requests, "logout", concurrency);
+    }
+
+    private ResponseBodyEmitter stream(List<BulkAgentRequest> requests, String action, int concurrency) {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(STREAM_TIMEOUT_MS);
+        long batchStart = System.currentTimeMillis();
+        int workers = Math.max(1, Math.min(concurrency, MAX_CONCURRENCY));
+        AtomicInteger successCount = new AtomicInteger();
+
+        System.out.println("[BULK_AGENT] 開始批次 " + action + " " + requests.size() + " 位 Agent，並行數: " + workers);
+
+        BoundedBatchRunner.run(requests, workers, request -> {
+            long start = System.nanoTime();
+            CompletableFuture<Outcome> outcome = "login".equals(action) ? login(request) : logout(request);
+            return outcome.handle((done, error) -> {
+                long latencyMs = (System.nanoTime() - start) / 1_000_000;
+                boolean success = error == null && done.success;
+                String text = error != null ? "處理失敗: " + error.getMessage() : firstLine(done.message);
+                BulkAgentResult result = new BulkAgentResult(request, action, success, latencyMs, text);
+                if (success) successCount.incrementAndGet();
+                send(emitter, result);
+                return result;
+            });
+        }).whenComplete((results, error) -> {
+            BulkSummary summary = new BulkSummary();
+            summary.action = action;
+            summary.total = requests.size();
+            summary.successCount = successCount.get();
+            summary.failedCount = requests.size() - successCount.get();
+            summary.elapsedMs = System.currentTimeMillis() - batchStart;
+            send(emitter, summary);
+            emitter.complete();
+
+            System.out.println("[BULK_AGENT] 批次 " + action + " 完成，成功 " + summary.successCount + "/" + summary.total +
+                             "，耗時 " + summary.elapsedMs + "ms");
+        });
+        return emitter;
+    }
+
+    private CompletableFuture<Outcome> login(BulkAgentRequest request) {
+        return CompletableFuture.supplyAsync(() -> agentService.agentLogin(request.extension, request.agentId), jtapiExecutor)
+                .thenCompose(loginMessage -> {
+                    // API 與功能代碼備用方式都算成功，只要本地記錄顯示這位 Agent 已登入
+                    if (!isLoggedIn(request)) {
+                        return CompletableFuture.completedFuture(new Outcome(false, loginMessage));
+                    }
+                    if (request.mode == null || request.mode.isBlank()) {
+                        return CompletableFuture.completedFuture(new Outcome(true, loginMessage));
+                    }
+                    String mode = request.mode.toUpperCase();
+                    CompletableFuture<String> modeResult;
+                    switch (mode) {
+                        case "MANUAL_IN": modeResult = agentService.setAgentManualInAsync(request.extension); break;
+                        case "AUTO_IN": modeResult = agentService.setAgentAutoInAsync(request.extension); break;
+                        case "AUX": modeResult = agentService.setAgentAuxAsync(request.extension); break;
+                        default:
+                            return CompletableFuture.completedFuture(new Outcome(false, "❌ 已登入，但工作模式無效: " + request.mode));
+                    }
+                    return modeResult.thenApply(modeMessage -> new Outcome(isInMode(request, mode), modeMessage));
+                });
+    }
+
+    private CompletableFuture<Outcome> logout(BulkAgentRequest request) {
+        return CompletableFuture.supplyAsync(() -> {
+            String message = agentService.agentLogout(request.extension);
+            AgentService.AgentStatus agentStatus = agentService.getLocalAgentStatus(request.extension);
+            return new Outcome(agentStatus == null || !agentStatus.isLoggedIn, message);
+        }, jtapiExecutor);
+    }
+
+    private boolean isLoggedIn(BulkAgentRequest request) {
+        AgentService.AgentStatus agentStatus = agentService.getLocalAgentStatus(request.extension);
+        return agentStatus != null && agentStatus.isLoggedIn &&
+               (request.agentId == null || request.agentId.equals(agentStatus.agentId));
+    }
+
+    private boolean isInMode(BulkAgentRequest request, String mode) {
+        AgentService.AgentStatus agentStatus = agentService.getLocalAgentStatus(request.extension);
+        return isLoggedIn(request) && mode.equals(agentStatus.callHandlingMode);
+    }
+
+    /**
+     * 寫出一行 NDJSON；多個工作同時完成時要依序寫入
+     */
+    private void send(ResponseBodyEmitter emitter, Object data) {
+        try {
+            synchronized (emitter) {
+                emitter.send(data, MediaType.APPLICATION_JSON);
+                emitter.send("\n", MediaType.TEXT_PLAIN);
+            }
+        } catch (Exception e) {
+            // 用戶端已中斷，批次仍繼續完成
+            System.err.println("[BULK_AGENT] 推送結果失敗: " + e.getMessage());
+        }
+    }
+
+    private String firstLine(String message) {
+        int newline = message.indexOf('\n');
+        return newline >= 0 ? message.substring(0, newline) : message;
+    }
+}
@@ -1,7 +1,11 @@
 package com.example.jtapi_develop;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api/agent")
@@ -10,6 +14,15 @@ public class AgentController {
     @Autowired
     private AgentService agentService;
     
+    @Autowired
+    private AgentBulkService agentBulkService;
+    
+    @Autowired
+    private AgentRoutingService agentRoutingService;
+    
+    @Autowired
+    private AgentStateJournal agentStateJournal;
+    
     /**
      * Agent 登入 (#94 + AgentID)
      * GET /api/agent/login?extension=1420&agentId=12345
@@ -29,6 +42,28 @@ public class AgentController {
         return agentService.agentLogout(extension);
     }
     
+    /**
+     * 批次 Agent 登入（交接班），每完成一位回傳一行 JSON
+     * POST /api/agent/bulk-login?concurrency=20
+     * Body: [{"extension":"1420","agentId":"12345","mode":"MANUAL_IN"}, ...]
+     */
+    @PostMapping(value = "/bulk-login", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseBodyEmitter bulkAgentLogin(@RequestBody List<AgentBulkService.BulkAgentRequest> requests,
+                                              @RequestParam(defaultValue = "20") int concurrency) {
+        return agentBulkService.streamBulkLogin(requests, concurrency);
+    }
+    
+    /**
+     * 批次 Agent 登出，每完成一位回傳一行 JSON
+     * POST /api/agent/bulk-logout?concurrency=20
+     * Body: [{"extension":"1420"}, ...]
+     */
+    @PostMapping(value = "/bulk-logout", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseBodyEmitter bulkAgentLogout(@RequestBody List<AgentBulkService.BulkAgentRequest> requests,
+                                               @RequestParam(defaultValue = "20") int concurrency) {
+        return agentBulkService.streamBulkLogout(requests, concurrency);
+    }
+    
     /**
      * 查看 Agent 狀態
      * GET /api/agent/status?extension=1420
@@ -81,8 +116,8 @@ public class AgentController {
      * GET /api/agent/manual-in?extension=1420
      */
     @GetMapping("/manual-in")
-    public String setAgentManualIn(@RequestParam String extension) {
-        return agentService.setAgentManualInSimple(extension);
+    public CompletableFuture<String> setAgentManualIn(@RequestParam String extension) {
+        return agentService.setAgentManualInAsync(extension);
     }
     
     /**
@@ -90,8 +125,8 @@ public class AgentController {
      * GET /api/agent/auto-in?extension=1420
      */
     @GetMapping("/auto-in")
-    public String setAgentAutoIn(@RequestParam String extension) {
-        return agentService.setAgentAutoInSimple(extension);
+    public CompletableFuture<String> setAgentAutoIn(@RequestParam String extension) {
+        return agentService.setAgentAutoInAsync(extension);
     }
     
     /**
@@ -99,8 +134,8 @@ public class AgentController {
      * GET /api/agent/aux?extension=1420
      */
     @GetMapping("/aux")
-    public String setAgentAux(@RequestParam String extension) {
-        return agentService.setAgentAuxSimple(extension);
+    public CompletableFuture<String> setAgentAux(@RequestParam String extension) {
+        return agentService.setAgentAuxAsync(extension);
     }
     
     /**
@@ -121,6 +156,64 @@ public class AgentController {
         return agentService.getRecentLogs();
     }
     
+    /**
+     * 查看 Agent 統計（各狀態時間、處理通話數、平均處理時間、佔用率）
+     * GET /api/agent/stats?extension=1420（不帶 extension 時列出所有 Agent）
+     */
+    @GetMapping("/stats")
+    public String getAgentStats(@RequestParam(required = false) String extension) {
+        return agentService.getAgentStats(extension);
+    }
+    
+    /**
+     * 查看派話佇列（依閒置時間與技能等級排序的可用 Agent）
+     * GET /api/agent/routing
+     */
+    @GetMapping("/routing")
+    public String getRoutingStatus() {
+        return agentRoutingService.getRoutingStatus();
+    }
+    
+    /**
+     * 設定 Agent 技能等級（等級高的優先派話，同等級時閒置最久的優先）
+     * GET /api/agent/skill?extension=1420&level=3
+     */
+    @GetMapping("/skill")
+    public String setSkillLevel(@RequestParam String extension, @RequestParam int level) {
+        return agentRoutingService.setSkillLevel(extension, level);
+    }
+    
+    /**
+     * 查詢 Agent 狀態日誌（時間為 epoch 毫秒，預設最近 24 小時）
+     * GET /api/agent/journal?extension=1420&from=1700000000000&to=1700086400000
+     */
+    @GetMapping("/journal")
+    public String getAgentJournal(@RequestParam String extension,
+                                  @RequestParam(required = false) Long from,
+                                  @RequestParam(required = false) Long to) {
+        long toMillis = to != null ? to : System.currentTimeMillis();
+        long fromMillis = from != null ? from : toMillis - 24 * 60 * 60 * 1000L;
+        return agentStateJournal.describe(extension, fromMillis, toMillis);
+    }
+    
+    /**
+     * 查看 Agent 狀態日誌的分段與寫入統計
+     * GET /api/agent/journal-status
+     */
+    @GetMapping("/journal-status")
+    public String getJournalStatus() {
+        return agentStateJournal.getJournalStatus();
+    }
+    
+    /**
+     * 查看延遲動作排程（等待中的 Manual-in 轉 AUX 等）
+     * GET /api/agent/scheduled-actions
+     */
+    @GetMapping("/scheduled-actions")
+    public String getScheduledActions() {
+        return agentService.getScheduledActionStatus();
+    }
+    
     /**
      * 測試所有可能的 Agent 狀態
      * GET /api/agent/test-states?extension=1420
@@ -0,0 +1,287 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent 派話服務 - 維護可接聽的 Agent 佇列，技能等級高的優先，同等級時閒置最久的優先
+ * 佇列由 AgentService 的狀態變化即時更新，挑選 Agent 為 O(log n)，只讀本地記錄不查詢交換機
+ * 派出的 Agent 先保留一段時間，期間轉為忙碌即視為已接聽，逾時仍未接聽就放回佇列
+ */
+@Service
+public class AgentRoutingService {
+
+    @Autowired
+    private AgentService agentService;
+
+    // 向交換機確認還原記錄使用的執行器，見 ExecutorConfig
+    @Autowired
+    private ExecutorService jtapiExecutor;
+
+    /**
+     * 佇列中的一位可用 Agent（不可變，狀態變化時整筆替換）
+     */
+    public static class AvailableAgent {
+        public final String extension;
+        public final String agentId;
+        public final long idleSince;
+        public final int skillLevel;
+
+        AvailableAgent(String extension, String agentId, long idleSince, int skillLevel) {
+            this.extension = extension;
+            this.agentId = agentId;
+            this.idleSince = idleSince;
+            this.skillLevel = skillLevel;
+        }
+
+        public long getIdleSeconds() {
+            return (System.currentTimeMillis() - idleSince) / 1000;
+        }
+    }
+
+    /**
+     * 已派出、等待接聽的 Agent
+     */
+    private static class Reservation implements Delayed {
+        final AvailableAgent agent;
+        final long expiresAt;
+
+        Reservation(AvailableAgent agent, long expiresAt) {
+            this.agent = agent;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiresAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(expiresAt, ((Reservation) other).expiresAt);
+        }
+    }
+
+    /**
+     * 依本地記錄判斷候選 Agent 能否派話
+     */
+    private enum Eligibility {
+        ROUTABLE,       // 已確認待機中
+        UNCONFIRMED,    // 由日誌還原、尚未向交換機確認，留在佇列
+        UNAVAILABLE     // 已不是待機狀態，等下一次狀態變化再排入
+    }
+
+    // 技能等級高的排前面；同等級時閒置最久的優先
+    static final Comparator<AvailableAgent> ROUTING_ORDER = Comparator
+            .comparing((AvailableAgent agent) -> agent.skillLevel, Comparator.reverseOrder())
+            .thenComparingLong(agent -> agent.idleSince)
+            .thenComparing(agent -> agent.extension);
+
+    private final ConcurrentSkipListSet<AvailableAgent> availableAgents = new ConcurrentSkipListSet<>(ROUTING_ORDER);
+
+    // 分機 -> 佇列中的項目，用來 O(log n) 移除
+    private final ConcurrentHashMap<String, AvailableAgent> queuedByExtension = new ConcurrentHashMap<>();
+
+    // 分機 -> 技能等級（未設定為 0）
+    private final ConcurrentHashMap<String, Integer> skillLevels = new ConcurrentHashMap<>();
+
+    // 分機 -> 派出後等待接聽的預約
+    private final ConcurrentHashMap<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+    // 依到期時間排序的預約，只取出已到期的；已接聽的預約在到期時略過
+    private final DelayQueue<Reservation> reservationTimeouts = new DelayQueue<>();
+
+    // 正在向交換機確認的分機，避免每次挑選都重複送出查詢
+    private final Set<String> confirming = ConcurrentHashMap.newKeySet();
+
+    // 派出後等待 Agent 接聽（轉為忙碌）的時間，逾時放回佇列
+    @Value("${agent.routing.reservation-seconds:30}")
+    private long reservationSeconds;
+
+    @PostConstruct
+    public void init() {
+        agentService.addStatusChangeListener(this::onAgentStatusChanged);
+        // 註冊前已存在的記錄（例如啟動時由日誌還原）也要排入佇列
+        for (String extension : agentService.getTrackedExtensions()) {
+            AgentService.AgentStatus agentStatus = agentService.getLocalAgentStatus(extension);
+            if (agentStatus != null) {
+                onAgentStatusChanged(agentStatus);
+            }
+        }
+    }
+
+    /**
+     * Agent 狀態變化：轉為待機時排入佇列（已派出等待接聽的除外），其他狀態移出佇列並結束預約
+     */
+    private void onAgentStatusChanged(AgentService.AgentStatus agentStatus) {
+        if (agentStatus.isLoggedIn && "AVAILABLE".equals(agentStatus.status)) {
+            if (!reservations.containsKey(agentStatus.extension)) {
+                enqueue(agentStatus.extension, agentStatus.agentId, System.currentTimeMillis());
+            }
+        } else {
+            reservations.remove(agentStatus.extension);
+            remove(agentStatus.extension);
+        }
+    }
+
+    /**
+     * 挑選最適合的 Agent 並從佇列移出（避免同時派給兩通電話）
+     * 挑出的 Agent 保留到轉為忙碌或預約逾時；撥號失敗時呼叫 returnAgent 立即放回
+     */
+    public AvailableAgent pickBestAgent(String excludeExtension) {
+        releaseExpiredReservations();
+        List<AvailableAgent> skipped = new ArrayList<>();
+        try {
+            AvailableAgent candidate;
+            while ((candidate = availableAgents.pollFirst()) != null) {
+                if (!queuedByExtension.remove(candidate.extension, candidate)) {
+                    continue;   // 已被其他狀態變化取代
+                }
+                if (candidate.extension.equals(excludeExtension)) {
+                    skipped.add(candidate);
+                    continue;
+                }
+                // 佇列只在狀態變化時更新，挑選時以本地記錄再確認一次
+                Eligibility eligibility = checkEligibility(candidate.extension);
+                if (eligibility == Eligibility.UNCONFIRMED) {
+                    skipped.add(candidate);
+                    requestConfirmation(candidate.extension);
+                    continue;
+                }
+                if (eligibility == Eligibility.UNAVAILABLE) {
+                    continue;
+                }
+                Reservation reservation = new Reservation(candidate, System.currentTimeMillis() + reservationSeconds * 1000);
+                reservations.put(candidate.extension, reservation);
+                reservationTimeouts.add(reservation);
+                System.out.println("[ROUTING] 派給 Agent " + candidate.agentId + " (分機 " + candidate.extension +
+                                 ")，已閒置 " + candidate.getIdleSeconds() + " 秒");
+                return candidate;
+            }
+            return null;
+        } finally {
+            skipped.forEach(this::returnAgent);
+        }
+    }
+
+    /**
+     * 派話未成功時把 Agent 放回佇列，保留原本的閒置時間
+     */
+    public void returnAgent(AvailableAgent agent) {
+        reservations.remove(agent.extension);
+        if (checkEligibility(agent.extension) == Eligibility.UNAVAILABLE) return;
+        if (queuedByExtension.putIfAbsent(agent.extension, agent) == null) {
+            availableAgents.add(agent);
+        }
+    }
+
+    /**
+     * 預約逾時仍未接聽（沒有轉為忙碌）的 Agent 放回佇列
+     */
+    private void releaseExpiredReservations() {
+        Reservation reservation;
+        while ((reservation = reservationTimeouts.poll()) != null) {
+            if (reservations.remove(reservation.agent.extension, reservation)) {
+                System.out.println("[ROUTING] Agent " + reservation.agent.agentId + " (分機 " + reservation.agent.extension +
+                                 ") 逾時未接聽，放回派話佇列");
+                returnAgent(reservation.agent);
+            }
+        }
+    }
+
+    /**
+     * 設定 Agent 的技能等級，已在佇列中的項目立即更新排序
+     */
+    public String setSkillLevel(String extension, int skillLevel) {
+        skillLevels.put(extension, skillLevel);
+        AvailableAgent queued = queuedByExtension.get(extension);
+        if (queued != null) {
+            remove(extension);
+            enqueue(extension, queued.agentId, queued.idleSince);
+        }
+        return "分機 " + extension + " 技能等級已設定為 " + skillLevel;
+    }
+
+    /**
+     * 查看派話佇列
+     */
+    public String getRoutingStatus() {
+        releaseExpiredReservations();
+        StringBuilder status = new StringBuilder("=== Agent 派話佇列 ===\n");
+        status.append("可用 Agent: ").append(queuedByExtension.size()).append("\n");
+        int rank = 1;
+        for (AvailableAgent agent : availableAgents) {
+            status.append(rank++).append(". Agent ").append(agent.agentId)
+                  .append(" (分機 ").append(agent.extension).append(")")
+                  .append(" - 閒置 ").append(agent.getIdleSeconds()).append(" 秒")
+                  .append(" - 技能等級 ").append(agent.skillLevel).append("\n");
+        }
+        if (!reservations.isEmpty()) {
+            long now = System.currentTimeMillis();
+            status.append("已派出等待接聽: ").append(reservations.size()).append("\n");
+            for (Reservation reservation : reservations.values()) {
+                status.append("- Agent ").append(reservation.agent.agentId)
+                      .append(" (分機 ").append(reservation.agent.extension).append(")")
+                      .append(" - ").append(Math.max(0, (reservation.expiresAt - now) / 1000)).append(" 秒後放回\n");
+            }
+        }
+        return status.toString();
+    }
+
+    /**
+     * 只讀本地記錄，不向交換機查詢
+     */
+    private Eligibility checkEligibility(String extension) {
+        AgentService.AgentStatus agentStatus = agentService.getLocalAgentStatus(extension);
+        if (agentStatus == null || !agentStatus.isLoggedIn || !"AVAILABLE".equals(agentStatus.status)) {
+            return Eligibility.UNAVAILABLE;
+        }
+        return agentStatus.verified ? Eligibility.ROUTABLE : Eligibility.UNCONFIRMED;
+    }
+
+    /**
+     * 在背景向交換機確認還原的記錄；狀態不同時 AgentService 會發出狀態變化，佇列隨之更新
+     */
+    private void requestConfirmation(String extension) {
+        if (!confirming.add(extension)) return;
+        try {
+            jtapiExecutor.execute(() -> {
+                try {
+                    agentService.getAvailability(extension);
+                } finally {
+                    confirming.remove(extension);
+                }
+            });
+        } catch (Exception e) {
+            confirming.remove(extension);
+            System.err.println("[ROUTING] 無法確認分機 " + extension + " 的 Agent 狀態: " + e.getMessage());
+        }
+    }
+
+    private void enqueue(String extension, String agentId, long idleSince) {
+        // 已在佇列中（例如重複收到就緒事件）時保留原本的閒置起點
+        AvailableAgent agent = new AvailableAgent(extension, agentId, idleSince, skillLevels.getOrDefault(extension, 0));
+        if (queuedByExtension.putIfAbsent(extension, agent) == null) {
+            availableAgents.add(agent);
+        }
+    }
+
+    private void remove(String extension) {
+        AvailableAgent queued = queuedByExtension.remove(extension);
+        if (queued != null) {
+            availableAgents.remove(queued);
+        }
+    }
+}
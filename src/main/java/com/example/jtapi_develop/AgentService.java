@@ -1,11 +1,17 @@
 package com.example.jtapi_develop;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
 import javax.telephony.*;
 import javax.telephony.callcontrol.*;
 import javax.telephony.callcenter.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class AgentService {
@@ -13,16 +19,34 @@ public class AgentService {
     @Autowired
     private PhoneCallService phoneCallService;
     
+    @Autowired
+    private ExecutorService jtapiExecutor;
+    
+    @Autowired
+    private AgentActionScheduler agentActionScheduler;
+    
+    // Manual-in 通話結束後延遲轉 AUX 的時間，確保狀態變化完成
+    private static final long MANUAL_IN_AUX_DELAY_MS = 1000;
+    
     /**
      * Agent 狀態類
      */
     public static class AgentStatus {
         public String agentId;
         public String extension;
-        public boolean isLoggedIn;
+        public volatile boolean isLoggedIn;
         public long loginTime;
-        public String status; // "AVAILABLE", "BUSY", "BREAK", "LOGGED_OUT"
+        public volatile String status; // "AVAILABLE", "BUSY", "BREAK", "AUX", "AFTER_CALL", "LOGGED_OUT"
         public String callHandlingMode; // "MANUAL_IN", "AUTO_IN", "NOT_SET"
+        public volatile int avayaState = Agent.UNKNOWN; // 最近一次事件回報的 Avaya 狀態
+        public volatile long stateUpdatedTime;
+        public volatile boolean verified = true;  // 由日誌還原的記錄在交換機確認前為 false
+        
+        // 統計：各狀態累計時間（不含目前狀態已經過的時間）、處理通話數、處理時間
+        private final java.util.Map<String, Long> stateDurations = new java.util.HashMap<>();
+        private long stateSince;
+        private long callsHandled;
+        private long handleTimeMs;
         
         public AgentStatus(String agentId, String extension) {
             this.agentId = agentId;
@@ -30,6 +54,55 @@ public class AgentService {
             this.isLoggedIn = false;
             this.status = "LOGGED_OUT";
             this.callHandlingMode = "NOT_SET";
+            this.stateSince = System.currentTimeMillis();
+        }
+        
+        /**
+         * 切換狀態並把上一個狀態經過的時間累計起來
+         */
+        public synchronized void transitionTo(String newStatus) {
+            long now = System.currentTimeMillis();
+            String previous = status;
+            long elapsed = now - stateSince;
+            
+            stateDurations.merge(previous, elapsed, Long::sum);
+            if ("BUSY".equals(previous) || "AFTER_CALL".equals(previous)) {
+                handleTimeMs += elapsed;
+            }
+            if ("BUSY".equals(newStatus) && !"BUSY".equals(previous)) {
+                callsHandled++;
+            }
+            
+            status = newStatus;
+            stateSince = now;
+        }
+        
+        /**
+         * 取得統計快照，目前狀態已經過的時間一併算入
+         */
+        public synchronized AgentStats getStats() {
+            long now = System.currentTimeMillis();
+            long elapsed = now - stateSince;
+            
+            AgentStats stats = new AgentStats();
+            stats.agentId = agentId;
+            stats.extension = extension;
+            stats.status = status;
+            stats.currentStateMs = elapsed;
+            stats.stateDurationsMs = new java.util.LinkedHashMap<>();
+            for (String state : STATS_STATES) {
+                long total = stateDurations.getOrDefault(state, 0L) + (state.equals(status) ? elapsed : 0);
+                stats.stateDurationsMs.put(state, total);
+            }
+            stats.callsHandled = callsHandled;
+            stats.handleTimeMs = handleTimeMs + ("BUSY".equals(status) || "AFTER_CALL".equals(status) ? elapsed : 0);
+            stats.averageHandleTimeMs = callsHandled > 0 ? stats.handleTimeMs / callsHandled : 0;
+            
+            // 佔用率 = 處理通話時間 / (待機 + 處理通話時間)，AUX 與休息不計入
+            long available = stats.stateDurationsMs.get("AVAILABLE");
+            long staffed = available + stats.handleTimeMs;
+            stats.occupancy = staffed > 0 ? (double) stats.handleTimeMs / staffed : 0;
+            return stats;
         }
         
         public String getStatusDisplay() {
@@ -40,6 +113,8 @@ public class AgentService {
                 case "AVAILABLE": baseStatus = "待機中"; break;
                 case "BUSY": baseStatus = "忙碌中"; break;
                 case "BREAK": baseStatus = "休息中"; break;
+                case "AUX": baseStatus = "未就緒 (AUX)"; break;
+                case "AFTER_CALL": baseStatus = "後處理中"; break;
                 default: baseStatus = "未知狀態"; break;
             }
             
@@ -66,15 +141,259 @@ public class AgentService {
         }
     }
     
+    // 統計輸出的狀態
+    private static final String[] STATS_STATES = {"AVAILABLE", "BUSY", "AFTER_CALL", "AUX", "BREAK"};
+    
+    /**
+     * Agent 統計快照（本次登入期間）
+     */
+    public static class AgentStats {
+        public String agentId;
+        public String extension;
+        public String status;
+        public long currentStateMs;
+        public java.util.Map<String, Long> stateDurationsMs;
+        public long callsHandled;
+        public long handleTimeMs;
+        public long averageHandleTimeMs;
+        public double occupancy;
+    }
+    
+    /**
+     * Agent 接聽可用性 - 撥號前檢查用，不需組字串再比對
+     */
+    public enum AgentAvailability {
+        NO_AGENT(true),      // 沒有 Agent 登入，視為普通分機
+        AVAILABLE(true),     // 待機中
+        BUSY(false),         // 忙碌中
+        ON_BREAK(false),     // 休息中或 AUX（交換機上的 NOT_READY）
+        OTHER(true);         // 其他狀態（例如後處理）預設允許
+
+        public final boolean acceptsCalls;
+
+        AgentAvailability(boolean acceptsCalls) {
+            this.acceptsCalls = acceptsCalls;
+        }
+    }
+
     // 存儲 Agent 狀態
     private final ConcurrentHashMap<String, AgentStatus> agentStatuses = new ConcurrentHashMap<>();
     
+    // Agent 狀態變化時要通知的對象（例如派話用的可用 Agent 佇列）
+    private final java.util.List<java.util.function.Consumer<AgentStatus>> statusChangeListeners = new java.util.concurrent.CopyOnWriteArrayList<>();
+    
+    /**
+     * 註冊 Agent 狀態變化的通知
+     */
+    public void addStatusChangeListener(java.util.function.Consumer<AgentStatus> listener) {
+        statusChangeListeners.add(listener);
+    }
+    
+    /**
+     * 切換 Agent 狀態並通知監聽者
+     */
+    private void transition(AgentStatus agentStatus, String newStatus) {
+        agentStatus.transitionTo(newStatus);
+        for (java.util.function.Consumer<AgentStatus> listener : statusChangeListeners) {
+            try {
+                listener.accept(agentStatus);
+            } catch (Exception e) {
+                System.err.println("[AGENT] 狀態變化通知失敗: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 取得 Agent 接聽可用性 - 有狀態監聽器時直接讀本地記錄，
+     * 沒有監聽器時本地記錄可能已過時，改向交換機查詢並同步本地記錄
+     */
+    public AgentAvailability getAvailability(String extension) {
+        AgentStatus agentStatus = getListenedAgentStatus(extension);
+        if (agentStatus != null) {
+            return toAvailability(agentStatus);
+        }
+        
+        agentStatus = agentStatuses.get(extension);
+        Agent agent = findAgentOnSwitch(extension, agentStatus != null ? agentStatus.agentId : null);
+        if (agent == null) {
+            // 交換機上查不到 Agent（或沒有連線），以本地記錄為準；未確認的還原記錄不採用
+            return agentStatus != null && agentStatus.verified ? toAvailability(agentStatus) : AgentAvailability.NO_AGENT;
+        }
+        
+        int avayaState = readAgentState(agent);
+        if (agentStatus != null) {
+            // 只有交換機狀態跟本地不同時才更新，避免重複通知派話佇列
+            if (avayaState != agentStatus.avayaState && avayaState != Agent.UNKNOWN) {
+                applyAvayaState(agentStatus, avayaState);
+            }
+            return toAvailability(agentStatus);
+        }
+        // 沒有本地記錄（例如在話機上直接登入的 Agent），依交換機狀態判斷
+        switch (avayaState) {
+            case Agent.LOG_OUT: return AgentAvailability.NO_AGENT;
+            case Agent.READY: return AgentAvailability.AVAILABLE;
+            case Agent.BUSY: return AgentAvailability.BUSY;
+            case Agent.NOT_READY: return AgentAvailability.ON_BREAK;
+            default: return AgentAvailability.OTHER;
+        }
+    }
+    
+    /**
+     * 只讀本地記錄的 Agent 可用性，不查詢交換機（總覽等大量查詢使用）；沒有記錄時視為沒有 Agent
+     */
+    public AgentAvailability getLocalAvailability(String extension) {
+        AgentStatus agentStatus = agentStatuses.get(extension);
+        return agentStatus != null ? toAvailability(agentStatus) : AgentAvailability.NO_AGENT;
+    }
+    
+    private static AgentAvailability toAvailability(AgentStatus agentStatus) {
+        if (!agentStatus.isLoggedIn) {
+            return AgentAvailability.NO_AGENT;
+        }
+        switch (agentStatus.status) {
+            case "AVAILABLE": return AgentAvailability.AVAILABLE;
+            case "BUSY": return AgentAvailability.BUSY;
+            case "BREAK":
+            case "AUX": return AgentAvailability.ON_BREAK;
+            default: return AgentAvailability.OTHER;
+        }
+    }
+    
+    /**
+     * 從交換機找出分機上的 Agent，指定 agentId 時只找該 Agent
+     */
+    private Agent findAgentOnSwitch(String extension, String agentId) {
+        Agent[] agents = getAgentsFromAvayaServer(extension);
+        if (agents == null) return null;
+        for (Agent agent : agents) {
+            try {
+                if (agentId == null || agentId.equals(agent.getAgentID())) {
+                    return agent;
+                }
+            } catch (Exception e) {
+                // 讀不到 ID 的 Agent 略過
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 有 Agent 記錄的分機（唯讀）
+     */
+    public java.util.Set<String> getTrackedExtensions() {
+        return java.util.Collections.unmodifiableSet(agentStatuses.keySet());
+    }
+    
     // 存儲最近的日誌 (最多保留100條)
-    private final java.util.concurrent.ConcurrentLinkedQueue<String> recentLogs = new java.util.concurrent.ConcurrentLinkedQueue<>();
     private final int MAX_LOGS = 100;
+    private final LogRingBuffer recentLogs = new LogRingBuffer(MAX_LOGS);
+    
+    // Agent 日誌是否同時輸出到 Console（日誌本身可從 /api/agent/logs 查詢）
+    @Value("${agent.log.console-echo:false}")
+    private boolean logConsoleEcho;
+    
+    // 日誌時間格式（執行緒安全，共用同一個）
+    private static final java.time.format.DateTimeFormatter LOG_TIME_FORMAT =
+            java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(java.time.ZoneId.systemDefault());
     
-    // Agent狀態監聽器映射
-    private final ConcurrentHashMap<String, javax.telephony.callcenter.AgentTerminalListener> agentListeners = new ConcurrentHashMap<>();
+    // 批次查詢 Agent 狀態時，每個分機的等待上限
+    private static final long AGENT_QUERY_TIMEOUT_MS = 3000;
+    
+    // Agent狀態監聽器映射（有監聽器的分機，狀態查詢直接讀本地記錄）
+    private final ConcurrentHashMap<String, AgentStateListener> agentListeners = new ConcurrentHashMap<>();
+    
+    // 等待交換機確認的狀態變更（分機 -> 目標狀態），由 Agent 狀態事件完成
+    private final ConcurrentHashMap<String, PendingStateChange> pendingStateChanges = new ConcurrentHashMap<>();
+    
+    // 等待狀態事件確認的上限；沒有監聽器時只短暫等待後直接讀取狀態
+    private static final long STATE_CONFIRM_TIMEOUT_MS = 3000;
+    private static final long UNLISTENED_CONFIRM_TIMEOUT_MS = 500;
+    
+    // 功能代碼不指定目標狀態，收到任何狀態事件即視為已處理
+    private static final int ANY_AGENT_STATE = Integer.MIN_VALUE;
+    
+    /**
+     * 一筆等待確認的狀態變更
+     */
+    private static class PendingStateChange {
+        final int targetState;
+        final CompletableFuture<Boolean> confirmed = new CompletableFuture<>();
+        
+        PendingStateChange(int targetState) {
+            this.targetState = targetState;
+        }
+        
+        boolean matches(int avayaState) {
+            return targetState == ANY_AGENT_STATE || targetState == avayaState;
+        }
+    }
+    
+    /**
+     * Agent 狀態監聽器 - 交換機推送狀態變化時同步本地 AgentStatus
+     */
+    private class AgentStateListener implements AgentTerminalListener {
+        final String extension;
+        final AgentTerminal terminal;
+        
+        AgentStateListener(String extension, AgentTerminal terminal) {
+            this.extension = extension;
+            this.terminal = terminal;
+        }
+        
+        @Override
+        public void agentTerminalLoggedOn(AgentTerminalEvent event) {
+            onAgentStateEvent(extension, Agent.LOG_IN);
+        }
+        
+        @Override
+        public void agentTerminalLoggedOff(AgentTerminalEvent event) {
+            onAgentStateEvent(extension, Agent.LOG_OUT);
+        }
+        
+        @Override
+        public void agentTerminalReady(AgentTerminalEvent event) {
+            onAgentStateEvent(extension, Agent.READY);
+        }
+        
+        @Override
+        public void agentTerminalNotReady(AgentTerminalEvent event) {
+            onAgentStateEvent(extension, Agent.NOT_READY);
+        }
+        
+        @Override
+        public void agentTerminalBusy(AgentTerminalEvent event) {
+            onAgentStateEvent(extension, Agent.BUSY);
+        }
+        
+        @Override
+        public void agentTerminalWorkReady(AgentTerminalEvent event) {
+            onAgentStateEvent(extension, Agent.WORK_READY);
+        }
+        
+        @Override
+        public void agentTerminalWorkNotReady(AgentTerminalEvent event) {
+            onAgentStateEvent(extension, Agent.WORK_NOT_READY);
+        }
+        
+        @Override
+        public void agentTerminalUnknown(AgentTerminalEvent event) {
+            onAgentStateEvent(extension, Agent.UNKNOWN);
+        }
+        
+        @Override
+        public void terminalListenerEnded(TerminalEvent event) {
+            // 監聽結束（例如 Provider 斷線），之後的查詢改回向 Avaya Server 查詢，重連後再掛回
+            if (agentListeners.remove(extension, this)) {
+                logToMemory(() -> "[AGENT] 分機 " + extension + " 的 Agent 狀態監聽已結束");
+            }
+        }
+    }
+    
+    @PostConstruct
+    public void init() {
+        // Provider 重連後終端物件會換新，監聽器要重新掛上
+        phoneCallService.addReconnectHook(provider -> jtapiExecutor.execute(this::reattachAgentStateListeners));
+    }
     
     /**
      * Agent 登入功能 - 使用 JTAPI AgentTerminal.addAgent() API
@@ -100,7 +419,7 @@ public class AgentService {
                 AgentStatus agentStatus = new AgentStatus(agentId, extension);
                 agentStatus.isLoggedIn = true;
                 agentStatus.loginTime = System.currentTimeMillis();
-                agentStatus.status = "AVAILABLE";
+                transition(agentStatus, "AVAILABLE");
                 
                 agentStatuses.put(extension, agentStatus);
                 
@@ -137,7 +456,7 @@ public class AgentService {
                     AgentStatus agentStatus = new AgentStatus(agentId, extension);
                     agentStatus.isLoggedIn = true;
                     agentStatus.loginTime = System.currentTimeMillis();
-                    agentStatus.status = "AVAILABLE";
+                    transition(agentStatus, "AVAILABLE");
                     
                     agentStatuses.put(extension, agentStatus);
                     
@@ -208,7 +527,7 @@ public class AgentService {
                 // 不完全清理狀態，只更新為登出狀態（保留 Agent 記錄）
                 if (agentStatus != null) {
                     agentStatus.isLoggedIn = false;
-                    agentStatus.status = "NOT_READY";
+                    transition(agentStatus, "NOT_READY");
                 }
                 
                 // 清理 Agent 狀態監聽器
@@ -749,22 +1068,17 @@ public class AgentService {
                 return false;
             }
             
-            // 登出 Agent
+            // 登出 Agent，等待交換機回報登出事件
             try {
-                agent.setState(Agent.LOG_OUT);
+                requestAgentState(extension, agent, Agent.LOG_OUT).join();
                 System.out.println("[AGENT] Agent 登出指令已發送");
             } catch (Exception e) {
-                System.out.println("[AGENT] Agent 登出失敗: " + e.getMessage());
+                System.out.println("[AGENT] Agent 登出失敗: " + unwrap(e).getMessage());
                 return false;
             }
             
-            System.out.println("[AGENT] API 登出指令已發送");
-            
-            // 等待一下讓狀態更新
-            Thread.sleep(1000);
-            
             // 檢查登出狀態
-            int currentState = agent.getState();
+            int currentState = readAgentState(agent);
             boolean isLoggedOut = (currentState == Agent.LOG_OUT || currentState == Agent.UNKNOWN);
             
             System.out.println("[AGENT] Agent 狀態: " + currentState + ", 登出成功: " + isLoggedOut);
@@ -805,6 +1119,12 @@ public class AgentService {
      */
     public String getAgentStatus(String extension) {
         try {
+            // 有狀態監聽器時，本地記錄已跟著事件同步，不需再查詢交換機
+            AgentStatus cachedStatus = getListenedAgentStatus(extension);
+            if (cachedStatus != null) {
+                return formatCachedAgentStatus(extension, cachedStatus);
+            }
+            
             System.out.println("[AGENT] 查詢分機 " + extension + " 的 Agent 狀態（從 Avaya Server）");
             
             // 從 Avaya Server 查詢實際的 Agent 狀態
@@ -894,64 +1214,35 @@ public class AgentService {
             StringBuilder status = new StringBuilder("=== 所有 Agent 狀態（來自 Avaya Server）===\n");
             boolean foundAnyAgent = false;
             
-            // 遍歷所有已知的分機連線來查詢 Agent
+            // 有監聽器的分機直接讀本地記錄，其餘分機同時向 Avaya Server 查詢
+            java.util.List<String> serverExtensions = new java.util.ArrayList<>();
             for (String extension : agentStatuses.keySet()) {
-                try {
-                    Agent[] agents = getAgentsFromAvayaServer(extension);
-                    if (agents != null && agents.length > 0) {
-                        foundAnyAgent = true;
-                        
-                        for (Agent agent : agents) {
-                            try {
-                                String agentId = agent.getAgentID();
-                                int agentState = agent.getState();
-                                String stateDisplay = getAvayaAgentStateDisplay(agentState);
-                                
-                                status.append("分機 ").append(extension)
-                                      .append(" - Agent ").append(agentId)
-                                      .append(" - ").append(stateDisplay)
-                                      .append(" (").append(agentState).append(")\n");
-                                
-                            } catch (Exception e) {
-                                status.append("分機 ").append(extension)
-                                      .append(" - Agent 資訊取得失敗: ").append(e.getMessage()).append("\n");
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    System.err.println("[AGENT] 查詢分機 " + extension + " 的 Agent 狀態失敗: " + e.getMessage());
+                AgentStatus cachedStatus = getListenedAgentStatus(extension);
+                if (cachedStatus == null) {
+                    serverExtensions.add(extension);
+                } else if (cachedStatus.isLoggedIn) {
+                    foundAnyAgent = true;
+                    status.append("分機 ").append(extension)
+                          .append(" - Agent ").append(cachedStatus.agentId)
+                          .append(" - ").append(getAvayaAgentStateDisplay(cachedStatus.avayaState))
+                          .append(" (").append(cachedStatus.avayaState).append(")\n");
                 }
             }
+            foundAnyAgent |= appendAgentsFromServer(serverExtensions, status);
             
             // 如果沒有從 Avaya Server 找到任何 Agent，檢查所有可能的分機連線
             if (!foundAnyAgent) {
                 status.append("從 Avaya Server 未找到任何 Agent\n");
                 
-                // 嘗試從所有活躍的分機連線查詢
+                // 嘗試從所有活躍的分機連線查詢（已查過的分機不再重查）
                 try {
+                    java.util.List<String> activeExtensions = new java.util.ArrayList<>();
                     for (String extension : getAllActiveExtensions()) {
-                        Agent[] agents = getAgentsFromAvayaServer(extension);
-                        if (agents != null && agents.length > 0) {
-                            foundAnyAgent = true;
-                            
-                            for (Agent agent : agents) {
-                                try {
-                                    String agentId = agent.getAgentID();
-                                    int agentState = agent.getState();
-                                    String stateDisplay = getAvayaAgentStateDisplay(agentState);
-                                    
-                                    status.append("分機 ").append(extension)
-                                          .append(" - Agent ").append(agentId)
-                                          .append(" - ").append(stateDisplay)
-                                          .append(" (").append(agentState).append(")\n");
-                                    
-                                } catch (Exception e) {
-                                    status.append("分機 ").append(extension)
-                                          .append(" - Agent 資訊取得失敗: ").append(e.getMessage()).append("\n");
-                                }
-                            }
+                        if (!agentStatuses.containsKey(extension)) {
+                            activeExtensions.add(extension);
                         }
                     }
+                    foundAnyAgent = appendAgentsFromServer(activeExtensions, status);
                 } catch (Exception e) {
                     status.append("掃描所有分機時發生錯誤: ").append(e.getMessage()).append("\n");
                 }
@@ -1018,7 +1309,7 @@ public class AgentService {
             }
             
             String oldStatus = agentStatus.status;
-            agentStatus.status = newStatus;
+            transition(agentStatus, newStatus);
             
             System.out.println("[AGENT] Agent " + agentStatus.agentId + 
                              " 狀態變更: " + oldStatus + " -> " + newStatus);
@@ -1055,10 +1346,11 @@ public class AgentService {
             
             // 執行 Manual-in 功能代碼 (#96)
             String manualInCommand = "#96";
+            PendingStateChange pending = expectAgentState(extension, ANY_AGENT_STATE);
             boolean success = executeFeatureCodeImproved(extension, manualInCommand);
             
-            // 等待系統處理
-            Thread.sleep(1000);
+            // 等待系統處理：收到 Agent 狀態事件即繼續，最多等 1 秒
+            awaitAgentState(extension, pending, 1000).join();
             
             // 重新從 Avaya Server 查詢狀態來驗證
             Agent[] updatedAgents = getAgentsFromAvayaServer(extension);
@@ -1116,78 +1408,99 @@ public class AgentService {
      * 使用 API 方式設定 Agent 工作模式
      */
     private boolean setAgentWorkModeViaAPI(String extension, String mode) {
+        return setAgentWorkModeAsync(extension, mode).join();
+    }
+    
+    /**
+     * 使用 API 方式設定 Agent 工作模式，交換機確認狀態後完成
+     */
+    private CompletableFuture<Boolean> setAgentWorkModeAsync(String extension, String mode) {
+        return CompletableFuture.supplyAsync(() -> findAgentsForWorkMode(extension, mode), jtapiExecutor)
+                .thenCompose(agents -> agents == null
+                        ? CompletableFuture.completedFuture(false)
+                        : tryWorkModeOnAgents(extension, agents, 0, mode))
+                .exceptionally(e -> {
+                    logToMemory("[AGENT] 設定工作模式過程發生錯誤: " + unwrap(e).getMessage());
+                    return false;
+                });
+    }
+    
+    private Agent[] findAgentsForWorkMode(String extension, String mode) {
+        logToMemory("[AGENT] 開始設定 Agent 工作模式 - Extension: " + extension + ", Mode: " + mode);
+        
+        // 取得分機連線
+        PhoneCallService.ExtensionConnection conn = phoneCallService.getExtensionConnection(extension);
+        if (conn == null) {
+            logToMemory("[AGENT] 無法取得分機連線，無法設定工作模式");
+            return null;
+        }
+        
+        // 檢查 Terminal 是否支援 AgentTerminal
+        if (!(conn.terminal instanceof AgentTerminal)) {
+            logToMemory("[AGENT] Terminal 不支援 AgentTerminal，無法設定工作模式");
+            return null;
+        }
+        
+        Agent[] existingAgents = ((AgentTerminal) conn.terminal).getAgents();
+        if (existingAgents == null || existingAgents.length == 0) {
+            logToMemory("[AGENT] 找不到任何 Agent");
+            return null;
+        }
+        return existingAgents;
+    }
+    
+    /**
+     * 依序對分機上的 Agent 設定工作模式，失敗時嘗試下一個 Agent
+     */
+    private CompletableFuture<Boolean> tryWorkModeOnAgents(String extension, Agent[] agents, int index, String mode) {
+        if (index >= agents.length) {
+            logToMemory("[AGENT] 找不到任何 Agent");
+            return CompletableFuture.completedFuture(false);
+        }
+        
+        Agent agent = agents[index];
         try {
-            logToMemory("[AGENT] 開始設定 Agent 工作模式 - Extension: " + extension + ", Mode: " + mode);
-            
-            // 取得分機連線
-            PhoneCallService.ExtensionConnection conn = phoneCallService.getExtensionConnection(extension);
-            if (conn == null) {
-                logToMemory("[AGENT] 無法取得分機連線，無法設定工作模式");
-                return false;
-            }
-            
-            // 檢查 Terminal 是否支援 AgentTerminal
-            if (!(conn.terminal instanceof AgentTerminal)) {
-                logToMemory("[AGENT] Terminal 不支援 AgentTerminal，無法設定工作模式");
-                return false;
+            String agentId = agent.getAgentID();
+            logToMemory("[AGENT] 找到 Agent " + agentId + "，當前狀態: " + getAgentStateString(agent.getState()));
+            
+            // 根據模式設定 Agent 狀態
+            int targetState;
+            switch (mode) {
+                case "MANUAL_IN":
+                    // Manual-in：設為 READY，讓 Agent 可以接聽來電
+                    // 通話結束後，CM 伺服器會自動切換到 ACW (WORK_NOT_READY)
+                    targetState = Agent.READY;           // 手動接聽：就緒狀態，可接聽來電
+                    break;
+                case "AUTO_IN":
+                    // 由於此 Avaya 系統不支援 WORK_READY，使用 READY 代替
+                    targetState = Agent.READY;           // 自動接聽：使用待機狀態模擬
+                    break;
+                case "AUX":
+                    targetState = Agent.NOT_READY;       // AUX：未就緒狀態
+                    break;
+                default:
+                    logToMemory("[AGENT] 未知的工作模式: " + mode);
+                    return CompletableFuture.completedFuture(false);
             }
             
-            AgentTerminal agentTerminal = (AgentTerminal) conn.terminal;
+            // 設定 Agent 狀態 - 處理 Avaya 狀態轉換限制
+            int currentState = agent.getState();
+            logToMemory("[AGENT] 當前狀態代碼: " + currentState + " (" + getAgentStateString(currentState) + ")");
+            logToMemory("[AGENT] 目標狀態代碼: " + targetState + " (" + getAgentStateString(targetState) + ")");
             
-            // 找到對應的 Agent
-            Agent[] existingAgents = agentTerminal.getAgents();
-            if (existingAgents != null) {
-                for (Agent agent : existingAgents) {
-                    try {
-                        String agentId = agent.getAgentID();
-                        logToMemory("[AGENT] 找到 Agent " + agentId + "，當前狀態: " + getAgentStateString(agent.getState()));
-                        
-                        // 根據模式設定 Agent 狀態
-                        int targetState;
-                        switch (mode) {
-                            case "MANUAL_IN":
-                                // Manual-in：設為 READY，讓 Agent 可以接聽來電
-                                // 通話結束後，CM 伺服器會自動切換到 ACW (WORK_NOT_READY)
-                                targetState = Agent.READY;           // 手動接聽：就緒狀態，可接聽來電
-                                break;
-                            case "AUTO_IN":
-                                // 由於此 Avaya 系統不支援 WORK_READY，使用 READY 代替
-                                targetState = Agent.READY;           // 自動接聽：使用待機狀態模擬
-                                break;
-                            case "AUX":
-                                targetState = Agent.NOT_READY;       // AUX：未就緒狀態
-                                break;
-                            default:
-                                logToMemory("[AGENT] 未知的工作模式: " + mode);
-                                return false;
-                        }
-                        
-                        // 設定 Agent 狀態 - 處理 Avaya 狀態轉換限制
-                        int currentState = agent.getState();
-                        logToMemory("[AGENT] 當前狀態代碼: " + currentState + " (" + getAgentStateString(currentState) + ")");
-                        logToMemory("[AGENT] 目標狀態代碼: " + targetState + " (" + getAgentStateString(targetState) + ")");
-                        
-                        boolean success = setAgentStateWithTransition(agent, currentState, targetState, mode);
+            return setAgentStateWithTransition(extension, agent, currentState, targetState, mode)
+                    .thenCompose(success -> {
                         if (success) {
                             logToMemory("[AGENT] ✓ Agent " + agentId + " 已設定為 " + mode + " 模式 (狀態: " + getAgentStateString(targetState) + ")");
-                            return true;
-                        } else {
-                            logToMemory("[AGENT] ✗ Agent " + agentId + " 狀態轉換失敗");
-                            continue; // 嘗試下一個 Agent
+                            return CompletableFuture.completedFuture(true);
                         }
-                        
-                    } catch (Exception e) {
-                        logToMemory("[AGENT] 設定 Agent 工作模式時發生錯誤: " + e.getMessage());
-                    }
-                }
-            }
-            
-            logToMemory("[AGENT] 找不到任何 Agent");
-            return false;
+                        logToMemory("[AGENT] ✗ Agent " + agentId + " 狀態轉換失敗");
+                        return tryWorkModeOnAgents(extension, agents, index + 1, mode); // 嘗試下一個 Agent
+                    });
             
         } catch (Exception e) {
-            logToMemory("[AGENT] 設定工作模式過程發生錯誤: " + e.getMessage());
-            return false;
+            logToMemory("[AGENT] 設定 Agent 工作模式時發生錯誤: " + e.getMessage());
+            return tryWorkModeOnAgents(extension, agents, index + 1, mode);
         }
     }
     
@@ -1195,11 +1508,16 @@ public class AgentService {
      * 設定 Agent 為手動接聽模式 (API 方式)
      */
     public String setAgentManualInSimple(String extension) {
-        try {
-            logToMemory("[AGENT] 使用 API 設定 Manual-in 模式 - Extension: " + extension);
-            
-            boolean success = setAgentWorkModeViaAPI(extension, "MANUAL_IN");
-            
+        return setAgentManualInAsync(extension).join();
+    }
+    
+    /**
+     * 設定 Agent 為手動接聽模式，交換機確認狀態後完成
+     */
+    public CompletableFuture<String> setAgentManualInAsync(String extension) {
+        logToMemory("[AGENT] 使用 API 設定 Manual-in 模式 - Extension: " + extension);
+        
+        return setAgentWorkModeAsync(extension, "MANUAL_IN").thenApply(success -> {
             if (success) {
                 // 更新本地記錄
                 AgentStatus localStatus = agentStatuses.get(extension);
@@ -1221,22 +1539,26 @@ public class AgentService {
                        "- Agent 是否已登入\n" +
                        "- CTI 連線是否正常";
             }
-            
-        } catch (Exception e) {
-            logToMemory("[AGENT] Manual-in 設定失敗: " + e.getMessage());
-            return "Manual-in 設定失敗: " + e.getMessage();
-        }
+        }).exceptionally(e -> {
+            logToMemory("[AGENT] Manual-in 設定失敗: " + unwrap(e).getMessage());
+            return "Manual-in 設定失敗: " + unwrap(e).getMessage();
+        });
     }
     
     /**
      * 設定 Agent 為自動接聽模式 (API 方式)
      */
     public String setAgentAutoInSimple(String extension) {
-        try {
-            logToMemory("[AGENT] 使用 API 設定 Auto-in 模式 - Extension: " + extension);
-            
-            boolean success = setAgentWorkModeViaAPI(extension, "AUTO_IN");
-            
+        return setAgentAutoInAsync(extension).join();
+    }
+    
+    /**
+     * 設定 Agent 為自動接聽模式，交換機確認狀態後完成
+     */
+    public CompletableFuture<String> setAgentAutoInAsync(String extension) {
+        logToMemory("[AGENT] 使用 API 設定 Auto-in 模式 - Extension: " + extension);
+        
+        return setAgentWorkModeAsync(extension, "AUTO_IN").thenApply(success -> {
             if (success) {
                 // 更新本地記錄
                 AgentStatus localStatus = agentStatuses.get(extension);
@@ -1258,28 +1580,32 @@ public class AgentService {
                        "- Agent 是否已登入\n" +
                        "- CTI 連線是否正常";
             }
-            
-        } catch (Exception e) {
-            logToMemory("[AGENT] Auto-in 設定失敗: " + e.getMessage());
-            return "Auto-in 設定失敗: " + e.getMessage();
-        }
+        }).exceptionally(e -> {
+            logToMemory("[AGENT] Auto-in 設定失敗: " + unwrap(e).getMessage());
+            return "Auto-in 設定失敗: " + unwrap(e).getMessage();
+        });
     }
     
     /**
      * 設定 Agent 為 AUX 狀態 (API 方式)
      */
     public String setAgentAuxSimple(String extension) {
-        try {
-            logToMemory("[AGENT] 使用 API 設定 AUX 狀態 - Extension: " + extension);
-            
-            boolean success = setAgentWorkModeViaAPI(extension, "AUX");
-            
+        return setAgentAuxAsync(extension).join();
+    }
+    
+    /**
+     * 設定 Agent 為 AUX 狀態，交換機確認狀態後完成
+     */
+    public CompletableFuture<String> setAgentAuxAsync(String extension) {
+        logToMemory("[AGENT] 使用 API 設定 AUX 狀態 - Extension: " + extension);
+        
+        return setAgentWorkModeAsync(extension, "AUX").thenApply(success -> {
             if (success) {
                 // 更新本地記錄
                 AgentStatus localStatus = agentStatuses.get(extension);
                 if (localStatus != null) {
                     localStatus.callHandlingMode = "AUX";
-                    localStatus.status = "AUX";
+                    transition(localStatus, "AUX");
                 }
                 
                 return "✅ AUX 狀態設定成功！(API)\n" +
@@ -1295,11 +1621,10 @@ public class AgentService {
                        "- Agent 是否已登入\n" +
                        "- CTI 連線是否正常";
             }
-            
-        } catch (Exception e) {
-            logToMemory("[AGENT] AUX 設定失敗: " + e.getMessage());
-            return "AUX 設定失敗: " + e.getMessage();
-        }
+        }).exceptionally(e -> {
+            logToMemory("[AGENT] AUX 設定失敗: " + unwrap(e).getMessage());
+            return "AUX 設定失敗: " + unwrap(e).getMessage();
+        });
     }
     
     /**
@@ -1325,10 +1650,11 @@ public class AgentService {
             
             // 執行 Auto-in 功能代碼 (#92)
             String autoInCommand = "#92";
+            PendingStateChange pending = expectAgentState(extension, ANY_AGENT_STATE);
             boolean success = executeFeatureCodeImproved(extension, autoInCommand);
             
-            // 等待系統處理
-            Thread.sleep(1000);
+            // 等待系統處理：收到 Agent 狀態事件即繼續，最多等 1 秒
+            awaitAgentState(extension, pending, 1000).join();
             
             // 重新從 Avaya Server 查詢狀態來驗證
             Agent[] updatedAgents = getAgentsFromAvayaServer(extension);
@@ -1387,6 +1713,20 @@ public class AgentService {
      */
     public String getAgentCallHandlingMode(String extension) {
         try {
+            AgentStatus cachedStatus = getListenedAgentStatus(extension);
+            if (cachedStatus != null) {
+                if (!cachedStatus.isLoggedIn) {
+                    return "錯誤：分機 " + extension + " 沒有 Agent 登入";
+                }
+                return "=== Agent 來電處理模式（來自狀態事件）===\n" +
+                       "Agent ID: " + cachedStatus.agentId + "\n" +
+                       "分機: " + extension + "\n" +
+                       "Avaya 狀態: " + getAvayaAgentStateDisplay(cachedStatus.avayaState) + "\n" +
+                       "本地記錄模式: " + cachedStatus.getCallHandlingModeDisplay() + "\n" +
+                       "狀態更新時間: " + new java.util.Date(cachedStatus.stateUpdatedTime) + "\n" +
+                       "查詢時間: " + new java.util.Date() + "\n";
+            }
+            
             System.out.println("[AGENT] 查詢分機 " + extension + " 的來電處理模式（從 Avaya Server）");
             
             // 從 Avaya Server 查詢實際的 Agent 狀態
@@ -1631,6 +1971,59 @@ public class AgentService {
         }
     }
     
+    /**
+     * 同時向 Avaya Server 查詢多個分機的 Agent，每個分機最多等 AGENT_QUERY_TIMEOUT_MS，
+     * 逾時的分機標示後略過，回傳是否找到任何 Agent
+     */
+    private boolean appendAgentsFromServer(java.util.List<String> extensions, StringBuilder status) {
+        java.util.List<java.util.concurrent.CompletableFuture<String>> futures = new java.util.ArrayList<>();
+        for (String extension : extensions) {
+            futures.add(java.util.concurrent.CompletableFuture
+                    .supplyAsync(() -> describeAgentsFromServer(extension), jtapiExecutor)
+                    .exceptionally(e -> "")
+                    .completeOnTimeout(null, AGENT_QUERY_TIMEOUT_MS, java.util.concurrent.TimeUnit.MILLISECONDS));
+        }
+        
+        boolean found = false;
+        for (int i = 0; i < futures.size(); i++) {
+            String lines = futures.get(i).join();
+            if (lines == null) {
+                status.append("分機 ").append(extensions.get(i))
+                      .append(" - ⏱ 查詢逾時 (超過 ").append(AGENT_QUERY_TIMEOUT_MS).append(" ms)\n");
+                System.err.println("[AGENT] 查詢分機 " + extensions.get(i) + " 的 Agent 狀態逾時");
+            } else if (!lines.isEmpty()) {
+                found = true;
+                status.append(lines);
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * 查詢單一分機的 Agent 並組成狀態行，沒有 Agent 時回傳空字串
+     */
+    private String describeAgentsFromServer(String extension) {
+        Agent[] agents = getAgentsFromAvayaServer(extension);
+        if (agents == null || agents.length == 0) return "";
+        
+        StringBuilder lines = new StringBuilder();
+        for (Agent agent : agents) {
+            try {
+                String agentId = agent.getAgentID();
+                int agentState = agent.getState();
+                
+                lines.append("分機 ").append(extension)
+                     .append(" - Agent ").append(agentId)
+                     .append(" - ").append(getAvayaAgentStateDisplay(agentState))
+                     .append(" (").append(agentState).append(")\n");
+            } catch (Exception e) {
+                lines.append("分機 ").append(extension)
+                     .append(" - Agent 資訊取得失敗: ").append(e.getMessage()).append("\n");
+            }
+        }
+        return lines.toString();
+    }
+    
     /**
      * 取得所有活躍的分機號碼
      */
@@ -1744,6 +2137,67 @@ public class AgentService {
         }
     }
     
+    /**
+     * 啟動時由 Agent 狀態日誌還原登入記錄
+     * 還原的狀態可能已過時，標記為未確認：getAvailability 會向交換機查詢並以實際狀態更新，
+     * 交換機上查不到這位 Agent 前視為沒有 Agent 登入
+     */
+    public boolean restoreAgentStatus(String extension, String agentId, String status, long loginTime) {
+        AgentStatus agentStatus = new AgentStatus(agentId, extension);
+        agentStatus.isLoggedIn = true;
+        agentStatus.loginTime = loginTime;
+        agentStatus.verified = false;
+        if (agentStatuses.putIfAbsent(extension, agentStatus) != null) {
+            return false;
+        }
+        // 經過 transition 讓派話佇列等監聽者也知道這位 Agent
+        transition(agentStatus, status);
+        return true;
+    }
+    
+    /**
+     * 查看 Agent 統計（各狀態累計時間、處理通話數、平均處理時間、佔用率）
+     * 只讀取登入以來逐步累計的數值，不重新掃描紀錄；extension 為空時列出所有 Agent
+     */
+    public String getAgentStats(String extension) {
+        java.util.List<AgentStatus> targets = new java.util.ArrayList<>();
+        if (extension == null || extension.isBlank()) {
+            targets.addAll(agentStatuses.values());
+        } else {
+            AgentStatus agentStatus = agentStatuses.get(extension);
+            if (agentStatus == null) {
+                return "分機 " + extension + " 沒有 Agent 記錄";
+            }
+            targets.add(agentStatus);
+        }
+        
+        StringBuilder result = new StringBuilder("=== Agent 統計（本次登入期間）===\n");
+        if (targets.isEmpty()) {
+            result.append("目前沒有 Agent 記錄\n");
+        }
+        for (AgentStatus agentStatus : targets) {
+            AgentStats stats = agentStatus.getStats();
+            result.append("\nAgent ").append(stats.agentId).append(" (分機 ").append(stats.extension).append(")\n");
+            result.append("目前狀態: ").append(getStatusDisplayName(stats.status))
+                  .append("，已持續 ").append(stats.currentStateMs / 1000).append(" 秒\n");
+            for (java.util.Map.Entry<String, Long> entry : stats.stateDurationsMs.entrySet()) {
+                result.append("  ").append(getStatusDisplayName(entry.getKey())).append(": ")
+                      .append(entry.getValue() / 1000).append(" 秒\n");
+            }
+            result.append("處理通話數: ").append(stats.callsHandled).append("\n");
+            result.append("平均處理時間: ").append(stats.averageHandleTimeMs / 1000).append(" 秒\n");
+            result.append("佔用率: ").append(String.format("%.1f%%", stats.occupancy * 100)).append("\n");
+        }
+        return result.toString();
+    }
+    
+    /**
+     * 取得記憶體中的 Agent 狀態（不查詢交換機），沒有登入記錄時回傳 null
+     */
+    public AgentStatus getLocalAgentStatus(String extension) {
+        return agentStatuses.get(extension);
+    }
+    
     /**
      * 根據 Agent ID 找到 Agent
      */
@@ -1771,6 +2225,8 @@ public class AgentService {
             case "AVAILABLE": return "待機中";
             case "BUSY": return "忙碌中";
             case "BREAK": return "休息中";
+            case "AUX": return "未就緒 (AUX)";
+            case "AFTER_CALL": return "後處理中";
             case "LOGGED_OUT": return "已登出";
             default: return "未知狀態";
         }
@@ -1779,14 +2235,14 @@ public class AgentService {
     /**
      * 處理 Agent 狀態轉換，考慮 Avaya 系統的限制
      */
-    private boolean setAgentStateWithTransition(Agent agent, int currentState, int targetState, String mode) {
+    private CompletableFuture<Boolean> setAgentStateWithTransition(String extension, Agent agent, int currentState, int targetState, String mode) {
         try {
             logToMemory("[AGENT] 開始狀態轉換: " + getAgentStateString(currentState) + " → " + getAgentStateString(targetState));
             
             // 如果已經是目標狀態，直接返回成功
             if (currentState == targetState) {
                 logToMemory("[AGENT] Agent 已經處於目標狀態");
-                return true;
+                return CompletableFuture.completedFuture(true);
             }
             
             // 定義 Avaya 支援的狀態轉換路徑
@@ -1815,59 +2271,59 @@ public class AgentService {
                     break;
             }
             
-            // 執行中間轉換（如果需要）
+            // 執行中間轉換（如果需要），等交換機確認後才送出最終狀態
+            CompletableFuture<Boolean> intermediateDone;
             if (needsIntermediateTransition) {
-                try {
-                    logToMemory("[AGENT] 執行中間狀態轉換: " + getAgentStateString(intermediateState));
-                    agent.setState(intermediateState);
-                    Thread.sleep(500); // 給系統一點時間處理狀態變化
-                    logToMemory("[AGENT] ✓ 中間狀態轉換成功");
-                } catch (Exception e) {
-                    logToMemory("[AGENT] ✗ 中間狀態轉換失敗: " + e.getMessage());
-                    
-                    // 如果中間轉換失敗，嘗試其他路徑
-                    if (targetState == Agent.WORK_READY && intermediateState == Agent.READY) {
-                        // 嘗試 NOT_READY → WORK_READY 直接轉換
-                        try {
-                            logToMemory("[AGENT] 嘗試替代路徑: 直接從 " + getAgentStateString(currentState) + " → WORK_READY");
-                            agent.setState(targetState);
-                            return true;
-                        } catch (Exception e2) {
-                            logToMemory("[AGENT] 直接轉換也失敗: " + e2.getMessage());
-                            return false;
-                        }
+                logToMemory("[AGENT] 執行中間狀態轉換: " + getAgentStateString(intermediateState));
+                intermediateDone = requestAgentState(extension, agent, intermediateState).handle((confirmed, error) -> {
+                    if (error != null) {
+                        logToMemory("[AGENT] ✗ 中間狀態轉換失敗: " + unwrap(error).getMessage());
+                        return false;
                     }
-                    return false;
-                }
+                    logToMemory(confirmed ? "[AGENT] ✓ 中間狀態轉換成功" : "[AGENT] 中間狀態未確認，繼續執行最終轉換");
+                    return true;
+                });
+            } else {
+                intermediateDone = CompletableFuture.completedFuture(true);
             }
             
             // 執行最終狀態轉換
-            try {
-                logToMemory("[AGENT] 執行最終狀態轉換: " + getAgentStateString(targetState));
-                agent.setState(targetState);
-                logToMemory("[AGENT] ✓ 最終狀態轉換成功");
-                return true;
-            } catch (Exception e) {
-                logToMemory("[AGENT] ✗ 最終狀態轉換失敗: " + e.getMessage());
-                
-                // 記錄詳細的錯誤資訊
-                if (e.getMessage().contains("CSTA Error")) {
-                    logToMemory("[AGENT] CSTA 錯誤詳情: " + e.getMessage());
-                    logToMemory("[AGENT] 可能的原因:");
-                    logToMemory("[AGENT] - 從狀態 " + getAgentStateString(currentState) + " 到 " + getAgentStateString(targetState) + " 的轉換不被 Avaya 系統支援");
-                    logToMemory("[AGENT] - Agent 可能處於通話狀態或其他限制狀態");
-                    logToMemory("[AGENT] - 系統配置限制了此狀態轉換");
+            return intermediateDone.thenComposeAsync(ready -> {
+                if (!ready) {
+                    return CompletableFuture.completedFuture(false);
                 }
-                
-                return false;
-            }
+                logToMemory("[AGENT] 執行最終狀態轉換: " + getAgentStateString(targetState));
+                return requestAgentState(extension, agent, targetState).handle((confirmed, error) -> {
+                    if (error == null) {
+                        logToMemory(confirmed ? "[AGENT] ✓ 最終狀態轉換成功" : "[AGENT] 最終狀態轉換已送出，但未在時限內確認");
+                        return true;
+                    }
+                    
+                    String message = String.valueOf(unwrap(error).getMessage());
+                    logToMemory("[AGENT] ✗ 最終狀態轉換失敗: " + message);
+                    
+                    // 記錄詳細的錯誤資訊
+                    if (message.contains("CSTA Error")) {
+                        logToMemory("[AGENT] CSTA 錯誤詳情: " + message);
+                        logToMemory("[AGENT] 可能的原因:");
+                        logToMemory("[AGENT] - 從狀態 " + getAgentStateString(currentState) + " 到 " + getAgentStateString(targetState) + " 的轉換不被 Avaya 系統支援");
+                        logToMemory("[AGENT] - Agent 可能處於通話狀態或其他限制狀態");
+                        logToMemory("[AGENT] - 系統配置限制了此狀態轉換");
+                    }
+                    return false;
+                });
+            }, jtapiExecutor);
             
         } catch (Exception e) {
             logToMemory("[AGENT] 狀態轉換過程發生意外錯誤: " + e.getMessage());
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
     }
     
+    private Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+    
     /**
      * 取得 Agent 狀態的字串描述
      */
@@ -2015,16 +2471,26 @@ public class AgentService {
      * 記錄日誌到內存
      */
     private void logToMemory(String message) {
-        String timestampedMessage = "[" + new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date()) + "] " + message;
-        recentLogs.offer(timestampedMessage);
+        logToMemory(() -> message);
+    }
+    
+    /**
+     * 記錄日誌到內存 - 訊息在查詢日誌（或需要輸出到 Console）時才組出，事件路徑上不必先組字
+     */
+    private void logToMemory(java.util.function.Supplier<String> message) {
+        recentLogs.add(message);
         
-        // 限制日誌數量
-        while (recentLogs.size() > MAX_LOGS) {
-            recentLogs.poll();
+        // 需要時同時輸出到 Console
+        if (logConsoleEcho) {
+            System.out.println("[" + LOG_TIME_FORMAT.format(java.time.Instant.now()) + "] " + message.get());
         }
-        
-        // 同時輸出到 Console
-        System.out.println(timestampedMessage);
+    }
+    
+    /**
+     * 查看延遲動作排程狀態
+     */
+    public String getScheduledActionStatus() {
+        return agentActionScheduler.getSchedulerStatus();
     }
     
     /**
@@ -2035,15 +2501,15 @@ public class AgentService {
         logs.append("=== 最近的 Agent 操作日誌 ===\n");
         logs.append("最多顯示最近 ").append(MAX_LOGS).append(" 條記錄\n\n");
         
-        if (recentLogs.isEmpty()) {
+        java.util.List<LogRingBuffer.Entry> entries = recentLogs.snapshot();
+        if (entries.isEmpty()) {
             logs.append("目前沒有日誌記錄\n");
         } else {
-            int count = 0;
-            for (String log : recentLogs) {
-                logs.append(log).append("\n");
-                count++;
+            for (LogRingBuffer.Entry entry : entries) {
+                logs.append("[").append(LOG_TIME_FORMAT.format(java.time.Instant.ofEpochMilli(entry.timestamp))).append("] ")
+                    .append(entry.message()).append("\n");
             }
-            logs.append("\n總共 ").append(count).append(" 條記錄");
+            logs.append("\n總共 ").append(entries.size()).append(" 條記錄");
         }
         
         return logs.toString();
@@ -2071,9 +2537,15 @@ public class AgentService {
             
             AgentTerminal agentTerminal = (AgentTerminal) conn.terminal;
             
-            // 暫時簡化實現：不使用事件監聽器，而是在設定工作模式時添加特殊邏輯
-            logToMemory("[AGENT] 暫時跳過事件監聽器設置，使用替代方案");
-            // TODO: 實現事件監聽器（需要更深入了解 Avaya JTAPI 的監聽器架構）
+            // 先移除舊的監聽器，避免重複收到事件
+            cleanupAgentStateListener(extension);
+            
+            AgentStateListener listener = new AgentStateListener(extension, agentTerminal);
+            agentTerminal.addTerminalListener(listener);
+            agentListeners.put(extension, listener);
+            
+            // 以交換機目前的狀態作為起點，之後只靠事件更新
+            seedAgentState(extension, agentTerminal, agentId);
             
             logToMemory("[AGENT] ✓ Agent 狀態監聽器設置成功");
             
@@ -2082,6 +2554,188 @@ public class AgentService {
         }
     }
     
+    /**
+     * 處理 Agent 狀態事件，更新本地記錄
+     */
+    private void onAgentStateEvent(String extension, int avayaState) {
+        PendingStateChange pending = pendingStateChanges.get(extension);
+        if (pending != null && pending.matches(avayaState)) {
+            pending.confirmed.complete(true);
+        }
+        
+        AgentStatus agentStatus = agentStatuses.get(extension);
+        if (agentStatus == null) return;
+        
+        int previousState = agentStatus.avayaState;
+        applyAvayaState(agentStatus, avayaState);
+        String agentId = agentStatus.agentId;
+        logToMemory(() -> "[AGENT_EVENT] 分機 " + extension + " Agent " + agentId + " 狀態: " +
+                   getAvayaAgentStateDisplay(previousState) + " -> " + getAvayaAgentStateDisplay(avayaState));
+        
+        // 轉 AUX 之前又有新來電，取消等待中的轉換
+        if (avayaState == Agent.BUSY || avayaState == Agent.LOG_OUT) {
+            agentActionScheduler.cancel(extension, "AUX");
+        }
+        
+        // 通話或後處理結束回到就緒時，Manual-in 模式要轉回 AUX
+        if (avayaState == Agent.READY && (previousState == Agent.BUSY ||
+                previousState == Agent.WORK_READY || previousState == Agent.WORK_NOT_READY)) {
+            checkManualInToAuxTransition(extension, agentStatus.agentId);
+        }
+    }
+    
+    /**
+     * 登記一筆等待中的狀態變更，同一分機較早的等待視為被取代
+     */
+    private PendingStateChange expectAgentState(String extension, int targetState) {
+        PendingStateChange pending = new PendingStateChange(targetState);
+        PendingStateChange previous = pendingStateChanges.put(extension, pending);
+        if (previous != null) {
+            previous.confirmed.complete(false);
+        }
+        return pending;
+    }
+    
+    /**
+     * 等待狀態事件確認，逾時回傳 false
+     */
+    private CompletableFuture<Boolean> awaitAgentState(String extension, PendingStateChange pending, long timeoutMs) {
+        return pending.confirmed
+                .completeOnTimeout(false, timeoutMs, TimeUnit.MILLISECONDS)
+                .whenComplete((confirmed, error) -> pendingStateChanges.remove(extension, pending));
+    }
+    
+    /**
+     * 送出 Agent.setState，在收到對應的狀態事件時完成；
+     * 逾時仍未收到事件則直接讀取 Agent 目前狀態判斷，setState 被拒絕時以例外完成
+     */
+    private CompletableFuture<Boolean> requestAgentState(String extension, Agent agent, int targetState) {
+        PendingStateChange pending = expectAgentState(extension, targetState);
+        try {
+            agent.setState(targetState);
+        } catch (Exception e) {
+            pendingStateChanges.remove(extension, pending);
+            return CompletableFuture.failedFuture(e);
+        }
+        
+        long timeoutMs = agentListeners.containsKey(extension) ? STATE_CONFIRM_TIMEOUT_MS : UNLISTENED_CONFIRM_TIMEOUT_MS;
+        return awaitAgentState(extension, pending, timeoutMs)
+                .thenApplyAsync(confirmed -> confirmed || readAgentState(agent) == targetState, jtapiExecutor);
+    }
+    
+    private int readAgentState(Agent agent) {
+        try {
+            return agent.getState();
+        } catch (Exception e) {
+            return Agent.UNKNOWN;
+        }
+    }
+    
+    /**
+     * 把 Avaya Agent 狀態對應到本地狀態
+     */
+    private void applyAvayaState(AgentStatus agentStatus, int avayaState) {
+        switch (avayaState) {
+            case Agent.LOG_OUT:
+                agentStatus.isLoggedIn = false;
+                transition(agentStatus, "LOGGED_OUT");
+                break;
+            case Agent.LOG_IN:
+                if (!agentStatus.isLoggedIn) {
+                    agentStatus.loginTime = System.currentTimeMillis();
+                    agentStatus.isLoggedIn = true;
+                }
+                break;
+            case Agent.READY:
+                agentStatus.isLoggedIn = true;
+                transition(agentStatus, "AVAILABLE");
+                break;
+            case Agent.BUSY:
+                agentStatus.isLoggedIn = true;
+                transition(agentStatus, "BUSY");
+                break;
+            case Agent.NOT_READY:
+                agentStatus.isLoggedIn = true;
+                // 本地設定的休息狀態在交換機上也是 NOT_READY，保留原本的休息
+                if (!"BREAK".equals(agentStatus.status)) {
+                    transition(agentStatus, "AUX");
+                }
+                break;
+            case Agent.WORK_READY:
+            case Agent.WORK_NOT_READY:
+                agentStatus.isLoggedIn = true;
+                transition(agentStatus, "AFTER_CALL");
+                break;
+            default:
+                break;
+        }
+        agentStatus.avayaState = avayaState;
+        agentStatus.stateUpdatedTime = System.currentTimeMillis();
+        agentStatus.verified = true;
+    }
+    
+    /**
+     * 掛上監聽器時從交換機讀一次目前狀態
+     */
+    private void seedAgentState(String extension, AgentTerminal agentTerminal, String agentId) {
+        try {
+            AgentStatus agentStatus = agentStatuses.get(extension);
+            Agent[] agents = agentTerminal.getAgents();
+            if (agentStatus == null || agents == null) return;
+            
+            for (Agent agent : agents) {
+                if (agentId == null || agentId.equals(agent.getAgentID())) {
+                    applyAvayaState(agentStatus, agent.getState());
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            logToMemory(() -> "[AGENT] 讀取分機 " + extension + " 的初始 Agent 狀態失敗: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 取得由監聽器同步的本地記錄，沒有監聽器時回傳 null
+     */
+    private AgentStatus getListenedAgentStatus(String extension) {
+        if (!agentListeners.containsKey(extension)) return null;
+        return agentStatuses.get(extension);
+    }
+    
+    /**
+     * 以本地記錄組出與 Avaya Server 查詢相同格式的狀態文字
+     */
+    private String formatCachedAgentStatus(String extension, AgentStatus agentStatus) {
+        if (!agentStatus.isLoggedIn) {
+            return "分機 " + extension + " 沒有 Agent 登入";
+        }
+        return "=== Agent 狀態（來自狀態事件）===\n" +
+               "Agent ID: " + agentStatus.agentId + "\n" +
+               "分機: " + extension + "\n" +
+               "Avaya 狀態: " + getAvayaAgentStateDisplay(agentStatus.avayaState) + " (" + agentStatus.avayaState + ")\n" +
+               "本地登入時間: " + new java.util.Date(agentStatus.loginTime) + "\n" +
+               "本地登入時長: " + agentStatus.getLoginDuration() + " 秒\n" +
+               "本地記錄模式: " + agentStatus.getCallHandlingModeDisplay() + "\n" +
+               "狀態更新時間: " + new java.util.Date(agentStatus.stateUpdatedTime) + "\n" +
+               "查詢時間: " + new java.util.Date() + "\n";
+    }
+    
+    /**
+     * Provider 重連後，為仍登入的 Agent 重新掛上狀態監聽器
+     */
+    private void reattachAgentStateListeners() {
+        for (AgentStatus agentStatus : agentStatuses.values()) {
+            if (!agentStatus.isLoggedIn) continue;
+            
+            PhoneCallService.ExtensionConnection conn = phoneCallService.getExtensionConnection(agentStatus.extension);
+            AgentStateListener listener = agentListeners.get(agentStatus.extension);
+            if (conn != null && listener != null && listener.terminal == conn.terminal) continue;
+            
+            logToMemory("[AGENT] 重連後重新掛上分機 " + agentStatus.extension + " 的 Agent 狀態監聽器");
+            setupAgentStateListener(agentStatus.extension, agentStatus.agentId);
+        }
+    }
+    
     /**
      * 檢查是否需要從 Manual-in 模式轉換到 AUX
      */
@@ -2092,23 +2746,16 @@ public class AgentService {
             if (agentStatus != null && "MANUAL_IN".equals(agentStatus.callHandlingMode)) {
                 logToMemory("[AGENT] 檢測到 Manual-in 模式 Agent " + agentId + " 回到就緒狀態，準備轉換到 AUX");
                 
-                // 短暫延遲，確保狀態變化完成
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(1000); // 等待1秒
-                        
-                        // 轉換到 AUX 狀態
-                        boolean success = setAgentWorkModeViaAPI(extension, "AUX");
-                        if (success) {
-                            logToMemory("[AGENT] ✓ Manual-in 模式：通話結束後自動轉換到 AUX 成功");
-                        } else {
-                            logToMemory("[AGENT] ✗ Manual-in 模式：通話結束後自動轉換到 AUX 失敗");
-                        }
-                        
-                    } catch (Exception e) {
-                        logToMemory("[AGENT] Manual-in 自動轉 AUX 過程中發生錯誤: " + e.getMessage());
+                // 短暫延遲，確保狀態變化完成；同一分機重複觸發時只會轉換一次
+                agentActionScheduler.schedule(extension, "AUX", MANUAL_IN_AUX_DELAY_MS, () -> {
+                    // 轉換到 AUX 狀態
+                    boolean success = setAgentWorkModeViaAPI(extension, "AUX");
+                    if (success) {
+                        logToMemory("[AGENT] ✓ Manual-in 模式：通話結束後自動轉換到 AUX 成功");
+                    } else {
+                        logToMemory("[AGENT] ✗ Manual-in 模式：通話結束後自動轉換到 AUX 失敗");
                     }
-                }).start();
+                });
             }
             
         } catch (Exception e) {
@@ -2121,15 +2768,13 @@ public class AgentService {
      */
     private void cleanupAgentStateListener(String extension) {
         try {
-            javax.telephony.callcenter.AgentTerminalListener listener = agentListeners.remove(extension);
+            agentActionScheduler.cancelAll(extension);
+            
+            AgentStateListener listener = agentListeners.remove(extension);
             if (listener != null) {
-                // 獲取分機連線
-                PhoneCallService.ExtensionConnection conn = phoneCallService.getExtensionConnection(extension);
-                if (conn != null && conn.terminal instanceof AgentTerminal) {
-                    AgentTerminal agentTerminal = (AgentTerminal) conn.terminal;
-                    agentTerminal.removeAgentTerminalListener(listener);
-                    logToMemory("[AGENT] ✓ Agent 狀態監聽器已清理 - Extension: " + extension);
-                }
+                // 從當初掛上的終端移除（重連後分機連線上的終端可能已換新）
+                listener.terminal.removeTerminalListener(listener);
+                logToMemory("[AGENT] ✓ Agent 狀態監聽器已清理 - Extension: " + extension);
             }
         } catch (Exception e) {
             logToMemory("[AGENT] 清理 Agent 狀態監聽器失敗: " + e.getMessage());
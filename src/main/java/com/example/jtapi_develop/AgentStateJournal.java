@@ -0,0 +1,306 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Agent 狀態日誌 - 每次狀態變化以二進位格式附加到記憶體映射的分段檔
+ * 寫入只是記憶體複製，不需每筆呼叫系統；啟動時重播還原 Agent 狀態，並可依時間範圍查詢單一 Agent
+ *
+ * 每筆格式: [int 長度][long 時間][byte 狀態][byte 已登入][short 分機長度][分機][short AgentID 長度][AgentID]
+ * 長度為 0 代表分段檔已讀到結尾（映射檔案預設補 0）
+ */
+@Service
+public class AgentStateJournal {
+
+    @Autowired
+    private AgentService agentService;
+
+    @Value("${agent.journal.enabled:true}")
+    private boolean enabled;
+
+    @Value("${agent.journal.dir:journal}")
+    private String journalDir;
+
+    @Value("${agent.journal.segment-bytes:8388608}")
+    private int segmentBytes;
+
+    @Value("${agent.journal.rollover-minutes:60}")
+    private long rolloverMinutes;
+
+    @Value("${agent.journal.max-segments:48}")
+    private int maxSegments;
+
+    private static final String SEGMENT_PREFIX = "agent-journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    // 狀態代碼表，位置即為寫入的代碼
+    private static final String[] STATUS_CODES = {
+        "UNKNOWN", "LOGGED_OUT", "AVAILABLE", "BUSY", "BREAK", "AUX", "AFTER_CALL", "NOT_READY"
+    };
+
+    /**
+     * 一筆狀態變化
+     */
+    public static class JournalRecord {
+        public long timestamp;
+        public String extension;
+        public String agentId;
+        public String status;
+        public boolean isLoggedIn;
+    }
+
+    private File directory;
+    private MappedByteBuffer currentBuffer;
+    private long currentSegmentStart;
+    private long recordsWritten;
+    private long replayedRecords;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            System.out.println("[JOURNAL] Agent 狀態日誌已停用");
+            return;
+        }
+        try {
+            directory = new File(journalDir);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("無法建立目錄 " + directory.getAbsolutePath());
+            }
+
+            replay();
+            openNewSegment(System.currentTimeMillis());
+            agentService.addStatusChangeListener(this::append);
+        } catch (Exception e) {
+            System.err.println("[JOURNAL] Agent 狀態日誌初始化失敗，本次不記錄: " + e.getMessage());
+            currentBuffer = null;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (currentBuffer != null) {
+            currentBuffer.force();
+            currentBuffer = null;
+        }
+    }
+
+    /**
+     * 附加一筆狀態變化
+     */
+    private void append(AgentService.AgentStatus agentStatus) {
+        byte[] extension = agentStatus.extension.getBytes(StandardCharsets.UTF_8);
+        byte[] agentId = (agentStatus.agentId != null ? agentStatus.agentId : "").getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 8 + 1 + 1 + 2 + extension.length + 2 + agentId.length;
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            if (currentBuffer == null) return;
+            try {
+                if (currentBuffer.remaining() < 4 + payloadLength + 4 ||
+                        now - currentSegmentStart >= rolloverMinutes * 60_000L) {
+                    openNewSegment(now);
+                }
+
+                // 先寫內容，最後才寫長度，讀取端看到長度時內容已完整
+                int start = currentBuffer.position();
+                currentBuffer.position(start + 4);
+                currentBuffer.putLong(now);
+                currentBuffer.put(statusCode(agentStatus.status));
+                currentBuffer.put((byte) (agentStatus.isLoggedIn ? 1 : 0));
+                currentBuffer.putShort((short) extension.length);
+                currentBuffer.put(extension);
+                currentBuffer.putShort((short) agentId.length);
+                currentBuffer.put(agentId);
+                currentBuffer.putInt(start, payloadLength);
+                recordsWritten++;
+            } catch (Exception e) {
+                System.err.println("[JOURNAL] 寫入 Agent 狀態日誌失敗: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 查詢單一分機在時間範圍內的狀態變化
+     */
+    public List<JournalRecord> query(String extension, long fromMillis, long toMillis) {
+        List<JournalRecord> result = new ArrayList<>();
+        if (directory == null) return result;
+
+        File[] segments = listSegments();
+        for (int i = 0; i < segments.length; i++) {
+            // 分段檔名即為起始時間，下一個分段的起始時間就是本分段的結束時間
+            long segmentStart = segmentStartTime(segments[i]);
+            long segmentEnd = i + 1 < segments.length ? segmentStartTime(segments[i + 1]) : Long.MAX_VALUE;
+            if (segmentEnd < fromMillis || segmentStart > toMillis) continue;
+
+            for (JournalRecord record : readSegment(segments[i])) {
+                if (record.timestamp >= fromMillis && record.timestamp <= toMillis && extension.equals(record.extension)) {
+                    result.add(record);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 以文字列出查詢結果
+     */
+    public String describe(String extension, long fromMillis, long toMillis) {
+        if (directory == null) {
+            return "Agent 狀態日誌未啟用";
+        }
+
+        List<JournalRecord> records = query(extension, fromMillis, toMillis);
+        StringBuilder result = new StringBuilder("=== 分機 " + extension + " 的 Agent 狀態日誌 ===\n");
+        result.append("範圍: ").append(new java.util.Date(fromMillis)).append(" ~ ").append(new java.util.Date(toMillis)).append("\n");
+        for (JournalRecord record : records) {
+            result.append(new java.util.Date(record.timestamp))
+                  .append(" - Agent ").append(record.agentId)
+                  .append(" - ").append(record.status)
+                  .append(record.isLoggedIn ? "" : " (未登入)").append("\n");
+        }
+        result.append("共 ").append(records.size()).append(" 筆\n");
+        return result.toString();
+    }
+
+    /**
+     * 查看日誌狀態
+     */
+    public synchronized String getJournalStatus() {
+        if (directory == null) {
+            return "Agent 狀態日誌未啟用";
+        }
+        return "=== Agent 狀態日誌 ===\n" +
+               "目錄: " + directory.getAbsolutePath() + "\n" +
+               "分段數: " + listSegments().length + " (上限 " + maxSegments + ")\n" +
+               "目前分段起始: " + new java.util.Date(currentSegmentStart) + "\n" +
+               "目前分段已用: " + (currentBuffer != null ? currentBuffer.position() : 0) + " / " + segmentBytes + " bytes\n" +
+               "本次啟動寫入: " + recordsWritten + " 筆\n" +
+               "啟動時重播: " + replayedRecords + " 筆\n";
+    }
+
+    /**
+     * 重播所有分段，取每個分機最後一筆狀態還原到 AgentService
+     */
+    private void replay() {
+        Map<String, JournalRecord> latest = new LinkedHashMap<>();
+        Map<String, Long> loginTimes = new LinkedHashMap<>();
+        for (File segment : listSegments()) {
+            for (JournalRecord record : readSegment(segment)) {
+                JournalRecord previous = latest.put(record.extension, record);
+                if (record.isLoggedIn && (previous == null || !previous.isLoggedIn)) {
+                    loginTimes.put(record.extension, record.timestamp);
+                }
+                replayedRecords++;
+            }
+        }
+
+        int restored = 0;
+        for (JournalRecord record : latest.values()) {
+            long loginTime = loginTimes.getOrDefault(record.extension, record.timestamp);
+            if (record.isLoggedIn && agentService.restoreAgentStatus(record.extension, record.agentId, record.status, loginTime)) {
+                restored++;
+            }
+        }
+        System.out.println("[JOURNAL] 重播 " + replayedRecords + " 筆 Agent 狀態變化，還原 " + restored + " 位已登入 Agent");
+    }
+
+    private void openNewSegment(long startTime) throws IOException {
+        if (currentBuffer != null) {
+            currentBuffer.force();
+        }
+
+        // 檔名即為起始時間，同一毫秒內再換分段（或重啟）時往後推，避免覆蓋既有分段
+        File[] existing = listSegments();
+        if (existing.length > 0) {
+            startTime = Math.max(startTime, segmentStartTime(existing[existing.length - 1]) + 1);
+        }
+
+        File segment = new File(directory, SEGMENT_PREFIX + startTime + SEGMENT_SUFFIX);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw");
+             FileChannel channel = file.getChannel()) {
+            // 映射在 channel 關閉後仍然有效
+            currentBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        currentSegmentStart = startTime;
+        deleteOldSegments();
+    }
+
+    private void deleteOldSegments() {
+        File[] segments = listSegments();
+        for (int i = 0; i < segments.length - maxSegments; i++) {
+            if (!segments[i].delete()) {
+                System.err.println("[JOURNAL] 無法刪除舊分段 " + segments[i].getName());
+            }
+        }
+    }
+
+    private List<JournalRecord> readSegment(File segment) {
+        List<JournalRecord> records = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r");
+             FileChannel channel = file.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) break;
+
+                JournalRecord record = new JournalRecord();
+                record.timestamp = buffer.getLong();
+                int code = buffer.get();
+                record.status = code >= 0 && code < STATUS_CODES.length ? STATUS_CODES[code] : "UNKNOWN";
+                record.isLoggedIn = buffer.get() == 1;
+                record.extension = readString(buffer);
+                record.agentId = readString(buffer);
+                records.add(record);
+            }
+        } catch (Exception e) {
+            System.err.println("[JOURNAL] 讀取分段 " + segment.getName() + " 失敗: " + e.getMessage());
+        }
+        return records;
+    }
+
+    private String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private File[] listSegments() {
+        File[] segments = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segments == null) return new File[0];
+        Arrays.sort(segments, (a, b) -> Long.compare(segmentStartTime(a), segmentStartTime(b)));
+        return segments;
+    }
+
+    private long segmentStartTime(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private byte statusCode(String status) {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            if (STATUS_CODES[i].equals(status)) return (byte) i;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.jtapi_develop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * 批次執行工具 - 以固定的並行數執行一批非同步工作
+ * 前一個工作完成時才接著啟動下一個，不會佔住執行緒等待；失敗的工作會記錄到 stderr
+ */
+final class BoundedBatchRunner {
+
+    private BoundedBatchRunner() {
+    }
+
+    /**
+     * 執行整批工作，結果依輸入順序回傳；工作失敗時該位置為 null，由呼叫端自行把錯誤轉成結果
+     */
+    static <T, R> CompletableFuture<List<R>> run(List<T> items, int concurrency,
+                                                 Function<T, CompletableFuture<R>> task) {
+        CompletableFuture<List<R>> done = new CompletableFuture<>();
+        if (items.isEmpty()) {
+            done.complete(new ArrayList<>());
+            return done;
+        }
+
+        AtomicReferenceArray<R> results = new AtomicReferenceArray<>(items.size());
+        AtomicInteger nextIndex = new AtomicInteger(0);
+        AtomicInteger remaining = new AtomicInteger(items.size());
+
+        int workers = Math.max(1, Math.min(concurrency, items.size()));
+        for (int i = 0; i < workers; i++) {
+            startNext(items, task, results, nextIndex, remaining, done);
+        }
+        return done;
+    }
+
+    /**
+     * 依序啟動工作直到有一個尚未完成；已完成的工作（例如直接回傳 completedFuture）在迴圈中處理，不會遞迴加深堆疊
+     */
+    private static <T, R> void startNext(List<T> items, Function<T, CompletableFuture<R>> task,
+                                         AtomicReferenceArray<R> results, AtomicInteger nextIndex,
+                                         AtomicInteger remaining, CompletableFuture<List<R>> done) {
+        int index;
+        while ((index = nextIndex.getAndIncrement()) < items.size()) {
+            CompletableFuture<R> future;
+            try {
+                future = task.apply(items.get(index));
+            } catch (Exception e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+
+            int current = index;
+            if (!future.isDone()) {
+                // 工作完成時由完成它的執行緒接著啟動下一個
+                future.whenComplete((result, error) -> {
+                    record(items, results, current, result, error, remaining, done);
+                    startNext(items, task, results, nextIndex, remaining, done);
+                });
+                return;
+            }
+            future.whenComplete((result, error) -> record(items, results, current, result, error, remaining, done));
+        }
+    }
+
+    private static <T, R> void record(List<T> items, AtomicReferenceArray<R> results, int index, R result, Throwable error,
+                                      AtomicInteger remaining, CompletableFuture<List<R>> done) {
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            System.err.println("[BATCH] 第 " + (index + 1) + " 筆工作失敗 (" + items.get(index) + "): " + cause);
+        }
+        results.set(index, result);
+        if (remaining.decrementAndGet() == 0) {
+            List<R> ordered = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++) {
+                ordered.add(results.get(i));
+            }
+            done.complete(ordered);
+        }
+    }
+}
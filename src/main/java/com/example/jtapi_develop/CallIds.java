@@ -0,0 +1,37 @@
+package com.example.jtapi_develop;
+
+import com.avaya.jtapi.tsapi.ITsapiCallIDPrivate;
+import javax.telephony.Call;
+
+/**
+ * 通話識別工具 - Avaya 每次 getCall() 都會建立新的 Call 包裝物件，不能用 == 判斷是否同一通電話
+ * 比對用 equals（底層 TSCall 相同即相等），當作 Map 鍵時用 TSAPI call ID（TsapiCall.hashCode 全部相同）
+ */
+final class CallIds {
+
+    private CallIds() {
+    }
+
+    /**
+     * 是否為同一通電話
+     */
+    static boolean sameCall(Call a, Call b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        return a.equals(b);
+    }
+
+    /**
+     * 當作 Map 鍵的通話識別：有 TSAPI call ID 時用 call ID，否則（尚未建立或非 Avaya 實作）用 Call 本身
+     */
+    static Object key(Call call) {
+        if (call instanceof ITsapiCallIDPrivate) {
+            try {
+                int callId = ((ITsapiCallIDPrivate) call).getTsapiCallID();
+                if (callId != 0) return callId;
+            } catch (Exception ignored) {
+            }
+        }
+        return call;
+    }
+}
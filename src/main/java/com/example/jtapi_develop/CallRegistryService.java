@@ -0,0 +1,558 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import javax.telephony.*;
+import javax.telephony.callcontrol.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * 通話登記服務 - 由 JTAPI 通話事件逐步維護每個分機的終端連線與狀態
+ * 查詢直接讀取記憶體中的快照，不需要每次向交換機查詢 getTerminalConnections()
+ * 每個分機依持有者（直接登入、SSE 訂閱）計數，單次查詢只留一段閒置期限；都沒有時停止追蹤並移除終端監聽器
+ */
+@Service
+public class CallRegistryService {
+
+    /**
+     * 直接登入的分機持有追蹤，登出時釋放
+     */
+    public static final String LOGIN_HOLDER = "login";
+
+    @Autowired
+    private PhoneCallService phoneCallService;
+
+    // 只被查詢過（沒有持有者）的分機，超過這段時間沒有再查詢就停止追蹤
+    @Value("${call.registry.query-idle-seconds:60}")
+    private long queryIdleSeconds;
+
+    /**
+     * 單一終端連線的狀態
+     */
+    public static class CallEntry {
+        public final TerminalConnection terminalConnection;
+        public final Call call;
+        public final int state;              // TerminalConnection 核心狀態
+        public final int callControlState;   // CallControlTerminalConnection 狀態，不支援時為 -1
+        public final long since;             // 進入目前狀態的時間
+
+        CallEntry(TerminalConnection terminalConnection, Call call, int state, int callControlState, long since) {
+            this.terminalConnection = terminalConnection;
+            this.call = call;
+            this.state = state;
+            this.callControlState = callControlState;
+            this.since = since;
+        }
+
+        public boolean isRinging() {
+            return state == TerminalConnection.RINGING || callControlState == CallControlTerminalConnection.RINGING;
+        }
+
+        public boolean isHeld() {
+            return callControlState == CallControlTerminalConnection.HELD;
+        }
+    }
+
+    /**
+     * 分機通話快照（不可變，每次事件後整份替換）
+     */
+    public static class CallSnapshot {
+        public final String extension;
+        public final List<CallEntry> entries;
+        public final Call activeCall;        // 第一個 ACTIVE 的通話
+        public final int activeCount;
+        public final int heldCount;
+        public final int ringingCount;
+        public final long version;
+        public final long updatedTime;
+
+        CallSnapshot(String extension, List<CallEntry> entries, long version) {
+            this.extension = extension;
+            this.entries = Collections.unmodifiableList(entries);
+            this.version = version;
+            this.updatedTime = System.currentTimeMillis();
+
+            Call firstActive = null;
+            int active = 0, held = 0, ringing = 0;
+            for (CallEntry entry : entries) {
+                if (entry.state == TerminalConnection.ACTIVE) {
+                    active++;
+                    if (firstActive == null) firstActive = entry.call;
+                }
+                if (entry.isHeld()) held++;
+                if (entry.isRinging()) ringing++;
+            }
+            this.activeCall = firstActive;
+            this.activeCount = active;
+            this.heldCount = held;
+            this.ringingCount = ringing;
+        }
+
+        public boolean hasActiveCall() {
+            return activeCount > 0;
+        }
+
+        public boolean hasHeldCall() {
+            return heldCount > 0;
+        }
+
+        public Call[] getCalls() {
+            Call[] calls = new Call[entries.size()];
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] = entries.get(i).call;
+            }
+            return calls;
+        }
+    }
+
+    /**
+     * 追蹤中的分機終端
+     */
+    private class TrackedTerminal {
+        final String extension;
+        final Terminal terminal;
+        final String terminalName;
+        final RegistryCallListener listener;
+        final Provider provider;
+        final Map<TerminalConnection, CallEntry> entries = new LinkedHashMap<>();
+        final AtomicLong eventCount = new AtomicLong();
+        final Set<Object> holders = ConcurrentHashMap.newKeySet();
+        volatile long lastQueried;    // 最後一次經由 snapshotFor 查詢的時間
+        volatile CallSnapshot snapshot;
+        volatile boolean stale;       // Provider 中斷期間收不到事件，快照不可信
+        long version = 0;
+
+        TrackedTerminal(String extension, Terminal terminal) {
+            this.extension = extension;
+            this.terminal = terminal;
+            this.terminalName = terminal.getName();
+            this.provider = terminal.getProvider();
+            this.listener = new RegistryCallListener(this);
+            this.snapshot = new CallSnapshot(extension, new ArrayList<>(), 0);
+        }
+
+        boolean isOwnTerminalConnection(TerminalConnection tc) {
+            Terminal tcTerminal = tc.getTerminal();
+            return tcTerminal == terminal || (tcTerminal != null && terminalName.equals(tcTerminal.getName()));
+        }
+
+        /**
+         * 依終端連線目前的狀態更新登記
+         */
+        void update(TerminalConnection tc) {
+            if (tc == null || !isOwnTerminalConnection(tc)) return;
+
+            CallSnapshot changed;
+            synchronized (this) {
+                int state = tc.getState();
+                int ccState = tc instanceof CallControlTerminalConnection
+                        ? ((CallControlTerminalConnection) tc).getCallControlState() : -1;
+
+                CallEntry existing = entries.get(tc);
+                if (state == TerminalConnection.DROPPED) {
+                    if (entries.remove(tc) == null) return;
+                } else if (existing != null && existing.state == state && existing.callControlState == ccState) {
+                    return;
+                } else {
+                    entries.put(tc, new CallEntry(tc, tc.getConnection().getCall(), state, ccState,
+                            System.currentTimeMillis()));
+                }
+                changed = rebuild();
+            }
+            publish(changed);
+        }
+
+        /**
+         * 通話失效時移除它在此終端的所有連線
+         */
+        void removeCall(Call call) {
+            CallSnapshot changed;
+            synchronized (this) {
+                if (!entries.values().removeIf(entry -> CallIds.sameCall(entry.call, call))) return;
+                changed = rebuild();
+            }
+            publish(changed);
+        }
+
+        /**
+         * 以目前終端上的連線重建登記（開始追蹤或重連後使用）
+         */
+        void seed() {
+            CallSnapshot changed;
+            synchronized (this) {
+                entries.clear();
+                TerminalConnection[] termConnections = terminal.getTerminalConnections();
+                if (termConnections != null) {
+                    for (TerminalConnection tc : termConnections) {
+                        int state = tc.getState();
+                        if (state == TerminalConnection.DROPPED) continue;
+                        int ccState = tc instanceof CallControlTerminalConnection
+                                ? ((CallControlTerminalConnection) tc).getCallControlState() : -1;
+                        entries.put(tc, new CallEntry(tc, tc.getConnection().getCall(), state, ccState,
+                                System.currentTimeMillis()));
+                    }
+                }
+                stale = false;
+                changed = rebuild();
+            }
+            publish(changed);
+        }
+
+        private CallSnapshot rebuild() {
+            snapshot = new CallSnapshot(extension, new ArrayList<>(entries.values()), ++version);
+            return snapshot;
+        }
+    }
+
+    /**
+     * 終端通話事件監聽器，所有終端連線事件都轉成一次狀態更新
+     */
+    private class RegistryCallListener implements CallControlTerminalConnectionListener {
+        private final TrackedTerminal tracked;
+
+        RegistryCallListener(TrackedTerminal tracked) {
+            this.tracked = tracked;
+        }
+
+        private void onTerminalConnection(TerminalConnectionEvent event) {
+            tracked.eventCount.incrementAndGet();
+            try {
+                tracked.update(event.getTerminalConnection());
+            } catch (Exception e) {
+                System.err.println("[CALL_REGISTRY] 分機 " + tracked.extension + " 更新失敗: " + e.getMessage());
+            }
+        }
+
+        // CallControlTerminalConnectionListener
+        @Override public void terminalConnectionBridged(CallControlTerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionDropped(CallControlTerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionHeld(CallControlTerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionInUse(CallControlTerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionRinging(CallControlTerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionTalking(CallControlTerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionUnknown(CallControlTerminalConnectionEvent event) { onTerminalConnection(event); }
+
+        // TerminalConnectionListener
+        @Override public void terminalConnectionActive(TerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionCreated(TerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionDropped(TerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionPassive(TerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionRinging(TerminalConnectionEvent event) { onTerminalConnection(event); }
+        @Override public void terminalConnectionUnknown(TerminalConnectionEvent event) { onTerminalConnection(event); }
+
+        // CallControlConnectionListener（連線層級事件不影響終端狀態）
+        @Override public void connectionAlerting(CallControlConnectionEvent event) {}
+        @Override public void connectionDialing(CallControlConnectionEvent event) {}
+        @Override public void connectionDisconnected(CallControlConnectionEvent event) {}
+        @Override public void connectionEstablished(CallControlConnectionEvent event) {}
+        @Override public void connectionFailed(CallControlConnectionEvent event) {}
+        @Override public void connectionInitiated(CallControlConnectionEvent event) {}
+        @Override public void connectionNetworkAlerting(CallControlConnectionEvent event) {}
+        @Override public void connectionNetworkReached(CallControlConnectionEvent event) {}
+        @Override public void connectionOffered(CallControlConnectionEvent event) {}
+        @Override public void connectionQueued(CallControlConnectionEvent event) {}
+        @Override public void connectionUnknown(CallControlConnectionEvent event) {}
+
+        // ConnectionListener
+        @Override public void connectionAlerting(ConnectionEvent event) {}
+        @Override public void connectionConnected(ConnectionEvent event) {}
+        @Override public void connectionCreated(ConnectionEvent event) {}
+        @Override public void connectionDisconnected(ConnectionEvent event) {}
+        @Override public void connectionFailed(ConnectionEvent event) {}
+        @Override public void connectionInProgress(ConnectionEvent event) {}
+        @Override public void connectionUnknown(ConnectionEvent event) {}
+
+        // CallListener
+        @Override public void callActive(CallEvent event) {}
+        @Override public void callInvalid(CallEvent event) { tracked.removeCall(event.getCall()); }
+        @Override public void callEventTransmissionEnded(CallEvent event) {}
+        @Override public void singleCallMetaProgressStarted(MetaEvent event) {}
+        @Override public void singleCallMetaProgressEnded(MetaEvent event) {}
+        @Override public void singleCallMetaSnapshotStarted(MetaEvent event) {}
+        @Override public void singleCallMetaSnapshotEnded(MetaEvent event) {}
+        @Override public void multiCallMetaMergeStarted(MetaEvent event) {}
+        @Override public void multiCallMetaMergeEnded(MetaEvent event) {}
+        @Override public void multiCallMetaTransferStarted(MetaEvent event) {}
+        @Override public void multiCallMetaTransferEnded(MetaEvent event) {}
+    }
+
+    // 分機 -> 追蹤中的終端
+    private final ConcurrentHashMap<String, TrackedTerminal> trackedTerminals = new ConcurrentHashMap<>();
+
+    // 快照變化的訂閱者
+    private final List<BiConsumer<String, CallSnapshot>> changeListeners = new CopyOnWriteArrayList<>();
+
+    // 依序通知訂閱者（不佔用 JTAPI 事件執行緒），並定時清除閒置的追蹤
+    private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "call-registry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        // Provider 重連後終端物件會換掉，重新掛上監聽器
+        phoneCallService.addReconnectHook(provider -> retrackAll());
+        long sweepSeconds = Math.max(1, queryIdleSeconds / 2);
+        dispatcher.scheduleAtFixedRate(this::releaseIdle, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+    }
+
+    /**
+     * 取得分機的通話快照，尚未追蹤或終端已更換時先開始追蹤；無法追蹤時回傳 null
+     * 只經由查詢追蹤的分機在閒置 query-idle-seconds 後自動停止追蹤
+     */
+    public CallSnapshot snapshotFor(String extension, Terminal terminal) {
+        TrackedTerminal tracked = trackedTerminals.get(extension);
+        if (tracked == null || tracked.terminal != terminal) {
+            if (!track(extension, terminal, null)) return null;
+            tracked = trackedTerminals.get(extension);
+            if (tracked == null) return null;
+        }
+        tracked.lastQueried = System.currentTimeMillis();
+        return tracked.stale ? null : tracked.snapshot;
+    }
+
+    /**
+     * 取得已追蹤分機的通話快照，未追蹤或 Provider 中斷中（快照過期）時回傳 null
+     */
+    public CallSnapshot getSnapshot(String extension) {
+        TrackedTerminal tracked = trackedTerminals.get(extension);
+        return tracked != null && !tracked.stale ? tracked.snapshot : null;
+    }
+
+    /**
+     * Provider 中斷時把使用它的分機快照標記為過期，重連後重新同步才恢復
+     */
+    public void markStale(Provider provider) {
+        for (TrackedTerminal tracked : trackedTerminals.values()) {
+            if (tracked.provider == provider && !tracked.stale) {
+                tracked.stale = true;
+                System.out.println("[CALL_REGISTRY] 分機 " + tracked.extension + " 的 Provider 中斷，通話快照標記為過期");
+            }
+        }
+    }
+
+    /**
+     * 找出分機上指定通話正在響鈴的終端連線（直接讀登記，不查詢終端）；未追蹤或沒有響鈴時回傳 null
+     */
+    public TerminalConnection findRingingConnection(String extension, Call call) {
+        CallSnapshot snapshot = getSnapshot(extension);
+        if (snapshot == null || call == null) return null;
+        for (CallEntry entry : snapshot.entries) {
+            if (entry.isRinging() && CallIds.sameCall(entry.call, call)) {
+                return entry.terminalConnection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 開始追蹤分機終端的通話事件並登記持有者（null 表示只是查詢）；已追蹤但終端更換時連同持有者一起移到新終端
+     */
+    public boolean track(String extension, Terminal terminal, Object holder) {
+        if (terminal == null) return false;
+
+        synchronized (trackedTerminals) {
+            TrackedTerminal existing = trackedTerminals.get(extension);
+            if (existing != null && existing.terminal == terminal) {
+                if (holder != null) existing.holders.add(holder);
+                return true;
+            }
+
+            TrackedTerminal tracked = new TrackedTerminal(extension, terminal);
+            if (existing != null) {
+                tracked.holders.addAll(existing.holders);
+            }
+            if (holder != null) tracked.holders.add(holder);
+            tracked.lastQueried = System.currentTimeMillis();
+            try {
+                terminal.addCallListener(tracked.listener);
+                tracked.seed();
+            } catch (Exception e) {
+                System.err.println("[CALL_REGISTRY] 無法追蹤分機 " + extension + ": " + e.getMessage());
+                try {
+                    terminal.removeCallListener(tracked.listener);
+                } catch (Exception ignored) {
+                }
+                return false;
+            }
+
+            if (existing != null) {
+                detach(existing);
+            }
+            trackedTerminals.put(extension, tracked);
+            System.out.println("[CALL_REGISTRY] 開始追蹤分機 " + extension + "，目前通話數: " + tracked.snapshot.entries.size());
+            return true;
+        }
+    }
+
+    /**
+     * 已追蹤的分機加上持有者，未追蹤時回傳 false（由呼叫端取得終端後呼叫 track）
+     */
+    public boolean hold(String extension, Object holder) {
+        synchronized (trackedTerminals) {
+            TrackedTerminal tracked = trackedTerminals.get(extension);
+            if (tracked == null) return false;
+            tracked.holders.add(holder);
+            return true;
+        }
+    }
+
+    /**
+     * 釋放持有者，最後一個持有者離開且近期沒有查詢時停止追蹤
+     */
+    public void release(String extension, Object holder) {
+        synchronized (trackedTerminals) {
+            TrackedTerminal tracked = trackedTerminals.get(extension);
+            if (tracked != null && tracked.holders.remove(holder) && isIdle(tracked, System.currentTimeMillis())) {
+                untrack(extension);
+            }
+        }
+    }
+
+    /**
+     * 停止追蹤分機（不論持有者）
+     */
+    public void untrack(String extension) {
+        synchronized (trackedTerminals) {
+            TrackedTerminal tracked = trackedTerminals.remove(extension);
+            if (tracked != null) {
+                detach(tracked);
+                System.out.println("[CALL_REGISTRY] 停止追蹤分機 " + extension);
+            }
+        }
+    }
+
+    /**
+     * 訂閱通話快照變化（分機, 新快照）
+     */
+    public void addChangeListener(BiConsumer<String, CallSnapshot> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * 查看登記狀態
+     */
+    public String getRegistryStatus() {
+        if (trackedTerminals.isEmpty()) {
+            return "目前沒有追蹤中的分機";
+        }
+
+        StringBuilder status = new StringBuilder("=== 通話登記 ===\n");
+        for (TrackedTerminal tracked : trackedTerminals.values()) {
+            CallSnapshot snapshot = tracked.snapshot;
+            status.append("分機 ").append(tracked.extension)
+                  .append(" - 通話: ").append(snapshot.entries.size())
+                  .append("，通話中: ").append(snapshot.activeCount)
+                  .append("，保持: ").append(snapshot.heldCount)
+                  .append("，響鈴: ").append(snapshot.ringingCount)
+                  .append("，事件數: ").append(tracked.eventCount.get())
+                  .append("，持有者: ").append(tracked.holders.size())
+                  .append(tracked.stale ? " (過期，等待重連)" : "").append("\n");
+        }
+        return status.toString();
+    }
+
+    /**
+     * 重連後為所有追蹤中的分機換上新的終端
+     */
+    private void retrackAll() {
+        for (String extension : new ArrayList<>(trackedTerminals.keySet())) {
+            retrack(extension);
+        }
+    }
+
+    /**
+     * 依分機目前的連線（直接登入或 CTI 代理）重新追蹤，保留原有的持有者；終端沒換時只重新同步
+     */
+    public void retrack(String extension) {
+        TrackedTerminal existing = trackedTerminals.get(extension);
+        if (existing == null) return;
+
+        PhoneCallService.ExtensionConnection conn = phoneCallService.getExtensionConnection(extension);
+        if (conn != null && existing.terminal == conn.terminal) {
+            // Provider 自行恢復，終端沒換，只需重新同步中斷期間的狀態
+            try {
+                existing.seed();
+                return;
+            } catch (Exception e) {
+                System.err.println("[CALL_REGISTRY] 分機 " + extension + " 重新同步失敗: " + e.getMessage());
+            }
+        }
+        if (conn != null && conn.terminal != null && track(extension, conn.terminal, null)) {
+            System.out.println("[CALL_REGISTRY] 分機 " + extension + " 已重新追蹤");
+        } else {
+            untrack(extension);
+        }
+    }
+
+    /**
+     * 停止追蹤沒有持有者、且閒置超過期限的分機
+     */
+    private void releaseIdle() {
+        try {
+            long now = System.currentTimeMillis();
+            synchronized (trackedTerminals) {
+                for (TrackedTerminal tracked : new ArrayList<>(trackedTerminals.values())) {
+                    if (isIdle(tracked, now)) {
+                        untrack(tracked.extension);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("[CALL_REGISTRY] 清除閒置追蹤失敗: " + e.getMessage());
+        }
+    }
+
+    private boolean isIdle(TrackedTerminal tracked, long now) {
+        return tracked.holders.isEmpty() && now - tracked.lastQueried >= queryIdleSeconds * 1000;
+    }
+
+    private void detach(TrackedTerminal tracked) {
+        try {
+            tracked.terminal.removeCallListener(tracked.listener);
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * 在登記自己的執行緒上依序通知訂閱者，JTAPI 事件執行緒只負責更新快照
+     */
+    private void publish(CallSnapshot snapshot) {
+        if (changeListeners.isEmpty()) return;
+        try {
+            dispatcher.execute(() -> {
+                for (BiConsumer<String, CallSnapshot> listener : changeListeners) {
+                    try {
+                        listener.accept(snapshot.extension, snapshot);
+                    } catch (Exception e) {
+                        System.err.println("[CALL_REGISTRY] 通知快照變化失敗: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 應用程式關閉中
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 執行緒設定 - 登入等會阻塞在 JTAPI 上的背景工作使用的執行器
+ * 一律使用平台執行緒：TSAPI 在 synchronized 區塊內等待交換機回應，虛擬執行緒會被釘在載體執行緒上，
+ * 同時進行的 JTAPI 往返最多只有載體執行緒數（見 ThreadModeLoadTest）
+ * spring.threads.virtual.enabled 只影響 Tomcat 請求執行緒
+ */
+@Configuration
+public class ExecutorConfig {
+
+    @Value("${jtapi.executor.platform-threads:200}")
+    private int platformThreads;
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService jtapiExecutor() {
+        System.out.println("[EXECUTOR] JTAPI 背景工作使用平台執行緒，上限 " + platformThreads);
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(platformThreads, r -> {
+            Thread thread = new Thread(r, "jtapi-worker-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 分機信箱 - 同一分機的操作依序逐一執行，不同分機之間完全並行
+ * 每個有工作的分機由一條信箱執行緒（平台執行緒，JTAPI 阻塞不會釘住載體）依序執行，呼叫端只等待自己的結果；
+ * 佇列清空時信箱即移除，閒置分機不佔用執行緒也不留在表中
+ * 在信箱內再呼叫同一分機的操作會直接執行（可重入）；信箱之間互相等待時立即拋出例外
+ */
+@Component
+final class ExtensionMailbox {
+
+    /**
+     * 排隊中的操作，開始執行或因等待逾時取消後就不會再被執行
+     */
+    private static final class Task {
+        final Runnable action;
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        Task(Runnable action) {
+            this.action = action;
+        }
+    }
+
+    // 分機 -> 排隊中的操作；只在 mailboxes.compute 內存取，信箱存在代表有一條執行緒正在處理它
+    private final ConcurrentHashMap<String, ArrayDeque<Task>> mailboxes = new ConcurrentHashMap<>();
+
+    // 信箱執行緒 -> 正在等待的其他分機，用來偵測互相等待
+    private final Map<String, String> waitingOn = new HashMap<>();
+
+    // 目前執行緒正在處理的分機（只有信箱執行緒會設定）
+    private static final ThreadLocal<String> CURRENT_EXTENSION = new ThreadLocal<>();
+
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "extension-mailbox-" + threadCounter.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 呼叫端最多等待多久讓操作開始執行，逾時就取消排隊中的操作
+    @Value("${phone.mailbox.wait-seconds:30}")
+    private long waitSeconds = 30;
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * 在分機的信箱中執行操作並等待結果
+     */
+    <T> T call(String extension, Supplier<T> action) {
+        String current = CURRENT_EXTENSION.get();
+        if (extension.equals(current)) {
+            return action.get();
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Task task = new Task(() -> {
+            try {
+                result.complete(action.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        if (current != null) {
+            beginWait(current, extension);
+        }
+        try {
+            submit(extension, task);
+            return await(extension, task, result);
+        } finally {
+            if (current != null) {
+                endWait(current);
+            }
+        }
+    }
+
+    /**
+     * 排隊中的操作數
+     */
+    int getQueueDepth(String extension) {
+        int[] depth = new int[1];
+        mailboxes.computeIfPresent(extension, (k, queue) -> {
+            depth[0] = queue.size();
+            return queue;
+        });
+        return depth[0];
+    }
+
+    /**
+     * 分機目前是否有信箱（有操作在執行或排隊）
+     */
+    boolean isActive(String extension) {
+        return mailboxes.containsKey(extension);
+    }
+
+    private void submit(String extension, Task task) {
+        boolean[] start = new boolean[1];
+        mailboxes.compute(extension, (k, queue) -> {
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                start[0] = true;
+            }
+            queue.add(task);
+            return queue;
+        });
+        if (start[0]) {
+            workers.execute(() -> drain(extension));
+        }
+    }
+
+    /**
+     * 信箱執行緒：依序執行到佇列清空，清空時連同信箱一起移除
+     */
+    private void drain(String extension) {
+        CURRENT_EXTENSION.set(extension);
+        try {
+            Task task;
+            while ((task = next(extension)) != null) {
+                if (task.claimed.compareAndSet(false, true)) {
+                    task.action.run();
+                }
+            }
+        } finally {
+            CURRENT_EXTENSION.remove();
+        }
+    }
+
+    private Task next(String extension) {
+        Task[] next = new Task[1];
+        mailboxes.computeIfPresent(extension, (k, queue) -> {
+            next[0] = queue.poll();
+            return next[0] != null ? queue : null;
+        });
+        return next[0];
+    }
+
+    private <T> T await(String extension, Task task, CompletableFuture<T> result) {
+        try {
+            try {
+                return result.get(waitSeconds, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                if (task.claimed.compareAndSet(false, true)) {
+                    throw new IllegalStateException("分機 " + extension + " 的操作排隊超過 " + waitSeconds + " 秒，已取消");
+                }
+                // 已經開始執行，等它完成
+                return result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.claimed.compareAndSet(false, true);
+            throw new IllegalStateException("等待分機 " + extension + " 的操作時被中斷");
+        }
+    }
+
+    /**
+     * 信箱執行緒要等待另一個分機前先檢查對方（或對方等待的分機）是否正在等自己
+     */
+    private void beginWait(String from, String to) {
+        synchronized (waitingOn) {
+            for (String next = to; next != null; next = waitingOn.get(next)) {
+                if (next.equals(from)) {
+                    throw new IllegalStateException("分機 " + from + " 與分機 " + to + " 的操作互相等待");
+                }
+            }
+            waitingOn.put(from, to);
+        }
+    }
+
+    private void endWait(String from) {
+        synchronized (waitingOn) {
+            waitingOn.remove(from);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.jtapi_develop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * 固定容量的日誌環形緩衝區 - 寫入不加鎖，滿了直接覆蓋最舊的一筆
+ * 只記錄時間戳與訊息的產生方式，訊息組字與時間格式化都留到讀取時才做
+ */
+final class LogRingBuffer {
+
+    /**
+     * 一筆日誌
+     */
+    static final class Entry {
+        final long sequence;
+        final long timestamp;
+        private Supplier<String> messageSupplier;
+        private String message;
+
+        Entry(long sequence, long timestamp, Supplier<String> messageSupplier) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.messageSupplier = messageSupplier;
+        }
+
+        /**
+         * 第一次讀取時才組出訊息，之後沿用
+         */
+        synchronized String message() {
+            if (messageSupplier != null) {
+                message = messageSupplier.get();
+                messageSupplier = null;
+            }
+            return message;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    LogRingBuffer(int capacity) {
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    void add(String message) {
+        add(() -> message);
+    }
+
+    void add(Supplier<String> message) {
+        long sequence = nextSequence.getAndIncrement();
+        slots.set((int) (sequence % slots.length()), new Entry(sequence, System.currentTimeMillis(), message));
+    }
+
+    /**
+     * 依寫入順序取出目前保留的日誌；讀取期間被覆蓋的位置直接略過
+     */
+    List<Entry> snapshot() {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - slots.length());
+        List<Entry> entries = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            Entry entry = slots.get((int) (sequence % slots.length()));
+            if (entry != null && entry.sequence == sequence) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+}
@@ -55,6 +55,15 @@ public class MethodLogController {
         return methodLogService.getMethodStatistics();
     }
     
+    /**
+     * 獲取方法統計 (JSON)
+     * GET /api/method-log/statistics?format=json
+     */
+    @GetMapping(value = "/statistics", params = "format=json")
+    public java.util.Map<String, java.util.Map<String, Long>> getStatisticsJson() {
+        return methodLogService.getMethodCounts();
+    }
+    
     /**
      * 清除所有記錄
      * GET /api/method-log/clear
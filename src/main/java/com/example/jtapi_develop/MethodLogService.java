@@ -227,6 +227,16 @@ public class MethodLogService {
         return result.toString();
     }
     
+    /**
+     * 獲取方法使用統計（功能 -> 方法 -> 次數）
+     */
+    public java.util.Map<String, java.util.Map<String, Long>> getMethodCounts() {
+        return successLogs.stream()
+                .collect(java.util.stream.Collectors.groupingBy(entry -> entry.function, java.util.TreeMap::new,
+                        java.util.stream.Collectors.groupingBy(entry -> entry.method, java.util.TreeMap::new,
+                                java.util.stream.Collectors.counting())));
+    }
+    
     /**
      * 清除所有記錄
      */
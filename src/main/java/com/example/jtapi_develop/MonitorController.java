@@ -76,6 +76,15 @@ public class MonitorController {
         return monitorService.getAllMonitorSessions();
     }
     
+    /**
+     * 查看所有監聽中的會話 (JSON)
+     * GET /api/monitor/all-sessions?format=json
+     */
+    @GetMapping(value = "/all-sessions", params = "format=json")
+    public java.util.List<MonitorService.DetectedMonitorSession> getAllMonitorSessionsJson() {
+        return monitorService.getDetectedMonitorSessions();
+    }
+    
     /**
      * 掛斷監聽/闖入通話
      * GET /api/monitor/hangup?supervisorExtension=1001
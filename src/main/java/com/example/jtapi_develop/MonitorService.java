@@ -8,6 +8,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.Date;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 @Service
 public class MonitorService {
@@ -15,6 +17,16 @@ public class MonitorService {
     @Autowired
     private PhoneCallService phoneCallService;
     
+    /**
+     * 從 Server 偵測到的可能監聽會話（JSON 格式用）
+     */
+    public static class DetectedMonitorSession {
+        public String supervisorExtension;
+        public int connectionState;
+        public int callState;
+        public List<String> participants = new ArrayList<>();
+    }
+    
     /**
      * 監聽會話類
      */
@@ -57,6 +69,33 @@ public class MonitorService {
     // 存儲監聽會話
     private final ConcurrentHashMap<String, MonitorSession> monitorSessions = new ConcurrentHashMap<>();
     
+    // 監聽會話變化的訂閱者（參數為監督者分機）
+    private final List<Consumer<String>> sessionChangeListeners = new CopyOnWriteArrayList<>();
+    
+    /**
+     * 訂閱監聽會話變化
+     */
+    public void addSessionChangeListener(Consumer<String> listener) {
+        sessionChangeListeners.add(listener);
+    }
+    
+    /**
+     * 取得監督者目前的監聽會話，沒有時回傳 null
+     */
+    public MonitorSession getMonitorSession(String supervisorExtension) {
+        return monitorSessions.get(supervisorExtension);
+    }
+    
+    private void notifySessionChanged(String supervisorExtension) {
+        for (Consumer<String> listener : sessionChangeListeners) {
+            try {
+                listener.accept(supervisorExtension);
+            } catch (Exception e) {
+                System.err.println("[MONITOR] 通知會話變化失敗: " + e.getMessage());
+            }
+        }
+    }
+    
     /**
      * 查詢可監聽的通話
      */
@@ -170,6 +209,7 @@ public class MonitorService {
             if (success) {
                 session.isActive = true;
                 monitorSessions.put(supervisorExtension, session);
+                notifySessionChanged(supervisorExtension);
                 
                 System.out.println("[MONITOR] 監聽會話已建立，準備回傳成功訊息");
                 
@@ -203,6 +243,7 @@ public class MonitorService {
             
             // 清理本地記錄（如果有的話）
             monitorSessions.remove(supervisorExtension);
+            notifySessionChanged(supervisorExtension);
             
             if (success) {
                 return "監聽停止指令已執行\n" +
@@ -253,6 +294,7 @@ public class MonitorService {
                 session.isActive = true;
                 // 簡化：僅用於追蹤，不依賴此狀態做判斷
                 monitorSessions.put(supervisorExtension, session);
+                notifySessionChanged(supervisorExtension);
                 
                 return "通話闖入成功\n" +
                        "監督者: " + supervisorExtension + "\n" +
@@ -304,6 +346,7 @@ public class MonitorService {
                 session.isActive = true;
                 // 簡化：僅用於追蹤，不依賴此狀態做判斷
                 monitorSessions.put(supervisorExtension, session);
+                notifySessionChanged(supervisorExtension);
                 
                 return "教練模式已啟動\n" +
                        "監督者: " + supervisorExtension + "\n" +
@@ -483,6 +526,53 @@ public class MonitorService {
         }
     }
     
+    /**
+     * 查看所有監聽會話（結構化結果，判斷方式與文字版相同）
+     */
+    public List<DetectedMonitorSession> getDetectedMonitorSessions() {
+        List<DetectedMonitorSession> sessions = new ArrayList<>();
+        
+        for (var entry : phoneCallService.getAllExtensionConnections().entrySet()) {
+            String extension = entry.getKey();
+            try {
+                TerminalConnection[] termConnections = entry.getValue().terminal.getTerminalConnections();
+                if (termConnections == null) continue;
+                
+                for (TerminalConnection termConn : termConnections) {
+                    try {
+                        Connection connection = termConn.getConnection();
+                        if (connection.getState() != Connection.CONNECTED && connection.getState() != Connection.INPROGRESS) {
+                            continue;
+                        }
+                        
+                        Call call = connection.getCall();
+                        Connection[] callConnections = call.getConnections();
+                        if (callConnections.length > 1) {
+                            DetectedMonitorSession session = new DetectedMonitorSession();
+                            session.supervisorExtension = extension;
+                            session.connectionState = connection.getState();
+                            session.callState = call.getState();
+                            for (Connection callConnection : callConnections) {
+                                try {
+                                    session.participants.add(callConnection.getAddress().getName());
+                                } catch (Exception e) {
+                                    session.participants.add(null);
+                                }
+                            }
+                            sessions.add(session);
+                            break; // 每個分機只處理一個監聽連線
+                        }
+                    } catch (Exception e) {
+                        // 忽略單個連線的錯誤
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("[MONITOR] 檢查分機 " + extension + " 時發生錯誤: " + e.getMessage());
+            }
+        }
+        return sessions;
+    }
+    
     // ========================================
     // 輔助方法
     // ========================================
@@ -717,6 +807,7 @@ public class MonitorService {
                 // 清理會話
                 session.isActive = false;
                 monitorSessions.remove(supervisorExtension);
+                notifySessionChanged(supervisorExtension);
                 
                 return "監聽/闖入通話已掛斷\n" +
                        "監督者: " + supervisorExtension + "\n" +
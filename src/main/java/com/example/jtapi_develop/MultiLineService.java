@@ -5,6 +5,7 @@ import org.springframework.stereotype.Service;
 import javax.telephony.*;
 import javax.telephony.callcontrol.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
@@ -15,6 +16,9 @@ public class MultiLineService {
     @Autowired
     private PhoneCallService phoneCallService;
     
+    @Autowired
+    private CallRegistryService callRegistryService;
+    
     /**
      * 通話線路狀態枚舉
      */
@@ -79,7 +83,7 @@ public class MultiLineService {
         
         public MultiLineSession(String extension) {
             this.extension = extension;
-            this.lines = new ArrayList<>();
+            this.lines = new CopyOnWriteArrayList<>();
             this.autoAnswerEnabled = false;
             this.maxLines = 6; // 預設最多6線
         }
@@ -125,6 +129,10 @@ public class MultiLineService {
         }
     }
     
+    // 同一分機的線路操作依序執行，不同分機互不影響（與 UnifiedPhoneService 共用同一組信箱）
+    @Autowired
+    private ExtensionMailbox lineMailbox;
+    
     // 存儲每個分機的多線會話
     private final ConcurrentHashMap<String, MultiLineSession> extensionSessions = new ConcurrentHashMap<>();
     
@@ -132,448 +140,488 @@ public class MultiLineService {
      * 接聽來電
      */
     public String answerIncomingCall(String extension) {
-        try {
-            System.out.println("[MULTILINE] 分機 " + extension + " 嘗試接聽來電");
-            
-            MultiLineSession session = getOrCreateSession(extension);
-            
-            // 查找響鈴的來電
-            List<CallLine> ringingLines = session.getRingingLines();
-            if (ringingLines.isEmpty()) {
-                // 如果沒有響鈴的線路，檢查是否有新來電
-                var conn = phoneCallService.getExtensionConnection(extension);
-                if (conn == null) {
-                    return "錯誤：分機 " + extension + " 未登入";
-                }
+        return lineMailbox.call(extension, () -> {
+            try {
+                System.out.println("[MULTILINE] 分機 " + extension + " 嘗試接聽來電");
                 
-                // 檢查終端是否有響鈴的連線
-                var extensionConn = (PhoneCallService.ExtensionConnection) conn;
-                if (extensionConn.terminal != null) {
-                    TerminalConnection[] termConnections = extensionConn.terminal.getTerminalConnections();
-                    if (termConnections != null) {
-                        for (TerminalConnection termConn : termConnections) {
-                            if (termConn.getState() == TerminalConnection.RINGING) {
-                                // 找到響鈴的通話，創建新線路
-                                Call incomingCall = termConn.getConnection().getCall();
-                                String remoteParty = findRemoteParty(incomingCall, extension);
-                                
-                                String lineId = session.generateNextLineId();
-                                CallLine newLine = new CallLine(lineId, incomingCall, remoteParty, true);
-                                session.lines.add(newLine);
-                                
-                                // 接聽電話
-                                if (termConn instanceof CallControlTerminalConnection) {
-                                    ((CallControlTerminalConnection) termConn).answer();
+                MultiLineSession session = getOrCreateSession(extension);
+                
+                // 查找響鈴的來電
+                List<CallLine> ringingLines = session.getRingingLines();
+                if (ringingLines.isEmpty()) {
+                    // 如果沒有響鈴的線路，檢查是否有新來電
+                    var conn = phoneCallService.getExtensionConnection(extension);
+                    if (conn == null) {
+                        return "錯誤：分機 " + extension + " 未登入";
+                    }
+                    
+                    // 檢查終端是否有響鈴的連線
+                    var extensionConn = (PhoneCallService.ExtensionConnection) conn;
+                    if (extensionConn.terminal != null) {
+                        TerminalConnection[] termConnections = findRingingConnections(extension, extensionConn.terminal);
+                        if (termConnections != null) {
+                            for (TerminalConnection termConn : termConnections) {
+                                if (termConn.getState() == TerminalConnection.RINGING) {
+                                    // 找到響鈴的通話，創建新線路
+                                    Call incomingCall = termConn.getConnection().getCall();
+                                    String remoteParty = findRemoteParty(incomingCall, extension);
+                                    
+                                    String lineId = session.generateNextLineId();
+                                    CallLine newLine = new CallLine(lineId, incomingCall, remoteParty, true);
+                                    session.lines.add(newLine);
+                                    
+                                    // 接聽電話
+                                    if (termConn instanceof CallControlTerminalConnection) {
+                                        ((CallControlTerminalConnection) termConn).answer();
+                                    }
+                                    
+                                    // 如果有其他活躍線路，先Hold它們
+                                    holdOtherActiveLines(session, lineId);
+                                    
+                                    newLine.state = LineState.ACTIVE;
+                                    session.activeLineId = lineId;
+                                    
+                                    System.out.println("[MULTILINE] 線路 " + lineId + " 接聽成功");
+                                    return "線路 " + lineId + " 接聽成功：來電從 " + remoteParty + 
+                                           "\n當前活躍線路數：" + session.getActiveLineCount();
                                 }
-                                
-                                // 如果有其他活躍線路，先Hold它們
-                                holdOtherActiveLines(session, lineId);
-                                
-                                newLine.state = LineState.ACTIVE;
-                                session.activeLineId = lineId;
-                                
-                                System.out.println("[MULTILINE] 線路 " + lineId + " 接聽成功");
-                                return "線路 " + lineId + " 接聽成功：來電從 " + remoteParty + 
-                                       "\n當前活躍線路數：" + session.getActiveLineCount();
                             }
                         }
                     }
+                    
+                    return "沒有找到響鈴的來電";
                 }
                 
-                return "沒有找到響鈴的來電";
-            }
-            
-            // 接聽第一個響鈴的來電
-            CallLine ringingLine = ringingLines.get(0);
-            
-            // 先Hold其他活躍線路
-            holdOtherActiveLines(session, ringingLine.lineId);
-            
-            // 接聽這條線路
-            if (ringingLine.call != null) {
-                Connection[] connections = ringingLine.call.getConnections();
-                for (Connection connection : connections) {
-                    if (connection.getAddress().getName().equals(extension)) {
-                        TerminalConnection[] termConns = connection.getTerminalConnections();
-                        for (TerminalConnection termConn : termConns) {
-                            if (termConn instanceof CallControlTerminalConnection) {
-                                ((CallControlTerminalConnection) termConn).answer();
-                                break;
+                // 接聽第一個響鈴的來電
+                CallLine ringingLine = ringingLines.get(0);
+                
+                // 先Hold其他活躍線路
+                holdOtherActiveLines(session, ringingLine.lineId);
+                
+                // 接聽這條線路（通話登記中有響鈴連線時直接接聽）
+                TerminalConnection trackedConnection = callRegistryService.findRingingConnection(extension, ringingLine.call);
+                if (trackedConnection != null) {
+                    trackedConnection.answer();
+                } else if (ringingLine.call != null) {
+                    Connection[] connections = ringingLine.call.getConnections();
+                    for (Connection connection : connections) {
+                        if (connection.getAddress().getName().equals(extension)) {
+                            TerminalConnection[] termConns = connection.getTerminalConnections();
+                            for (TerminalConnection termConn : termConns) {
+                                if (termConn instanceof CallControlTerminalConnection) {
+                                    ((CallControlTerminalConnection) termConn).answer();
+                                    break;
+                                }
                             }
+                            break;
                         }
-                        break;
                     }
                 }
+                
+                ringingLine.state = LineState.ACTIVE;
+                session.activeLineId = ringingLine.lineId;
+                
+                System.out.println("[MULTILINE] 線路 " + ringingLine.lineId + " 接聽成功");
+                return "線路 " + ringingLine.lineId + " 接聽成功：" + ringingLine.callDirection + 
+                       "\n當前活躍線路數：" + session.getActiveLineCount();
+                
+            } catch (Exception e) {
+                System.err.println("[MULTILINE] 接聽來電失敗: " + e.getMessage());
+                e.printStackTrace();
+                return "接聽來電失敗: " + e.getMessage();
             }
-            
-            ringingLine.state = LineState.ACTIVE;
-            session.activeLineId = ringingLine.lineId;
-            
-            System.out.println("[MULTILINE] 線路 " + ringingLine.lineId + " 接聽成功");
-            return "線路 " + ringingLine.lineId + " 接聽成功：" + ringingLine.callDirection + 
-                   "\n當前活躍線路數：" + session.getActiveLineCount();
-            
-        } catch (Exception e) {
-            System.err.println("[MULTILINE] 接聽來電失敗: " + e.getMessage());
-            e.printStackTrace();
-            return "接聽來電失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 撥打新電話
      */
     public String makeNewCall(String extension, String target) {
-        try {
-            System.out.println("[MULTILINE] 分機 " + extension + " 撥打新電話給 " + target);
-            
-            MultiLineSession session = getOrCreateSession(extension);
-            
-            // 檢查線路數量限制
-            if (session.getActiveLineCount() >= session.maxLines) {
-                return "錯誤：已達到最大線路數限制 (" + session.maxLines + ")";
-            }
-            
-            var conn = phoneCallService.getExtensionConnection(extension);
-            if (conn == null) {
-                return "錯誤：分機 " + extension + " 未登入";
-            }
-            var extensionConn = (PhoneCallService.ExtensionConnection) conn;
-            
-            // 先Hold當前活躍的線路
-            CallLine activeLine = session.findActiveeLine();
-            if (activeLine != null) {
-                holdLine(session, activeLine);
+        // 在信箱中建立通話和線路；等待撥號結果時不佔住信箱，同分機的其他操作可以先執行
+        CallLine[] dialed = new CallLine[1];
+        String error = lineMailbox.call(extension, () -> {
+            try {
+                System.out.println("[MULTILINE] 分機 " + extension + " 撥打新電話給 " + target);
+                
+                MultiLineSession session = getOrCreateSession(extension);
+                
+                // 檢查線路數量限制
+                if (session.getActiveLineCount() >= session.maxLines) {
+                    return "錯誤：已達到最大線路數限制 (" + session.maxLines + ")";
+                }
+                
+                var conn = phoneCallService.getExtensionConnection(extension);
+                if (conn == null) {
+                    return "錯誤：分機 " + extension + " 未登入";
+                }
+                var extensionConn = (PhoneCallService.ExtensionConnection) conn;
+                
+                // 先Hold當前活躍的線路
+                CallLine activeLine = session.findActiveeLine();
+                if (activeLine != null) {
+                    holdLine(session, activeLine);
+                }
+                
+                // 創建新通話
+                String lineId = session.generateNextLineId();
+                Call newCall = extensionConn.provider.createCall();
+                newCall.connect(extensionConn.terminal, extensionConn.address, target);
+                
+                // 創建新線路
+                CallLine newLine = new CallLine(lineId, newCall, target, false);
+                newLine.state = LineState.DIALING;
+                session.lines.add(newLine);
+                session.activeLineId = lineId;
+                
+                System.out.println("[MULTILINE] 新線路 " + lineId + " 撥打中");
+                dialed[0] = newLine;
+                return null;
+                
+            } catch (Exception e) {
+                System.err.println("[MULTILINE] 撥打新電話失敗: " + e.getMessage());
+                e.printStackTrace();
+                return "撥打新電話失敗: " + e.getMessage();
             }
-            
-            // 創建新通話
-            String lineId = session.generateNextLineId();
-            Call newCall = extensionConn.provider.createCall();
-            newCall.connect(extensionConn.terminal, extensionConn.address, target);
-            
-            // 創建新線路
-            CallLine newLine = new CallLine(lineId, newCall, target, false);
-            newLine.state = LineState.DIALING;
-            session.lines.add(newLine);
-            session.activeLineId = lineId;
-            
-            System.out.println("[MULTILINE] 新線路 " + lineId + " 撥打中");
-            
-            // 等待一下確定撥打狀態
+        });
+        if (error != null) {
+            return error;
+        }
+        
+        // 等待一下確定撥打狀態
+        try {
             Thread.sleep(1000);
-            
-            // 檢查通話狀態
-            Connection[] connections = newCall.getConnections();
-            boolean isConnected = false;
-            for (Connection connection : connections) {
-                if (connection.getState() == Connection.CONNECTED) {
-                    isConnected = true;
-                    break;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        return lineMailbox.call(extension, () -> {
+            CallLine newLine = dialed[0];
+            MultiLineSession session = getOrCreateSession(extension);
+            try {
+                // 檢查通話狀態
+                boolean isConnected = false;
+                for (Connection connection : newLine.call.getConnections()) {
+                    if (connection.getState() == Connection.CONNECTED) {
+                        isConnected = true;
+                        break;
+                    }
+                }
+                
+                // 等待期間線路可能已被其他操作掛斷或保持，只更新仍在撥號中的線路
+                if (isConnected && newLine.state == LineState.DIALING) {
+                    newLine.state = LineState.ACTIVE;
                 }
+            } catch (Exception e) {
+                System.err.println("[MULTILINE] 檢查撥號狀態失敗: " + e.getMessage());
             }
             
-            if (isConnected) {
-                newLine.state = LineState.ACTIVE;
-                return "線路 " + lineId + " 撥打成功：撥出到 " + target + 
+            if (newLine.state == LineState.ACTIVE) {
+                return "線路 " + newLine.lineId + " 撥打成功：撥出到 " + target + 
                        "\n當前活躍線路數：" + session.getActiveLineCount();
             } else {
-                newLine.state = LineState.DIALING;
-                return "線路 " + lineId + " 撥打中：撥出到 " + target + 
+                return "線路 " + newLine.lineId + " 撥打中：撥出到 " + target + 
                        "\n當前活躍線路數：" + session.getActiveLineCount();
             }
-            
-        } catch (Exception e) {
-            System.err.println("[MULTILINE] 撥打新電話失敗: " + e.getMessage());
-            e.printStackTrace();
-            return "撥打新電話失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * Hold 指定通話
      */
     public String holdCall(String extension, String lineId) {
-        try {
-            MultiLineSession session = extensionSessions.get(extension);
-            if (session == null) {
-                return "錯誤：分機 " + extension + " 沒有活躍的線路";
-            }
-            
-            CallLine targetLine;
-            if (lineId == null || lineId.isEmpty()) {
-                // 如果沒有指定線路ID，Hold當前活躍的線路
-                targetLine = session.findActiveeLine();
-                if (targetLine == null) {
-                    return "沒有找到活躍的線路可以Hold";
+        return lineMailbox.call(extension, () -> {
+            try {
+                MultiLineSession session = extensionSessions.get(extension);
+                if (session == null) {
+                    return "錯誤：分機 " + extension + " 沒有活躍的線路";
                 }
-            } else {
-                targetLine = session.findLineById(lineId);
-                if (targetLine == null) {
-                    return "錯誤：找不到線路 " + lineId;
+                
+                CallLine targetLine;
+                if (lineId == null || lineId.isEmpty()) {
+                    // 如果沒有指定線路ID，Hold當前活躍的線路
+                    targetLine = session.findActiveeLine();
+                    if (targetLine == null) {
+                        return "沒有找到活躍的線路可以Hold";
+                    }
+                } else {
+                    targetLine = session.findLineById(lineId);
+                    if (targetLine == null) {
+                        return "錯誤：找不到線路 " + lineId;
+                    }
                 }
+                
+                if (targetLine.state != LineState.ACTIVE) {
+                    return "錯誤：線路 " + targetLine.lineId + " 不是活躍狀態，無法Hold";
+                }
+                
+                // 執行Hold操作
+                holdLine(session, targetLine);
+                
+                return "線路 " + targetLine.lineId + " 已Hold：" + targetLine.callDirection;
+                
+            } catch (Exception e) {
+                System.err.println("[MULTILINE] Hold通話失敗: " + e.getMessage());
+                e.printStackTrace();
+                return "Hold通話失敗: " + e.getMessage();
             }
-            
-            if (targetLine.state != LineState.ACTIVE) {
-                return "錯誤：線路 " + targetLine.lineId + " 不是活躍狀態，無法Hold";
-            }
-            
-            // 執行Hold操作
-            holdLine(session, targetLine);
-            
-            return "線路 " + targetLine.lineId + " 已Hold：" + targetLine.callDirection;
-            
-        } catch (Exception e) {
-            System.err.println("[MULTILINE] Hold通話失敗: " + e.getMessage());
-            e.printStackTrace();
-            return "Hold通話失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 恢復被Hold的通話
      */
     public String unholdCall(String extension, String lineId) {
-        try {
-            MultiLineSession session = extensionSessions.get(extension);
-            if (session == null) {
-                return "錯誤：分機 " + extension + " 沒有線路會話";
-            }
-            
-            CallLine targetLine = session.findLineById(lineId);
-            if (targetLine == null) {
-                return "錯誤：找不到線路 " + lineId;
-            }
-            
-            if (targetLine.state != LineState.HELD) {
-                return "錯誤：線路 " + lineId + " 不是Hold狀態";
-            }
-            
-            // 先Hold其他活躍線路
-            holdOtherActiveLines(session, lineId);
-            
-            // 恢復指定線路
-            if (targetLine.call != null) {
-                Connection[] connections = targetLine.call.getConnections();
-                for (Connection connection : connections) {
-                    if (connection.getAddress().getName().equals(extension)) {
-                        TerminalConnection[] termConns = connection.getTerminalConnections();
-                        for (TerminalConnection termConn : termConns) {
-                            if (termConn instanceof CallControlTerminalConnection) {
-                                CallControlTerminalConnection ccTermConn = (CallControlTerminalConnection) termConn;
-                                if (ccTermConn.getCallControlState() == CallControlTerminalConnection.HELD) {
-                                    ccTermConn.unhold();
-                                    break;
+        return lineMailbox.call(extension, () -> {
+            try {
+                MultiLineSession session = extensionSessions.get(extension);
+                if (session == null) {
+                    return "錯誤：分機 " + extension + " 沒有線路會話";
+                }
+                
+                CallLine targetLine = session.findLineById(lineId);
+                if (targetLine == null) {
+                    return "錯誤：找不到線路 " + lineId;
+                }
+                
+                if (targetLine.state != LineState.HELD) {
+                    return "錯誤：線路 " + lineId + " 不是Hold狀態";
+                }
+                
+                // 先Hold其他活躍線路
+                holdOtherActiveLines(session, lineId);
+                
+                // 恢復指定線路
+                if (targetLine.call != null) {
+                    Connection[] connections = targetLine.call.getConnections();
+                    for (Connection connection : connections) {
+                        if (connection.getAddress().getName().equals(extension)) {
+                            TerminalConnection[] termConns = connection.getTerminalConnections();
+                            for (TerminalConnection termConn : termConns) {
+                                if (termConn instanceof CallControlTerminalConnection) {
+                                    CallControlTerminalConnection ccTermConn = (CallControlTerminalConnection) termConn;
+                                    if (ccTermConn.getCallControlState() == CallControlTerminalConnection.HELD) {
+                                        ccTermConn.unhold();
+                                        break;
+                                    }
                                 }
                             }
+                            break;
                         }
-                        break;
                     }
                 }
+                
+                targetLine.state = LineState.ACTIVE;
+                session.activeLineId = lineId;
+                
+                System.out.println("[MULTILINE] 線路 " + lineId + " 已恢復");
+                return "線路 " + lineId + " 已恢復：" + targetLine.callDirection;
+                
+            } catch (Exception e) {
+                System.err.println("[MULTILINE] 恢復通話失敗: " + e.getMessage());
+                e.printStackTrace();
+                return "恢復通話失敗: " + e.getMessage();
             }
-            
-            targetLine.state = LineState.ACTIVE;
-            session.activeLineId = lineId;
-            
-            System.out.println("[MULTILINE] 線路 " + lineId + " 已恢復");
-            return "線路 " + lineId + " 已恢復：" + targetLine.callDirection;
-            
-        } catch (Exception e) {
-            System.err.println("[MULTILINE] 恢復通話失敗: " + e.getMessage());
-            e.printStackTrace();
-            return "恢復通話失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 切換到指定線路
      */
     public String switchToLine(String extension, String lineId) {
-        try {
-            MultiLineSession session = extensionSessions.get(extension);
-            if (session == null) {
-                return "錯誤：分機 " + extension + " 沒有線路會話";
-            }
-            
-            CallLine targetLine = session.findLineById(lineId);
-            if (targetLine == null) {
-                return "錯誤：找不到線路 " + lineId;
-            }
-            
-            if (targetLine.state == LineState.ACTIVE) {
-                return "線路 " + lineId + " 已經是活躍狀態";
-            }
-            
-            if (targetLine.state == LineState.DISCONNECTED) {
-                return "錯誤：線路 " + lineId + " 已斷線";
-            }
-            
-            // 先Hold當前活躍線路
-            CallLine currentActive = session.findActiveeLine();
-            if (currentActive != null && !currentActive.lineId.equals(lineId)) {
-                holdLine(session, currentActive);
-            }
-            
-            // 如果目標線路是HELD狀態，恢復它
-            if (targetLine.state == LineState.HELD) {
-                return unholdCall(extension, lineId);
-            }
-            
-            // 如果是響鈴狀態，接聽它
-            if (targetLine.state == LineState.RINGING) {
-                return answerIncomingCall(extension);
+        return lineMailbox.call(extension, () -> {
+            try {
+                MultiLineSession session = extensionSessions.get(extension);
+                if (session == null) {
+                    return "錯誤：分機 " + extension + " 沒有線路會話";
+                }
+                
+                CallLine targetLine = session.findLineById(lineId);
+                if (targetLine == null) {
+                    return "錯誤：找不到線路 " + lineId;
+                }
+                
+                if (targetLine.state == LineState.ACTIVE) {
+                    return "線路 " + lineId + " 已經是活躍狀態";
+                }
+                
+                if (targetLine.state == LineState.DISCONNECTED) {
+                    return "錯誤：線路 " + lineId + " 已斷線";
+                }
+                
+                // 先Hold當前活躍線路
+                CallLine currentActive = session.findActiveeLine();
+                if (currentActive != null && !currentActive.lineId.equals(lineId)) {
+                    holdLine(session, currentActive);
+                }
+                
+                // 如果目標線路是HELD狀態，恢復它
+                if (targetLine.state == LineState.HELD) {
+                    return unholdCall(extension, lineId);
+                }
+                
+                // 如果是響鈴狀態，接聽它
+                if (targetLine.state == LineState.RINGING) {
+                    return answerIncomingCall(extension);
+                }
+                
+                return "無法切換到線路 " + lineId + "，狀態：" + targetLine.getStateDescription();
+                
+            } catch (Exception e) {
+                System.err.println("[MULTILINE] 切換線路失敗: " + e.getMessage());
+                e.printStackTrace();
+                return "切換線路失敗: " + e.getMessage();
             }
-            
-            return "無法切換到線路 " + lineId + "，狀態：" + targetLine.getStateDescription();
-            
-        } catch (Exception e) {
-            System.err.println("[MULTILINE] 切換線路失敗: " + e.getMessage());
-            e.printStackTrace();
-            return "切換線路失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 掛斷指定通話
      */
     public String hangupCall(String extension, String lineId) {
-        try {
-            MultiLineSession session = extensionSessions.get(extension);
-            if (session == null) {
-                return "錯誤：分機 " + extension + " 沒有線路會話";
-            }
-            
-            CallLine targetLine;
-            if (lineId == null || lineId.isEmpty()) {
-                // 如果沒有指定線路，掛斷當前活躍的線路
-                targetLine = session.findActiveeLine();
-                if (targetLine == null) {
-                    return "沒有找到活躍的線路可以掛斷";
+        return lineMailbox.call(extension, () -> {
+            try {
+                MultiLineSession session = extensionSessions.get(extension);
+                if (session == null) {
+                    return "錯誤：分機 " + extension + " 沒有線路會話";
                 }
-            } else {
-                targetLine = session.findLineById(lineId);
-                if (targetLine == null) {
-                    return "錯誤：找不到線路 " + lineId;
+                
+                CallLine targetLine;
+                if (lineId == null || lineId.isEmpty()) {
+                    // 如果沒有指定線路，掛斷當前活躍的線路
+                    targetLine = session.findActiveeLine();
+                    if (targetLine == null) {
+                        return "沒有找到活躍的線路可以掛斷";
+                    }
+                } else {
+                    targetLine = session.findLineById(lineId);
+                    if (targetLine == null) {
+                        return "錯誤：找不到線路 " + lineId;
+                    }
                 }
-            }
-            
-            if (targetLine.state == LineState.DISCONNECTED) {
-                return "線路 " + targetLine.lineId + " 已經斷線";
-            }
-            
-            // 掛斷通話
-            if (targetLine.call != null) {
-                Connection[] connections = targetLine.call.getConnections();
-                for (Connection connection : connections) {
-                    if (connection.getAddress().getName().equals(extension)) {
-                        connection.disconnect();
-                        break;
+                
+                if (targetLine.state == LineState.DISCONNECTED) {
+                    return "線路 " + targetLine.lineId + " 已經斷線";
+                }
+                
+                // 掛斷通話
+                if (targetLine.call != null) {
+                    Connection[] connections = targetLine.call.getConnections();
+                    for (Connection connection : connections) {
+                        if (connection.getAddress().getName().equals(extension)) {
+                            connection.disconnect();
+                            break;
+                        }
                     }
                 }
+                
+                targetLine.state = LineState.DISCONNECTED;
+                
+                // 如果掛斷的是活躍線路，清除活躍線路ID
+                if (targetLine.lineId.equals(session.activeLineId)) {
+                    session.activeLineId = null;
+                }
+                
+                String result = "線路 " + targetLine.lineId + " 已掛斷：" + targetLine.callDirection;
+                
+                // 清理斷線的線路
+                session.removeDisconnectedLines();
+                
+                System.out.println("[MULTILINE] " + result);
+                return result + "\n剩餘活躍線路數：" + session.getActiveLineCount();
+                
+            } catch (Exception e) {
+                System.err.println("[MULTILINE] 掛斷通話失敗: " + e.getMessage());
+                e.printStackTrace();
+                return "掛斷通話失敗: " + e.getMessage();
             }
-            
-            targetLine.state = LineState.DISCONNECTED;
-            
-            // 如果掛斷的是活躍線路，清除活躍線路ID
-            if (targetLine.lineId.equals(session.activeLineId)) {
-                session.activeLineId = null;
-            }
-            
-            String result = "線路 " + targetLine.lineId + " 已掛斷：" + targetLine.callDirection;
-            
-            // 清理斷線的線路
-            session.removeDisconnectedLines();
-            
-            System.out.println("[MULTILINE] " + result);
-            return result + "\n剩餘活躍線路數：" + session.getActiveLineCount();
-            
-        } catch (Exception e) {
-            System.err.println("[MULTILINE] 掛斷通話失敗: " + e.getMessage());
-            e.printStackTrace();
-            return "掛斷通話失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 掛斷所有通話
      */
     public String hangupAllCalls(String extension) {
-        try {
-            MultiLineSession session = extensionSessions.get(extension);
-            if (session == null) {
-                return "分機 " + extension + " 沒有活躍的線路";
-            }
-            
-            int hangupCount = 0;
-            List<CallLine> linesToHangup = new ArrayList<>(session.lines);
-            
-            for (CallLine line : linesToHangup) {
-                if (line.state != LineState.DISCONNECTED) {
-                    try {
-                        if (line.call != null) {
-                            Connection[] connections = line.call.getConnections();
-                            for (Connection connection : connections) {
-                                if (connection.getAddress().getName().equals(extension)) {
-                                    connection.disconnect();
-                                    break;
+        return lineMailbox.call(extension, () -> {
+            try {
+                MultiLineSession session = extensionSessions.get(extension);
+                if (session == null) {
+                    return "分機 " + extension + " 沒有活躍的線路";
+                }
+                
+                int hangupCount = 0;
+                List<CallLine> linesToHangup = new ArrayList<>(session.lines);
+                
+                for (CallLine line : linesToHangup) {
+                    if (line.state != LineState.DISCONNECTED) {
+                        try {
+                            if (line.call != null) {
+                                Connection[] connections = line.call.getConnections();
+                                for (Connection connection : connections) {
+                                    if (connection.getAddress().getName().equals(extension)) {
+                                        connection.disconnect();
+                                        break;
+                                    }
                                 }
                             }
+                            line.state = LineState.DISCONNECTED;
+                            hangupCount++;
+                        } catch (Exception e) {
+                            System.err.println("[MULTILINE] 掛斷線路 " + line.lineId + " 失敗: " + e.getMessage());
                         }
-                        line.state = LineState.DISCONNECTED;
-                        hangupCount++;
-                    } catch (Exception e) {
-                        System.err.println("[MULTILINE] 掛斷線路 " + line.lineId + " 失敗: " + e.getMessage());
                     }
                 }
+                
+                // 清理所有線路
+                session.lines.clear();
+                session.activeLineId = null;
+                
+                System.out.println("[MULTILINE] 分機 " + extension + " 所有線路已清理");
+                return "已掛斷 " + hangupCount + " 條線路，所有通話已結束";
+                
+            } catch (Exception e) {
+                System.err.println("[MULTILINE] 掛斷所有通話失敗: " + e.getMessage());
+                e.printStackTrace();
+                return "掛斷所有通話失敗: " + e.getMessage();
             }
-            
-            // 清理所有線路
-            session.lines.clear();
-            session.activeLineId = null;
-            
-            System.out.println("[MULTILINE] 分機 " + extension + " 所有線路已清理");
-            return "已掛斷 " + hangupCount + " 條線路，所有通話已結束";
-            
-        } catch (Exception e) {
-            System.err.println("[MULTILINE] 掛斷所有通話失敗: " + e.getMessage());
-            e.printStackTrace();
-            return "掛斷所有通話失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 查看分機的線路狀態
      */
     public String getExtensionLineStatus(String extension) {
-        MultiLineSession session = extensionSessions.get(extension);
-        if (session == null) {
-            return "分機 " + extension + " 沒有線路會話";
-        }
-        
-        if (session.lines.isEmpty()) {
-            return "分機 " + extension + " 沒有活躍的線路";
-        }
-        
-        StringBuilder status = new StringBuilder();
-        status.append("=== 分機 ").append(extension).append(" 多線狀態 ===\n");
-        status.append("活躍線路數：").append(session.getActiveLineCount()).append("/").append(session.maxLines).append("\n");
-        status.append("當前活躍線路：").append(session.activeLineId != null ? session.activeLineId : "無").append("\n");
-        status.append("自動接聽：").append(session.autoAnswerEnabled ? "開啟" : "關閉").append("\n\n");
-        
-        status.append("線路詳情：\n");
-        for (int i = 0; i < session.lines.size(); i++) {
-            CallLine line = session.lines.get(i);
-            status.append(i + 1).append(". 線路 ").append(line.lineId).append("\n");
-            status.append("   對方：").append(line.remoteParty).append("\n");
-            status.append("   狀態：").append(line.getStateDescription()).append("\n");
-            status.append("   方向：").append(line.callDirection).append("\n");
-            status.append("   時長：").append(line.getDurationSeconds()).append("秒\n");
-            if (line.lineId.equals(session.activeLineId)) {
-                status.append("   >>> 當前活躍線路 <<<\n");
+        return lineMailbox.call(extension, () -> {
+            MultiLineSession session = extensionSessions.get(extension);
+            if (session == null) {
+                return "分機 " + extension + " 沒有線路會話";
             }
-            status.append("\n");
-        }
-        
-        return status.toString();
+            
+            if (session.lines.isEmpty()) {
+                return "分機 " + extension + " 沒有活躍的線路";
+            }
+            
+            StringBuilder status = new StringBuilder();
+            status.append("=== 分機 ").append(extension).append(" 多線狀態 ===\n");
+            status.append("活躍線路數：").append(session.getActiveLineCount()).append("/").append(session.maxLines).append("\n");
+            status.append("當前活躍線路：").append(session.activeLineId != null ? session.activeLineId : "無").append("\n");
+            status.append("自動接聽：").append(session.autoAnswerEnabled ? "開啟" : "關閉").append("\n\n");
+            
+            status.append("線路詳情：\n");
+            for (int i = 0; i < session.lines.size(); i++) {
+                CallLine line = session.lines.get(i);
+                status.append(i + 1).append(". 線路 ").append(line.lineId).append("\n");
+                status.append("   對方：").append(line.remoteParty).append("\n");
+                status.append("   狀態：").append(line.getStateDescription()).append("\n");
+                status.append("   方向：").append(line.callDirection).append("\n");
+                status.append("   時長：").append(line.getDurationSeconds()).append("秒\n");
+                if (line.lineId.equals(session.activeLineId)) {
+                    status.append("   >>> 當前活躍線路 <<<\n");
+                }
+                status.append("\n");
+            }
+            
+            return status.toString();
+        });
     }
     
     /**
@@ -598,118 +646,128 @@ public class MultiLineService {
      * 設置自動接聽模式
      */
     public String setAutoAnswerMode(String extension, boolean enabled) {
-        MultiLineSession session = getOrCreateSession(extension);
-        session.autoAnswerEnabled = enabled;
-        
-        return "分機 " + extension + " 自動接聽模式：" + (enabled ? "已開啟" : "已關閉");
+        return lineMailbox.call(extension, () -> {
+            MultiLineSession session = getOrCreateSession(extension);
+            session.autoAnswerEnabled = enabled;
+            
+            return "分機 " + extension + " 自動接聽模式：" + (enabled ? "已開啟" : "已關閉");
+        });
     }
     
     /**
      * 快速操作：Hold當前通話並撥打新電話
      */
     public String holdCurrentAndMakeNewCall(String extension, String target) {
-        try {
-            MultiLineSession session = getOrCreateSession(extension);
-            
-            // 先Hold當前通話
-            CallLine activeLine = session.findActiveeLine();
-            if (activeLine != null) {
-                holdLine(session, activeLine);
+        return lineMailbox.call(extension, () -> {
+            try {
+                MultiLineSession session = getOrCreateSession(extension);
+                
+                // 先Hold當前通話
+                CallLine activeLine = session.findActiveeLine();
+                if (activeLine != null) {
+                    holdLine(session, activeLine);
+                }
+                
+                // 然後撥打新電話
+                return makeNewCall(extension, target);
+                
+            } catch (Exception e) {
+                return "Hold並撥打新電話失敗: " + e.getMessage();
             }
-            
-            // 然後撥打新電話
-            return makeNewCall(extension, target);
-            
-        } catch (Exception e) {
-            return "Hold並撥打新電話失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 在兩條線路間快速切換
      */
     public String toggleBetweenTwoLines(String extension) {
-        try {
-            MultiLineSession session = extensionSessions.get(extension);
-            if (session == null || session.lines.size() < 2) {
-                return "需要至少兩條線路才能切換";
-            }
-            
-            CallLine activeLine = session.findActiveeLine();
-            List<CallLine> heldLines = session.getHeldLines();
-            
-            if (heldLines.isEmpty()) {
-                return "沒有保持中的線路可以切換";
+        return lineMailbox.call(extension, () -> {
+            try {
+                MultiLineSession session = extensionSessions.get(extension);
+                if (session == null || session.lines.size() < 2) {
+                    return "需要至少兩條線路才能切換";
+                }
+                
+                CallLine activeLine = session.findActiveeLine();
+                List<CallLine> heldLines = session.getHeldLines();
+                
+                if (heldLines.isEmpty()) {
+                    return "沒有保持中的線路可以切換";
+                }
+                
+                // 切換到第一條保持中的線路
+                return switchToLine(extension, heldLines.get(0).lineId);
+                
+            } catch (Exception e) {
+                return "線路切換失敗: " + e.getMessage();
             }
-            
-            // 切換到第一條保持中的線路
-            return switchToLine(extension, heldLines.get(0).lineId);
-            
-        } catch (Exception e) {
-            return "線路切換失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 獲取線路詳細信息
      */
     public String getLineDetails(String extension, String lineId) {
-        MultiLineSession session = extensionSessions.get(extension);
-        if (session == null) {
-            return "分機 " + extension + " 沒有線路會話";
-        }
-        
-        CallLine line = session.findLineById(lineId);
-        if (line == null) {
-            return "找不到線路 " + lineId;
-        }
-        
-        StringBuilder details = new StringBuilder();
-        details.append("=== 線路 ").append(lineId).append(" 詳細信息 ===\n");
-        details.append("對方號碼：").append(line.remoteParty).append("\n");
-        details.append("通話方向：").append(line.callDirection).append("\n");
-        details.append("當前狀態：").append(line.getStateDescription()).append("\n");
-        details.append("通話時長：").append(line.getDurationSeconds()).append("秒\n");
-        details.append("是否來電：").append(line.isIncoming ? "是" : "否").append("\n");
-        details.append("是否活躍：").append(line.lineId.equals(session.activeLineId) ? "是" : "否").append("\n");
-        
-        // 檢查實際通話狀態
-        try {
-            if (line.call != null) {
-                details.append("\n通話對象狀態：\n");
-                details.append("Call狀態：").append(line.call.getState()).append("\n");
-                
-                Connection[] connections = line.call.getConnections();
-                details.append("連線數量：").append(connections.length).append("\n");
-                
-                for (int i = 0; i < connections.length; i++) {
-                    Connection conn = connections[i];
-                    details.append("連線").append(i).append("：").append(conn.getAddress().getName())
-                           .append(" (").append(getConnectionStateName(conn.getState())).append(")\n");
+        return lineMailbox.call(extension, () -> {
+            MultiLineSession session = extensionSessions.get(extension);
+            if (session == null) {
+                return "分機 " + extension + " 沒有線路會話";
+            }
+            
+            CallLine line = session.findLineById(lineId);
+            if (line == null) {
+                return "找不到線路 " + lineId;
+            }
+            
+            StringBuilder details = new StringBuilder();
+            details.append("=== 線路 ").append(lineId).append(" 詳細信息 ===\n");
+            details.append("對方號碼：").append(line.remoteParty).append("\n");
+            details.append("通話方向：").append(line.callDirection).append("\n");
+            details.append("當前狀態：").append(line.getStateDescription()).append("\n");
+            details.append("通話時長：").append(line.getDurationSeconds()).append("秒\n");
+            details.append("是否來電：").append(line.isIncoming ? "是" : "否").append("\n");
+            details.append("是否活躍：").append(line.lineId.equals(session.activeLineId) ? "是" : "否").append("\n");
+            
+            // 檢查實際通話狀態
+            try {
+                if (line.call != null) {
+                    details.append("\n通話對象狀態：\n");
+                    details.append("Call狀態：").append(line.call.getState()).append("\n");
+                    
+                    Connection[] connections = line.call.getConnections();
+                    details.append("連線數量：").append(connections.length).append("\n");
+                    
+                    for (int i = 0; i < connections.length; i++) {
+                        Connection conn = connections[i];
+                        details.append("連線").append(i).append("：").append(conn.getAddress().getName())
+                               .append(" (").append(getConnectionStateName(conn.getState())).append(")\n");
+                    }
                 }
+            } catch (Exception e) {
+                details.append("無法獲取詳細通話狀態：").append(e.getMessage()).append("\n");
             }
-        } catch (Exception e) {
-            details.append("無法獲取詳細通話狀態：").append(e.getMessage()).append("\n");
-        }
-        
-        return details.toString();
+            
+            return details.toString();
+        });
     }
     
     /**
      * 清理斷開的線路
      */
     public String cleanupDisconnectedLines(String extension) {
-        MultiLineSession session = extensionSessions.get(extension);
-        if (session == null) {
-            return "分機 " + extension + " 沒有線路會話";
-        }
-        
-        int beforeCount = session.lines.size();
-        session.removeDisconnectedLines();
-        int afterCount = session.lines.size();
-        int removedCount = beforeCount - afterCount;
-        
-        return "已清理 " + removedCount + " 條斷開的線路，剩餘 " + afterCount + " 條線路";
+        return lineMailbox.call(extension, () -> {
+            MultiLineSession session = extensionSessions.get(extension);
+            if (session == null) {
+                return "分機 " + extension + " 沒有線路會話";
+            }
+            
+            int beforeCount = session.lines.size();
+            session.removeDisconnectedLines();
+            int afterCount = session.lines.size();
+            int removedCount = beforeCount - afterCount;
+            
+            return "已清理 " + removedCount + " 條斷開的線路，剩餘 " + afterCount + " 條線路";
+        });
     }
     
     /**
@@ -770,6 +828,20 @@ public class MultiLineService {
     // 輔助方法
     // ========================================
     
+    /**
+     * 取得分機響鈴中的終端連線：優先讀通話登記（之後由事件維護），無法追蹤時才列舉終端
+     */
+    private TerminalConnection[] findRingingConnections(String extension, Terminal terminal) {
+        CallRegistryService.CallSnapshot snapshot = callRegistryService.snapshotFor(extension, terminal);
+        if (snapshot == null) {
+            return terminal.getTerminalConnections();
+        }
+        return snapshot.entries.stream()
+                .filter(CallRegistryService.CallEntry::isRinging)
+                .map(entry -> entry.terminalConnection)
+                .toArray(TerminalConnection[]::new);
+    }
+    
     /**
      * 獲取或創建分機的多線會話
      */
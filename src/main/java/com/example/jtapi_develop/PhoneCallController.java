@@ -2,6 +2,8 @@ package com.example.jtapi_develop;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 @RestController
@@ -11,6 +13,12 @@ public class PhoneCallController {
     @Autowired
     private PhoneCallService phoneCallService;
     
+    @Autowired
+    private ProviderPoolService providerPoolService;
+    
+    @Autowired
+    private CallRegistryService callRegistryService;
+    
     /**
      * 登入分機
      * GET /api/phone/login?extension=2510043&password=password456
@@ -21,6 +29,23 @@ public class PhoneCallController {
         return phoneCallService.loginExtension(extension, password);
     }
     
+    /**
+     * 批次登入分機
+     * GET /api/phone/bulk-login?extensions=1411,1420,1424&password=password456&concurrency=20
+     */
+    @GetMapping("/bulk-login")
+    public CompletableFuture<String> bulkLogin(@RequestParam String extensions,
+                                             @RequestParam String password,
+                                             @RequestParam(defaultValue = "20") int concurrency) {
+        List<String> extensionList = new ArrayList<>();
+        for (String extension : extensions.split(",")) {
+            if (!extension.trim().isEmpty()) {
+                extensionList.add(extension.trim());
+            }
+        }
+        return phoneCallService.bulkLogin(extensionList, password, Math.max(1, concurrency));
+    }
+    
     /**
      * 撥打電話
      * GET /api/phone/call?caller=2510043&callee=2510044
@@ -66,4 +91,31 @@ public class PhoneCallController {
     public String getStatus() {
         return phoneCallService.getExtensionStatus();
     }
+    
+    /**
+     * 查看 Provider 連線池狀態
+     * GET /api/phone/provider-pool
+     */
+    @GetMapping("/provider-pool")
+    public String getProviderPool() {
+        return providerPoolService.getPoolStatus();
+    }
+    
+    /**
+     * 查看 Provider 健康狀態與重連統計
+     * GET /api/phone/provider-health
+     */
+    @GetMapping("/provider-health")
+    public String getProviderHealth() {
+        return providerPoolService.getHealthStatus();
+    }
+    
+    /**
+     * 查看通話登記（事件追蹤的分機通話狀態）
+     * GET /api/phone/call-registry
+     */
+    @GetMapping("/call-registry")
+    public String getCallRegistry() {
+        return callRegistryService.getRegistryStatus();
+    }
 }
\ No newline at end of file
@@ -1,12 +1,20 @@
 package com.example.jtapi_develop;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
 import javax.telephony.*;
 import javax.telephony.callcontrol.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.List;
 import java.util.Map;
 
 @Service
@@ -18,9 +26,29 @@ public class PhoneCallService {
     @Autowired
     private MethodLogService methodLogService;
     
+    @Autowired
+    private ProviderPoolService providerPoolService;
+    
+    // 登入後續工作（取得地址/終端）使用的執行器，見 ExecutorConfig
+    @Autowired
+    private ExecutorService jtapiExecutor;
+    
+    // 視為 CTI 用戶的登入帳號（逗號分隔），登入兩個以上時第二個就是獨立 session 的備援 CTI
+    @Value("${jtapi.cti.login-ids:ctiuser}")
+    private String[] ctiLoginIds;
+    
     // 存儲每個分機/用戶的連線信息
     private final ConcurrentHashMap<String, ExtensionConnection> extensions = new ConcurrentHashMap<>();
     
+    // 目前選定的 CTI 連線，登入/登出/Provider 狀態變化時整組替換
+    private final AtomicReference<CtiHandles> ctiHandles = new AtomicReference<>(CtiHandles.NONE);
+    
+    // Provider 重連後要重新掛上監聽器的服務
+    private final List<Consumer<Provider>> reconnectHooks = new CopyOnWriteArrayList<>();
+    
+    // 未直接登入分機的 CTI 代理連線快取（已解析好的地址/終端），Provider 離線時清除
+    private final ConcurrentHashMap<String, ExtensionConnection> proxyConnections = new ConcurrentHashMap<>();
+    
     /**
      * 分機連線信息類 (改為 public static 供其他服務使用)
      */
@@ -29,9 +57,10 @@ public class PhoneCallService {
         public Provider provider;
         public Address address;
         public Terminal terminal;
-        public boolean isReady;
+        public volatile boolean isReady;  // Provider 中斷時由 watchdog 立即設為 false
         public String serviceName;
         public String userType; // "extension", "cti", "cti_proxy"
+        public String providerKey; // 連線池中 Provider 的帳號，登出時用來釋放引用
         
         public ExtensionConnection() {
             this.isReady = false;
@@ -39,133 +68,206 @@ public class PhoneCallService {
         }
     }
     
+    @PostConstruct
+    public void init() {
+        // Provider 離線或關閉後，快取的地址/終端都失效，並立即切換到備援 CTI
+        providerPoolService.addProviderDownListener(provider -> {
+            markConnectionsDown(provider);
+            callRegistry().markStale(provider);
+            invalidateProxyConnections(provider);
+            refreshCtiHandles();
+        });
+        providerPoolService.addReconnectListener(this::onProviderReconnected);
+    }
+    
+    /**
+     * 註冊 Provider 重連後的處理（重新掛上監聽器、監控等），參數為新的 Provider
+     */
+    public void addReconnectHook(Consumer<Provider> hook) {
+        reconnectHooks.add(hook);
+    }
+    
+    /**
+     * 主要/備援 CTI 連線（不可變，整組替換）
+     */
+    private static final class CtiHandles {
+        static final CtiHandles NONE = new CtiHandles(null, null, null, null, null, null);
+        
+        final String primaryKey;
+        final ExtensionConnection primary;
+        final String secondaryKey;
+        final ExtensionConnection secondary;
+        final String fallbackKey;          // 沒有 CTI 用戶時使用的任一可用連線
+        final ExtensionConnection fallback;
+        
+        CtiHandles(String primaryKey, ExtensionConnection primary,
+                   String secondaryKey, ExtensionConnection secondary,
+                   String fallbackKey, ExtensionConnection fallback) {
+            this.primaryKey = primaryKey;
+            this.primary = primary;
+            this.secondaryKey = secondaryKey;
+            this.secondary = secondary;
+            this.fallbackKey = fallbackKey;
+            this.fallback = fallback;
+        }
+    }
+    
+    /**
+     * 批次登入的單一分機結果
+     */
+    public static class LoginResult {
+        public String extension;
+        public boolean success;
+        public long latencyMs;
+        public String message;
+        
+        public LoginResult(String extension, boolean success, long latencyMs, String message) {
+            this.extension = extension;
+            this.success = success;
+            this.latencyMs = latencyMs;
+            this.message = message;
+        }
+    }
+    
     /**
      * 登入分機或 CTI 用戶 (統一的登入方法)
      */
     public CompletableFuture<String> loginExtension(String extension, String password) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                System.out.println("[" + extension + "] 開始登入...");
-                
-                ExtensionConnection conn = new ExtensionConnection();
-                
-                // 判斷是否為 CTI 用戶
-                if ("ctiuser".equals(extension)) {
-                    conn.userType = "cti";
-                    System.out.println("[" + extension + "] 識別為 CTI 用戶");
+        return connectExtension(extension, password).handle((conn, error) -> {
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                System.err.println("[" + extension + "] 登入失敗: " + cause.getMessage());
+                cause.printStackTrace();
+                return "用戶 " + extension + " 登入失敗: " + cause.getMessage();
+            }
+            
+            if ("cti".equals(conn.userType)) {
+                System.out.println("[" + extension + "] CTI 用戶登入成功");
+                return "CTI 用戶 " + extension + " 登入成功，具備分機控制權限";
+            }
+            System.out.println("[" + extension + "] 分機登入成功");
+            return "分機 " + extension + " 登入成功";
+        });
+    }
+    
+    /**
+     * 批次登入分機，以固定並行數執行並回報每個分機的耗時與失敗原因
+     */
+    public CompletableFuture<String> bulkLogin(List<String> extensionList, String password, int concurrency) {
+        long batchStart = System.currentTimeMillis();
+        System.out.println("[BULK_LOGIN] 開始批次登入 " + extensionList.size() + " 個分機，並行數: " + concurrency);
+        
+        return BoundedBatchRunner.run(extensionList, concurrency, extension -> {
+            long start = System.nanoTime();
+            return connectExtension(extension, password).handle((conn, error) -> {
+                long latencyMs = (System.nanoTime() - start) / 1_000_000;
+                if (error != null) {
+                    return new LoginResult(extension, false, latencyMs, unwrap(error).getMessage());
                 }
-                
-                // 建立 JtapiPeer
+                return new LoginResult(extension, true, latencyMs, "登入成功");
+            });
+        }).thenApply(results -> {
+            int successCount = 0;
+            long maxLatency = 0;
+            long totalLatency = 0;
+            for (LoginResult result : results) {
+                if (result.success) successCount++;
+                maxLatency = Math.max(maxLatency, result.latencyMs);
+                totalLatency += result.latencyMs;
+            }
+            
+            StringBuilder report = new StringBuilder("=== 批次登入結果 ===\n");
+            report.append("總數: ").append(results.size())
+                  .append("，成功: ").append(successCount)
+                  .append("，失敗: ").append(results.size() - successCount).append("\n");
+            report.append("總耗時: ").append(System.currentTimeMillis() - batchStart).append("ms")
+                  .append("，平均: ").append(results.isEmpty() ? 0 : totalLatency / results.size()).append("ms")
+                  .append("，最長: ").append(maxLatency).append("ms\n\n");
+            for (LoginResult result : results) {
+                report.append(result.success ? "✅ " : "❌ ").append(result.extension)
+                      .append(" - ").append(result.latencyMs).append("ms - ")
+                      .append(result.message).append("\n");
+            }
+            
+            System.out.println("[BULK_LOGIN] 完成，成功 " + successCount + "/" + results.size());
+            return report.toString();
+        });
+    }
+    
+    /**
+     * 建立分機連線，Provider 就緒時由事件直接完成，不佔用執行緒等待
+     */
+    private CompletableFuture<ExtensionConnection> connectExtension(String extension, String password) {
+        System.out.println("[" + extension + "] 開始登入...");
+        
+        boolean isCti = isCtiLogin(extension);
+        if (isCti) {
+            System.out.println("[" + extension + "] 識別為 CTI 用戶");
+        }
+        
+        // 從連線池取得 Provider：分機帳密經交換機驗證後掛到既有的 CTI session 上，不保留自己的 session；
+        // CTI 用戶共用同帳號的 session
+        CompletableFuture<ProviderPoolService.PooledProvider> providerFuture = isCti
+                ? providerPoolService.acquireAsync(extension, password, true)
+                : providerPoolService.acquireForExtension(extension, password);
+        
+        // 取得地址與終端會呼叫 Provider，移到背景執行緒避免卡住 JTAPI 事件執行緒
+        return providerFuture.thenApplyAsync(pooled -> {
+            ExtensionConnection conn = new ExtensionConnection();
+            if (isCti) {
+                conn.userType = "cti";
+            }
+            
+            try {
+                conn.peer = providerPoolService.getPeer();
+            } catch (Exception e) {
+                providerPoolService.release(pooled.loginId);
+                throw new CompletionException(e);
+            }
+            conn.serviceName = providerPoolService.getServiceName();
+            conn.provider = pooled.provider;
+            conn.providerKey = pooled.loginId;
+            
+            // 對於一般分機，嘗試取得地址和終端
+            if ("extension".equals(conn.userType)) {
                 try {
-                    conn.peer = JtapiPeerFactory.getJtapiPeer(null);
-                    System.out.println("[" + extension + "] JtapiPeer 創建成功");
-                } catch (Exception e) {
-                    try {
-                        conn.peer = JtapiPeerFactory.getJtapiPeer("com.avaya.jtapi.tsapi.TsapiPeer");
-                        System.out.println("[" + extension + "] JtapiPeer (Avaya) 創建成功");
-                    } catch (Exception e2) {
-                        throw new Exception("無法創建 JtapiPeer: " + e2.getMessage());
-                    }
-                }
-                
-                // 取得服務列表
-                String[] services = conn.peer.getServices();
-                if (services == null || services.length == 0) {
-                    throw new Exception("找不到可用的服務");
-                }
-                
-                conn.serviceName = services[0];
-                System.out.println("[" + extension + "] 使用服務: " + conn.serviceName);
-                
-                // 建立連線字串
-                String providerString = conn.serviceName + ";loginID=" + extension + ";passwd=" + password;
-                System.out.println("[" + extension + "] 連線字串: " + providerString);
-                
-                // 建立 Provider
-                conn.provider = conn.peer.getProvider(providerString);
-                System.out.println("[" + extension + "] Provider 創建成功");
-                
-                // 等待 Provider 進入服務狀態
-                final Object lock = new Object();
-                final boolean[] isInService = {false};
-                
-                ProviderListener providerListener = new ProviderListener() {
-                    @Override
-                    public void providerEventTransmissionEnded(ProviderEvent event) {}
-                    
-                    @Override
-                    public void providerInService(ProviderEvent event) {
-                        synchronized (lock) {
-                            isInService[0] = true;
-                            lock.notify();
-                        }
-                    }
+                    conn.address = conn.provider.getAddress(extension);
+                    System.out.println("[" + extension + "] 地址創建成功");
                     
-                    @Override
-                    public void providerOutOfService(ProviderEvent event) {}
-                    
-                    @Override
-                    public void providerShutdown(ProviderEvent event) {}
-                };
-                
-                conn.provider.addProviderListener(providerListener);
-                
-                // 等待最多 30 秒
-                synchronized (lock) {
-                    long startTime = System.currentTimeMillis();
-                    while (!isInService[0] && (System.currentTimeMillis() - startTime) < 30000) {
-                        lock.wait(1000);
-                        System.out.println("[" + extension + "] 等待 Provider 進入服務狀態... " + 
-                                         ((System.currentTimeMillis() - startTime) / 1000) + "秒");
-                    }
-                }
-                
-                if (!isInService[0]) {
-                    throw new Exception("Provider 無法進入服務狀態，超時");
-                }
-                
-                System.out.println("[" + extension + "] Provider 已進入服務狀態");
-                
-                // 對於一般分機，嘗試取得地址和終端
-                if ("extension".equals(conn.userType)) {
-                    try {
-                        conn.address = conn.provider.getAddress(extension);
-                        System.out.println("[" + extension + "] 地址創建成功");
-                        
-                        Terminal[] terminals = conn.address.getTerminals();
-                        if (terminals != null && terminals.length > 0) {
-                            conn.terminal = terminals[0];
-                            System.out.println("[" + extension + "] 終端創建成功");
-                        } else {
-                            conn.terminal = conn.provider.getTerminal(extension);
-                            System.out.println("[" + extension + "] 終端創建成功 (直接方式)");
-                        }
-                    } catch (Exception e) {
-                        System.out.println("[" + extension + "] 無法取得地址或終端: " + e.getMessage());
-                        // 對於分機，這可能是問題，但我們仍然繼續
+                    Terminal[] terminals = conn.address.getTerminals();
+                    if (terminals != null && terminals.length > 0) {
+                        conn.terminal = terminals[0];
+                        System.out.println("[" + extension + "] 終端創建成功");
+                    } else {
+                        conn.terminal = conn.provider.getTerminal(extension);
+                        System.out.println("[" + extension + "] 終端創建成功 (直接方式)");
                     }
+                } catch (Exception e) {
+                    System.out.println("[" + extension + "] 無法取得地址或終端: " + e.getMessage());
+                    // 對於分機，這可能是問題，但我們仍然繼續
                 }
-                
-                conn.isReady = true;
-                extensions.put(extension, conn);
-                
-                String resultMessage;
-                if ("cti".equals(conn.userType)) {
-                    resultMessage = "CTI 用戶 " + extension + " 登入成功，具備分機控制權限";
-                    System.out.println("[" + extension + "] CTI 用戶登入成功");
-                } else {
-                    resultMessage = "分機 " + extension + " 登入成功";
-                    System.out.println("[" + extension + "] 分機登入成功");
-                }
-                
-                return resultMessage;
-                
-            } catch (Exception e) {
-                System.err.println("[" + extension + "] 登入失敗: " + e.getMessage());
-                e.printStackTrace();
-                return "用戶 " + extension + " 登入失敗: " + e.getMessage();
             }
-        });
+            
+            conn.isReady = true;
+            if (conn.terminal != null) {
+                // 登入後就開始以事件追蹤通話，之後的查詢不需要再掃描終端
+                callRegistry().track(extension, conn.terminal, CallRegistryService.LOGIN_HOLDER);
+            }
+            ExtensionConnection previous = extensions.put(extension, conn);
+            if (previous != null) {
+                // 重複登入時釋放舊連線的 Provider 引用
+                providerPoolService.release(previous.providerKey);
+            }
+            refreshCtiHandles();
+            return conn;
+        }, jtapiExecutor);
+    }
+    
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
     }
     
     /**
@@ -190,30 +292,8 @@ public class PhoneCallService {
                 return "分機 " + callerExt + " 正在撥打給 " + calleeExt + " (直接模式)";
             }
             
-            // 方法2: 使用 CTI 控制模式
-            ExtensionConnection ctiConn = null;
-            
-            // 尋找可用的 CTI 連線
-            for (Map.Entry<String, ExtensionConnection> entry : extensions.entrySet()) {
-                ExtensionConnection conn = entry.getValue();
-                if (conn.isReady && conn.provider != null && "cti".equals(conn.userType)) {
-                    ctiConn = conn;
-                    System.out.println("[CALL] 找到 CTI 連線: " + entry.getKey());
-                    break;
-                }
-            }
-            
-            // 如果沒有 CTI 連線，尋找任何可用的連線
-            if (ctiConn == null) {
-                for (Map.Entry<String, ExtensionConnection> entry : extensions.entrySet()) {
-                    ExtensionConnection conn = entry.getValue();
-                    if (conn.isReady && conn.provider != null) {
-                        ctiConn = conn;
-                        System.out.println("[CALL] 找到可用連線: " + entry.getKey());
-                        break;
-                    }
-                }
-            }
+            // 方法2: 使用 CTI 控制模式（沒有 CTI 用戶時使用任何可用的連線）
+            ExtensionConnection ctiConn = findCTIConnection();
             
             if (ctiConn == null) {
                 return "錯誤：沒有可用的連線，請先登入用戶";
@@ -221,33 +301,16 @@ public class PhoneCallService {
             
             System.out.println("[CALL] 使用 CTI 控制模式控制分機 " + callerExt);
             
-            // 使用 CTI 連線取得目標分機的地址和終端
-            Address callerAddress = null;
-            Terminal callerTerminal = null;
-            
+            // 使用 CTI 連線取得目標分機的地址和終端（優先使用快取）
+            ExtensionConnection callerConn;
             try {
-                callerAddress = ctiConn.provider.getAddress(callerExt);
-                System.out.println("[CALL] 成功取得分機 " + callerExt + " 的地址");
-                
-                // 嘗試取得終端
-                Terminal[] terminals = callerAddress.getTerminals();
-                if (terminals != null && terminals.length > 0) {
-                    callerTerminal = terminals[0];
-                    System.out.println("[CALL] 成功取得分機 " + callerExt + " 的終端");
-                } else {
-                    // 如果沒有終端陣列，嘗試直接取得
-                    try {
-                        callerTerminal = ctiConn.provider.getTerminal(callerExt);
-                        System.out.println("[CALL] 直接取得分機 " + callerExt + " 的終端");
-                    } catch (Exception e) {
-                        System.out.println("[CALL] 無法取得分機 " + callerExt + " 的終端: " + e.getMessage());
-                        return "錯誤：無法控制分機 " + callerExt + "，可能沒有權限或分機不存在";
-                    }
-                }
+                callerConn = getProxyConnection(callerExt, ctiConn);
             } catch (Exception e) {
                 System.err.println("[CALL] 取得分機地址失敗: " + e.getMessage());
                 return "錯誤：無法找到分機 " + callerExt + "，請檢查分機號碼是否正確";
             }
+            Address callerAddress = callerConn.address;
+            Terminal callerTerminal = callerConn.terminal;
             
             if (callerTerminal == null) {
                 return "錯誤：分機 " + callerExt + " 沒有可用的終端設備";
@@ -361,11 +424,16 @@ public class PhoneCallService {
         try {
             ExtensionConnection conn = extensions.remove(extension);
             if (conn != null) {
-                // 關閉 Provider
-                if (conn.provider != null) {
-                    conn.provider.shutdown();
+                // CTI 用戶登出後，經由它解析的代理連線不再可用
+                if ("cti".equals(conn.userType)) {
+                    invalidateProxyConnections(conn.provider);
                 }
                 
+                // 釋放共用 Provider，最後一個使用者登出時才關閉 session
+                providerPoolService.release(conn.providerKey);
+                refreshCtiHandles();
+                releaseCallTracking(extension);
+                
                 System.out.println("[" + extension + "] 已登出");
                 return "用戶 " + extension + " 已登出";
             } else {
@@ -418,13 +486,8 @@ public class PhoneCallService {
      * 取得 Provider (供 AgentService 使用)
      */
     public Provider getProvider() {
-        // 嘗試找到任何可用的 Provider
-        for (ExtensionConnection conn : extensions.values()) {
-            if (conn.isReady && conn.provider != null) {
-                return conn.provider;
-            }
-        }
-        return null;
+        ExtensionConnection conn = findCTIConnection();
+        return conn != null ? conn.provider : null;
     }
     
     public ExtensionConnection getExtensionConnection(String extension) {
@@ -434,36 +497,121 @@ public class PhoneCallService {
             return directConn;
         }
         
-        // 如果沒有直接登入，找 CTI 連線
+        // 已解析過的代理連線直接回傳，不重新向交換機查詢
+        ExtensionConnection cached = proxyConnections.get(extension);
+        if (cached != null && cached.isReady) {
+            return cached;
+        }
+        
+        // 如果沒有直接登入，使用目前的 CTI 連線
+        ExtensionConnection ctiConn = selectCtiConnection();
+        if (ctiConn != null) {
+            try {
+                return getProxyConnection(extension, ctiConn);
+            } catch (Exception e) {
+                System.err.println("[CTI_PROXY] 建立 CTI 代理連線失敗: " + e.getMessage());
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * 取得 CTI 代理連線，同一個 Provider 解析過的分機直接使用快取
+     */
+    private ExtensionConnection getProxyConnection(String extension, ExtensionConnection ctiConn) throws Exception {
+        ExtensionConnection cached = proxyConnections.get(extension);
+        if (cached != null && cached.isReady && cached.provider == ctiConn.provider) {
+            return cached;
+        }
+        
+        // 回傳 CTI 連線，但需要設定目標分機地址
+        ExtensionConnection ctiForExtension = new ExtensionConnection();
+        ctiForExtension.peer = ctiConn.peer;
+        ctiForExtension.provider = ctiConn.provider;
+        ctiForExtension.serviceName = ctiConn.serviceName;
+        ctiForExtension.userType = "cti_proxy";
+        ctiForExtension.isReady = true;
+        
+        // 取得目標分機的地址和終端
+        ctiForExtension.address = ctiConn.provider.getAddress(extension);
+        Terminal[] terminals = ctiForExtension.address.getTerminals();
+        if (terminals != null && terminals.length > 0) {
+            ctiForExtension.terminal = terminals[0];
+        } else {
+            ctiForExtension.terminal = ctiConn.provider.getTerminal(extension);
+        }
+        
+        // 只快取經由 CTI 用戶解析的結果，其他分機的 Provider 不代表有 CTI 權限
+        if ("cti".equals(ctiConn.userType)) {
+            proxyConnections.put(extension, ctiForExtension);
+        }
+        return ctiForExtension;
+    }
+    
+    /**
+     * Provider 中斷時，立即把使用它的連線標記為不可用
+     */
+    private void markConnectionsDown(Provider provider) {
         for (Map.Entry<String, ExtensionConnection> entry : extensions.entrySet()) {
             ExtensionConnection conn = entry.getValue();
-            if (conn.isReady && conn.provider != null && "cti".equals(conn.userType)) {
-                // 回傳 CTI 連線，但需要設定目標分機地址
+            if (conn.provider == provider && conn.isReady) {
+                conn.isReady = false;
+                System.out.println("[" + entry.getKey() + "] Provider 中斷，連線標記為不可用");
+            }
+        }
+    }
+    
+    /**
+     * Provider 重連成功：換上新的 Provider、重新取得地址/終端，再通知其他服務重新掛上監聽器
+     */
+    private void onProviderReconnected(Provider oldProvider, Provider newProvider) {
+        for (Map.Entry<String, ExtensionConnection> entry : extensions.entrySet()) {
+            String extension = entry.getKey();
+            ExtensionConnection conn = entry.getValue();
+            if (conn.provider != oldProvider) continue;
+            
+            conn.provider = newProvider;
+            if ("extension".equals(conn.userType)) {
                 try {
-                    ExtensionConnection ctiForExtension = new ExtensionConnection();
-                    ctiForExtension.peer = conn.peer;
-                    ctiForExtension.provider = conn.provider;
-                    ctiForExtension.serviceName = conn.serviceName;
-                    ctiForExtension.userType = "cti_proxy";
-                    ctiForExtension.isReady = true;
-                    
-                    // 取得目標分機的地址和終端
-                    ctiForExtension.address = conn.provider.getAddress(extension);
-                    Terminal[] terminals = ctiForExtension.address.getTerminals();
-                    if (terminals != null && terminals.length > 0) {
-                        ctiForExtension.terminal = terminals[0];
-                    } else {
-                        ctiForExtension.terminal = conn.provider.getTerminal(extension);
-                    }
-                    
-                    return ctiForExtension;
+                    conn.address = newProvider.getAddress(extension);
+                    Terminal[] terminals = conn.address.getTerminals();
+                    conn.terminal = terminals != null && terminals.length > 0
+                            ? terminals[0] : newProvider.getTerminal(extension);
                 } catch (Exception e) {
-                    System.err.println("[CTI_PROXY] 建立 CTI 代理連線失敗: " + e.getMessage());
+                    System.err.println("[" + extension + "] 重連後無法取得地址或終端: " + e.getMessage());
                 }
             }
+            conn.isReady = true;
+            System.out.println("[" + extension + "] 已換上重連後的 Provider");
         }
+        refreshCtiHandles();
         
-        return null;
+        for (Consumer<Provider> hook : reconnectHooks) {
+            try {
+                hook.accept(newProvider);
+            } catch (Exception e) {
+                System.err.println("[RECONNECT] 重連後處理失敗: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * 清除使用指定 Provider 的代理連線快取
+     */
+    private void invalidateProxyConnections(Provider provider) {
+        int before = proxyConnections.size();
+        proxyConnections.values().removeIf(proxy -> {
+            if (proxy.provider == provider) {
+                proxy.isReady = false;
+                return true;
+            }
+            return false;
+        });
+        int removed = before - proxyConnections.size();
+        if (removed > 0) {
+            System.out.println("[CTI_PROXY] 已清除 " + removed + " 筆代理連線快取");
+        }
     }
     
     /**
@@ -473,13 +621,15 @@ public class PhoneCallService {
         ExtensionConnection conn = extensions.get(extension);
         if (conn != null) {
             try {
-                // 關閉 Provider 連線
-                if (conn.provider != null) {
-                    conn.provider.shutdown();
+                // 從連線池中移除並釋放共用 Provider
+                if (extensions.remove(extension, conn)) {
+                    if ("cti".equals(conn.userType)) {
+                        invalidateProxyConnections(conn.provider);
+                    }
+                    providerPoolService.release(conn.providerKey);
+                    refreshCtiHandles();
+                    releaseCallTracking(extension);
                 }
-                
-                // 從連線池中移除
-                extensions.remove(extension);
                 System.out.println("[" + extension + "] 連線已從池中清理");
                 
             } catch (Exception e) {
@@ -495,6 +645,11 @@ public class PhoneCallService {
         try {
             ExtensionConnection conn = getExtensionConnection(extension);
             if (conn != null && conn.terminal != null) {
+                CallRegistryService.CallSnapshot snapshot = callRegistry().snapshotFor(extension, conn.terminal);
+                if (snapshot != null) {
+                    return snapshot.hasActiveCall();
+                }
+                
                 TerminalConnection[] termConnections = conn.terminal.getTerminalConnections();
                 if (termConnections != null) {
                     for (TerminalConnection termConn : termConnections) {
@@ -517,6 +672,11 @@ public class PhoneCallService {
         try {
             ExtensionConnection conn = getExtensionConnection(extension);
             if (conn != null && conn.terminal != null) {
+                CallRegistryService.CallSnapshot snapshot = callRegistry().snapshotFor(extension, conn.terminal);
+                if (snapshot != null) {
+                    return snapshot.activeCall;
+                }
+                
                 TerminalConnection[] termConnections = conn.terminal.getTerminalConnections();
                 if (termConnections != null) {
                     for (TerminalConnection termConn : termConnections) {
@@ -539,6 +699,11 @@ public class PhoneCallService {
         try {
             ExtensionConnection conn = getExtensionConnection(extension);
             if (conn != null && conn.terminal != null) {
+                CallRegistryService.CallSnapshot snapshot = callRegistry().snapshotFor(extension, conn.terminal);
+                if (snapshot != null) {
+                    return snapshot.getCalls();
+                }
+                
                 TerminalConnection[] termConnections = conn.terminal.getTerminalConnections();
                 if (termConnections != null) {
                     Call[] calls = new Call[termConnections.length];
@@ -561,6 +726,11 @@ public class PhoneCallService {
         try {
             ExtensionConnection conn = getExtensionConnection(extension);
             if (conn != null && conn.terminal != null) {
+                CallRegistryService.CallSnapshot snapshot = callRegistry().snapshotFor(extension, conn.terminal);
+                if (snapshot != null) {
+                    return snapshot.hasHeldCall();
+                }
+                
                 TerminalConnection[] termConnections = conn.terminal.getTerminalConnections();
                 if (termConnections != null) {
                     for (TerminalConnection termConn : termConnections) {
@@ -579,30 +749,131 @@ public class PhoneCallService {
         return false;
     }
     
+    /**
+     * 釋放登入時的通話追蹤；仍有其他持有者（例如 SSE 訂閱）時改用 CTI 代理連線的終端繼續追蹤
+     */
+    private void releaseCallTracking(String extension) {
+        CallRegistryService registry = callRegistry();
+        registry.release(extension, CallRegistryService.LOGIN_HOLDER);
+        registry.retrack(extension);
+    }
+    
+    /**
+     * 通話登記服務（使用 ApplicationContext 避免循環依賴）
+     */
+    private CallRegistryService callRegistry() {
+        return applicationContext.getBean(CallRegistryService.class);
+    }
+    
     // ========================================
     // 以下是原有的輔助方法
     // ========================================
     
     private ExtensionConnection findCTIConnection() {
-        // 優先尋找 CTI 用戶
-        for (Map.Entry<String, ExtensionConnection> entry : extensions.entrySet()) {
-            ExtensionConnection conn = entry.getValue();
-            if (conn.isReady && conn.provider != null && "cti".equals(conn.userType)) {
-                System.out.println("[CTI] 找到 CTI 連線: " + entry.getKey());
-                return conn;
+        // 優先使用 CTI 用戶
+        ExtensionConnection ctiConn = selectCtiConnection();
+        if (ctiConn != null) {
+            return ctiConn;
+        }
+        
+        // 如果沒有，使用任何可用的連線
+        CtiHandles handles = ctiHandles.get();
+        if (isUsable(handles.fallback)) {
+            System.out.println("[CTI] 找到可用連線: " + handles.fallbackKey);
+            return handles.fallback;
+        }
+        if (handles.fallback != null) {
+            refreshCtiHandles();
+            handles = ctiHandles.get();
+            if (isUsable(handles.fallback)) {
+                return handles.fallback;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 取得目前的 CTI 連線：主要的不可用時立即改用備援並重新選定
+     */
+    private ExtensionConnection selectCtiConnection() {
+        CtiHandles handles = ctiHandles.get();
+        if (isUsable(handles.primary)) {
+            return handles.primary;
+        }
+        if (isUsable(handles.secondary)) {
+            System.out.println("[CTI] 主要 CTI " + handles.primaryKey + " 不可用，切換到備援 " + handles.secondaryKey);
+            refreshCtiHandles();
+            return handles.secondary;
+        }
+        if (handles.primary != null) {
+            // 主要與備援都失效，重新選定一次
+            refreshCtiHandles();
+            handles = ctiHandles.get();
+            if (isUsable(handles.primary)) {
+                return handles.primary;
             }
         }
+        return null;
+    }
+    
+    /**
+     * 重新選定主要/備援 CTI 連線，在登入、登出和 Provider 狀態變化時呼叫
+     */
+    private synchronized void refreshCtiHandles() {
+        CtiHandles current = ctiHandles.get();
+        String primaryKey = null, secondaryKey = null, fallbackKey = null;
+        ExtensionConnection primary = null, secondary = null, fallback = null;
+        
+        // 盡量保留原本的主要 CTI，避免來回切換
+        if (current.primaryKey != null && extensions.get(current.primaryKey) == current.primary && isUsable(current.primary)) {
+            primaryKey = current.primaryKey;
+            primary = current.primary;
+        }
         
-        // 如果沒有，尋找任何可用的連線
         for (Map.Entry<String, ExtensionConnection> entry : extensions.entrySet()) {
             ExtensionConnection conn = entry.getValue();
-            if (conn.isReady && conn.provider != null) {
-                System.out.println("[CTI] 找到可用連線: " + entry.getKey());
-                return conn;
+            if (!isUsable(conn)) continue;
+            
+            if ("cti".equals(conn.userType)) {
+                if (primary == null) {
+                    primaryKey = entry.getKey();
+                    primary = conn;
+                } else if (secondary == null && conn.provider != primary.provider) {
+                    // 備援必須是另一條 session，與主要共用 Provider 時會一起失效
+                    secondaryKey = entry.getKey();
+                    secondary = conn;
+                }
+            } else if (fallback == null) {
+                fallbackKey = entry.getKey();
+                fallback = conn;
             }
         }
+        if (fallback == null) {
+            fallbackKey = primaryKey;
+            fallback = primary;
+        }
         
-        return null;
+        if (!java.util.Objects.equals(primaryKey, current.primaryKey)) {
+            System.out.println("[CTI] 主要 CTI 連線: " + (primaryKey != null ? primaryKey : "無") +
+                             (secondaryKey != null ? "，備援: " + secondaryKey : ""));
+        }
+        ctiHandles.set(new CtiHandles(primaryKey, primary, secondaryKey, secondary, fallbackKey, fallback));
+    }
+    
+    private boolean isCtiLogin(String loginId) {
+        for (String ctiLoginId : ctiLoginIds) {
+            if (ctiLoginId.trim().equals(loginId)) return true;
+        }
+        return false;
+    }
+    
+    private boolean isUsable(ExtensionConnection conn) {
+        if (conn == null || !conn.isReady || conn.provider == null) return false;
+        try {
+            return conn.provider.getState() == Provider.IN_SERVICE;
+        } catch (Exception e) {
+            return false;
+        }
     }
     
     private String answerCallDirect(String extension, ExtensionConnection conn) {
@@ -631,8 +902,7 @@ public class PhoneCallService {
     
     private String answerCallByCTI(String extension, ExtensionConnection ctiConn) {
         try {
-            Address address = ctiConn.provider.getAddress(extension);
-            Terminal terminal = address.getTerminals()[0];
+            Terminal terminal = getProxyConnection(extension, ctiConn).terminal;
             
             TerminalConnection[] termConnections = terminal.getTerminalConnections();
             if (termConnections != null && termConnections.length > 0) {
@@ -686,8 +956,7 @@ public class PhoneCallService {
     
     private String hangupCallByCTI(String extension, ExtensionConnection ctiConn) {
         try {
-            Address address = ctiConn.provider.getAddress(extension);
-            Terminal terminal = address.getTerminals()[0];
+            Terminal terminal = getProxyConnection(extension, ctiConn).terminal;
             
             boolean hasActiveCall = false;
             
@@ -727,27 +996,13 @@ public class PhoneCallService {
             // 使用ApplicationContext來避免循環依賴
             AgentService agentService = applicationContext.getBean(AgentService.class);
             
-            // 先檢查Agent是否登入
-            String agentStatus = agentService.getAgentStatus(extension);
-            
-            // 如果沒有Agent登入，則允許通話（普通分機模式）
-            if (agentStatus.contains("沒有 Agent 登入")) {
-                System.out.println("[AGENT_CHECK] 分機 " + extension + " 沒有Agent登入，允許通話");
-                return true;
-            }
-            
-            // 有Agent登入，檢查狀態
-            if (agentStatus.contains("待機中")) {
-                System.out.println("[AGENT_CHECK] 分機 " + extension + " Agent處於待機狀態，允許通話");
-                return true;
-            } else if (agentStatus.contains("忙碌中") || agentStatus.contains("休息中")) {
-                System.out.println("[AGENT_CHECK] 分機 " + extension + " Agent處於" + 
-                                 (agentStatus.contains("忙碌中") ? "忙碌" : "休息") + "狀態，拒絕通話");
-                return false;
+            // 有狀態監聽器時讀本地記錄，否則向交換機查詢
+            AgentService.AgentAvailability availability = agentService.getAvailability(extension);
+            if (!availability.acceptsCalls) {
+                System.out.println("[AGENT_CHECK] 分機 " + extension + " Agent處於" +
+                                 (availability == AgentService.AgentAvailability.BUSY ? "忙碌" : "休息") + "狀態，拒絕通話");
             }
-            
-            // 其他狀態預設允許
-            return true;
+            return availability.acceptsCalls;
             
         } catch (Exception e) {
             System.err.println("[AGENT_CHECK] 檢查Agent狀態失敗: " + e.getMessage());
@@ -760,22 +1015,24 @@ public class PhoneCallService {
      * 檢查分機是否可接受來電（對外API）
      */
     public String checkExtensionAvailability(String extension) {
-        if (isAgentAvailable(extension)) {
+        AgentService.AgentAvailability availability;
+        try {
+            availability = applicationContext.getBean(AgentService.class).getAvailability(extension);
+        } catch (Exception e) {
+            System.err.println("[AGENT_CHECK] 檢查Agent狀態失敗: " + e.getMessage());
+            // 發生錯誤時預設允許通話
             return "分機 " + extension + " 可接受來電";
-        } else {
-            try {
-                AgentService agentService = applicationContext.getBean(AgentService.class);
-                String agentStatus = agentService.getAgentStatus(extension);
-                if (agentStatus.contains("忙碌中")) {
-                    return "分機 " + extension + " 的Agent處於忙碌狀態，暫時無法接受來電";
-                } else if (agentStatus.contains("休息中")) {
-                    return "分機 " + extension + " 的Agent處於休息狀態，暫時無法接受來電";
-                } else {
-                    return "分機 " + extension + " 暫時無法接受來電";
-                }
-            } catch (Exception e) {
-                return "分機 " + extension + " 暫時無法接受來電";
-            }
+        }
+        
+        switch (availability) {
+            case BUSY:
+                return "分機 " + extension + " 的Agent處於忙碌狀態，暫時無法接受來電";
+            case ON_BREAK:
+                return "分機 " + extension + " 的Agent處於休息狀態，暫時無法接受來電";
+            default:
+                return availability.acceptsCalls
+                        ? "分機 " + extension + " 可接受來電"
+                        : "分機 " + extension + " 暫時無法接受來電";
         }
     }
 }
\ No newline at end of file
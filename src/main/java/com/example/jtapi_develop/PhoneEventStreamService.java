@@ -0,0 +1,284 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import jakarta.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 話機事件推播服務 - 以 SSE 推送線路、來電與監聽狀態變化，取代瀏覽器定時輪詢
+ * 事件來源為 CallRegistryService 的快照變化與 MonitorService 的會話變化
+ */
+@Service
+public class PhoneEventStreamService {
+
+    @Autowired
+    private PhoneCallService phoneCallService;
+
+    @Autowired
+    private CallRegistryService callRegistryService;
+
+    @Autowired
+    private PhoneSnapshotService phoneSnapshotService;
+
+    @Autowired
+    private MonitorService monitorService;
+
+    @Autowired
+    private ExecutorService jtapiExecutor;
+
+    // 串流最長保持 30 分鐘，瀏覽器 EventSource 會自動重連
+    private static final long STREAM_TIMEOUT_MS = 30 * 60 * 1000L;
+    private static final long HEARTBEAT_SECONDS = 20;
+
+    /**
+     * 單一瀏覽器分頁的訂閱
+     */
+    private static class Subscription {
+        final SseEmitter emitter;
+        final String extension;        // 話機本身的分機，推送 lines / incoming / monitor-session
+        final List<String> watched;    // 監聽列表中的分機，推送 monitor
+
+        Subscription(SseEmitter emitter, String extension, List<String> watched) {
+            this.emitter = emitter;
+            this.extension = extension;
+            this.watched = watched;
+        }
+    }
+
+    // 分機 -> 訂閱該分機線路的連線
+    private final ConcurrentHashMap<String, List<Subscription>> lineSubscribers = new ConcurrentHashMap<>();
+
+    // 分機 -> 在監聽列表中關注該分機的連線
+    private final ConcurrentHashMap<String, List<Subscription>> watchSubscribers = new ConcurrentHashMap<>();
+
+    // 每個分機是否已有待推送的更新，短時間內的多個事件合併成一次推送
+    private final ConcurrentHashMap<String, AtomicBoolean> pendingPushes = new ConcurrentHashMap<>();
+
+    // 每個分機上次推送時的響鈴數，用來判斷新來電
+    private final ConcurrentHashMap<String, Integer> lastRingingCounts = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "phone-stream-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        callRegistryService.addChangeListener((extension, snapshot) -> schedulePush(extension));
+        monitorService.addSessionChangeListener(this::pushMonitorSession);
+        heartbeat.scheduleAtFixedRate(this::sendHeartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 訂閱分機的話機事件
+     */
+    public SseEmitter subscribe(String extension, List<String> watched) {
+        SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MS);
+        Subscription subscription = new Subscription(emitter, extension, watched);
+
+        addSubscriber(lineSubscribers, extension, subscription);
+        for (String watchedExtension : watched) {
+            addSubscriber(watchSubscribers, watchedExtension, subscription);
+        }
+
+        emitter.onCompletion(() -> removeSubscription(subscription));
+        emitter.onTimeout(() -> removeSubscription(subscription));
+        emitter.onError(error -> removeSubscription(subscription));
+
+        System.out.println("[STREAM] 分機 " + extension + " 開始訂閱話機事件，監聽列表: " + watched);
+
+        // 開始追蹤並送出目前狀態
+        jtapiExecutor.execute(() -> {
+            ensureTracked(extension, subscription);
+            watched.forEach(watchedExtension -> ensureTracked(watchedExtension, subscription));
+
+            PhoneSnapshotService.ExtensionSnapshot snapshot = phoneSnapshotService.getSnapshot(extension);
+            lastRingingCounts.put(extension, snapshot.ringingCount);
+            send(subscription, "lines", snapshot);
+            for (String watchedExtension : watched) {
+                send(subscription, "monitor", phoneSnapshotService.getSnapshot(watchedExtension));
+            }
+        });
+        return emitter;
+    }
+
+    /**
+     * 查看目前的訂閱數
+     */
+    public String getStreamStatus() {
+        int total = 0;
+        StringBuilder detail = new StringBuilder();
+        for (Map.Entry<String, List<Subscription>> entry : lineSubscribers.entrySet()) {
+            if (entry.getValue().isEmpty()) continue;
+            total += entry.getValue().size();
+            detail.append("分機 ").append(entry.getKey()).append(": ").append(entry.getValue().size()).append(" 個連線\n");
+        }
+        return "=== 話機事件串流 ===\n總連線數: " + total + "\n" + detail;
+    }
+
+    /**
+     * 合併短時間內的多個事件，每個分機同時只排一次推送
+     */
+    private void schedulePush(String extension) {
+        if (!hasSubscribers(lineSubscribers, extension) && !hasSubscribers(watchSubscribers, extension)) return;
+
+        AtomicBoolean pending = pendingPushes.computeIfAbsent(extension, k -> new AtomicBoolean(false));
+        if (pending.compareAndSet(false, true)) {
+            jtapiExecutor.execute(() -> {
+                pending.set(false);
+                pushExtension(extension);
+            });
+        }
+    }
+
+    private void pushExtension(String extension) {
+        PhoneSnapshotService.ExtensionSnapshot snapshot = phoneSnapshotService.getSnapshot(extension);
+
+        List<Subscription> lineSubs = lineSubscribers.get(extension);
+        if (lineSubs != null && !lineSubs.isEmpty()) {
+            Integer previousRinging = lastRingingCounts.put(extension, snapshot.ringingCount);
+            boolean newIncoming = snapshot.ringingCount > (previousRinging != null ? previousRinging : 0);
+            for (Subscription subscription : lineSubs) {
+                if (newIncoming) {
+                    send(subscription, "incoming", snapshot);
+                }
+                send(subscription, "lines", snapshot);
+            }
+        }
+
+        List<Subscription> watchSubs = watchSubscribers.get(extension);
+        if (watchSubs != null) {
+            for (Subscription subscription : watchSubs) {
+                send(subscription, "monitor", snapshot);
+            }
+        }
+    }
+
+    private void pushMonitorSession(String supervisorExtension) {
+        List<Subscription> subs = lineSubscribers.get(supervisorExtension);
+        if (subs == null || subs.isEmpty()) return;
+
+        MonitorService.MonitorSession session = monitorService.getMonitorSession(supervisorExtension);
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("supervisorExtension", supervisorExtension);
+        data.put("active", session != null && session.isActive);
+        data.put("targetExtension", session != null ? session.targetExtension : null);
+        data.put("monitorType", session != null ? session.monitorType : null);
+
+        jtapiExecutor.execute(() -> {
+            for (Subscription subscription : subs) {
+                send(subscription, "monitor-session", data);
+            }
+        });
+    }
+
+    /**
+     * 定時送出心跳，順便補追蹤之前還沒連線的分機（例如 CTI 稍後才登入）
+     */
+    private void sendHeartbeat() {
+        try {
+            lineSubscribers.forEach((extension, subs) -> subs.forEach(sub -> ensureTracked(extension, sub)));
+            watchSubscribers.forEach((extension, subs) -> subs.forEach(sub -> ensureTracked(extension, sub)));
+
+            List<Subscription> all = new ArrayList<>();
+            lineSubscribers.values().forEach(all::addAll);
+            for (Subscription subscription : all) {
+                try {
+                    synchronized (subscription) {
+                        subscription.emitter.send(SseEmitter.event().comment("heartbeat"));
+                    }
+                } catch (Exception e) {
+                    removeSubscription(subscription);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("[STREAM] 心跳處理失敗: " + e.getMessage());
+        }
+    }
+
+    private boolean hasSubscribers(Map<String, List<Subscription>> subscribers, String extension) {
+        List<Subscription> subs = subscribers.get(extension);
+        return subs != null && !subs.isEmpty();
+    }
+
+    /**
+     * 以訂閱為持有者追蹤分機，訂閱結束時釋放
+     */
+    private void ensureTracked(String extension, Subscription subscription) {
+        if (callRegistryService.hold(extension, subscription)) return;
+
+        PhoneCallService.ExtensionConnection conn = phoneCallService.getExtensionConnection(extension);
+        if (conn != null && conn.terminal != null) {
+            callRegistryService.track(extension, conn.terminal, subscription);
+        }
+    }
+
+    private void send(Subscription subscription, String eventName, Object data) {
+        try {
+            synchronized (subscription) {
+                subscription.emitter.send(SseEmitter.event().name(eventName).data(data, MediaType.APPLICATION_JSON));
+            }
+        } catch (Exception e) {
+            // 瀏覽器已關閉連線
+            removeSubscription(subscription);
+        }
+    }
+
+    private static void addSubscriber(Map<String, List<Subscription>> subscribers, String extension,
+                                      Subscription subscription) {
+        subscribers.compute(extension, (k, subs) -> {
+            List<Subscription> list = subs != null ? subs : new CopyOnWriteArrayList<>();
+            list.add(subscription);
+            return list;
+        });
+    }
+
+    /**
+     * 移除訂閱，最後一個訂閱離開時連同列表一起移除，避免分機越積越多
+     */
+    private static boolean removeSubscriber(Map<String, List<Subscription>> subscribers, String extension,
+                                            Subscription subscription) {
+        boolean[] removed = new boolean[1];
+        subscribers.computeIfPresent(extension, (k, subs) -> {
+            removed[0] = subs.remove(subscription);
+            return subs.isEmpty() ? null : subs;
+        });
+        return removed[0];
+    }
+
+    private void removeSubscription(Subscription subscription) {
+        boolean removed = removeSubscriber(lineSubscribers, subscription.extension, subscription);
+        if (!lineSubscribers.containsKey(subscription.extension)) {
+            lastRingingCounts.remove(subscription.extension);
+        }
+        for (String watchedExtension : subscription.watched) {
+            removeSubscriber(watchSubscribers, watchedExtension, subscription);
+        }
+        callRegistryService.release(subscription.extension, subscription);
+        for (String watchedExtension : subscription.watched) {
+            callRegistryService.release(watchedExtension, subscription);
+        }
+
+        if (removed) {
+            try {
+                subscription.emitter.complete();
+            } catch (Exception ignored) {
+            }
+            System.out.println("[STREAM] 分機 " + subscription.extension + " 的話機事件訂閱已結束");
+        }
+    }
+}
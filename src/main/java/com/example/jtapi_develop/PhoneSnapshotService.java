@@ -0,0 +1,191 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import javax.telephony.*;
+import javax.telephony.callcontrol.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 話機快照服務 - 一次回傳多個分機的線路、保持/響鈴數與 Agent 狀態
+ * 通話狀態取自 CallRegistryService 的事件快照，各分機並行整理
+ */
+@Service
+public class PhoneSnapshotService {
+
+    @Autowired
+    private PhoneCallService phoneCallService;
+
+    @Autowired
+    private CallRegistryService callRegistryService;
+
+    @Autowired
+    private UnifiedPhoneService unifiedPhoneService;
+
+    @Autowired
+    private AgentService agentService;
+
+    @Autowired
+    private ExecutorService jtapiExecutor;
+
+    // 單一分機整理快照的上限
+    private static final long SNAPSHOT_TIMEOUT_MS = 5000;
+
+    /**
+     * 單條線路
+     */
+    public static class LineSnapshot {
+        public String lineId;          // 話機上的線路編號，尚未匯入時為 null
+        public String state;           // RINGING / TALKING / HELD / ACTIVE / PASSIVE / UNKNOWN
+        public String remoteParty;
+        public int partyCount;
+        public Boolean incoming;
+        public long durationSeconds;
+    }
+
+    /**
+     * Agent 狀態
+     */
+    public static class AgentSnapshot {
+        public String agentId;
+        public String status;
+        public String callHandlingMode;
+        public String display;
+        public long loginDurationSeconds;
+    }
+
+    /**
+     * 單一分機的快照
+     */
+    public static class ExtensionSnapshot {
+        public String extension;
+        public boolean connected;
+        public List<LineSnapshot> lines = new ArrayList<>();
+        public int activeCount;
+        public int heldCount;
+        public int ringingCount;
+        public String activeLine;
+        public AgentSnapshot agent;
+        public long version;           // 通話快照版本，沒有變化時不變
+        public String error;
+    }
+
+    /**
+     * 取得多個分機的快照，回傳順序與輸入相同
+     */
+    public List<ExtensionSnapshot> getSnapshots(List<String> extensions) {
+        List<CompletableFuture<ExtensionSnapshot>> futures = new ArrayList<>(extensions.size());
+        for (String extension : extensions) {
+            futures.add(CompletableFuture.supplyAsync(() -> buildSnapshot(extension), jtapiExecutor)
+                    .completeOnTimeout(timeoutSnapshot(extension), SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        List<ExtensionSnapshot> result = new ArrayList<>(futures.size());
+        for (CompletableFuture<ExtensionSnapshot> future : futures) {
+            result.add(future.join());
+        }
+        return result;
+    }
+
+    /**
+     * 取得單一分機的快照（在呼叫端執行緒上整理）
+     */
+    public ExtensionSnapshot getSnapshot(String extension) {
+        return buildSnapshot(extension);
+    }
+
+    private ExtensionSnapshot buildSnapshot(String extension) {
+        ExtensionSnapshot snapshot = new ExtensionSnapshot();
+        snapshot.extension = extension;
+        snapshot.agent = toAgentSnapshot(agentService.getLocalAgentStatus(extension));
+
+        try {
+            PhoneCallService.ExtensionConnection conn = phoneCallService.getExtensionConnection(extension);
+            if (conn == null || conn.terminal == null) {
+                snapshot.error = "分機未連線到CTI系統";
+                return snapshot;
+            }
+            snapshot.connected = true;
+
+            CallRegistryService.CallSnapshot calls = callRegistryService.snapshotFor(extension, conn.terminal);
+            if (calls == null) {
+                snapshot.error = "無法追蹤分機通話狀態";
+                return snapshot;
+            }
+
+            UnifiedPhoneService.PhoneState phone = unifiedPhoneService.getPhoneState(extension);
+            snapshot.activeLine = phone != null ? phone.activeLine : null;
+            snapshot.version = calls.version;
+            snapshot.activeCount = calls.activeCount;
+            snapshot.heldCount = calls.heldCount;
+            snapshot.ringingCount = calls.ringingCount;
+
+            long now = System.currentTimeMillis();
+            for (CallRegistryService.CallEntry entry : calls.entries) {
+                LineSnapshot line = new LineSnapshot();
+                line.state = describeState(entry);
+                line.durationSeconds = (now - entry.since) / 1000;
+
+                Connection[] connections = entry.call.getConnections();
+                if (connections != null) {
+                    line.partyCount = connections.length;
+                    for (Connection connection : connections) {
+                        String name = connection.getAddress().getName();
+                        if (!extension.equals(name)) {
+                            line.remoteParty = name;
+                            break;
+                        }
+                    }
+                }
+
+                // 對應話機上已有的線路
+                UnifiedPhoneService.PhoneLine phoneLine = phone != null ? phone.findLineByCall(entry.call) : null;
+                if (phoneLine != null) {
+                    line.lineId = phoneLine.lineId;
+                    line.incoming = phoneLine.isIncoming;
+                    line.durationSeconds = (now - phoneLine.startTime) / 1000;
+                }
+                snapshot.lines.add(line);
+            }
+        } catch (Exception e) {
+            snapshot.error = e.getMessage();
+        }
+        return snapshot;
+    }
+
+    private String describeState(CallRegistryService.CallEntry entry) {
+        if (entry.isHeld()) return "HELD";
+        if (entry.isRinging()) return "RINGING";
+        if (entry.callControlState == CallControlTerminalConnection.TALKING) return "TALKING";
+
+        switch (entry.state) {
+            case TerminalConnection.ACTIVE: return "ACTIVE";
+            case TerminalConnection.PASSIVE: return "PASSIVE";
+            case TerminalConnection.IDLE: return "IDLE";
+            default: return "UNKNOWN";
+        }
+    }
+
+    private AgentSnapshot toAgentSnapshot(AgentService.AgentStatus status) {
+        if (status == null || !status.isLoggedIn) return null;
+
+        AgentSnapshot agent = new AgentSnapshot();
+        agent.agentId = status.agentId;
+        agent.status = status.status;
+        agent.callHandlingMode = status.callHandlingMode;
+        agent.display = status.getStatusDisplay();
+        agent.loginDurationSeconds = status.getLoginDuration();
+        return agent;
+    }
+
+    private ExtensionSnapshot timeoutSnapshot(String extension) {
+        ExtensionSnapshot snapshot = new ExtensionSnapshot();
+        snapshot.extension = extension;
+        snapshot.error = "查詢逾時";
+        return snapshot;
+    }
+}
@@ -0,0 +1,601 @@
+package com.example.jtapi_develop;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import javax.telephony.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Provider 連線池 - 讓多個分機共用少量長駐的 TSAPI Provider
+ * 每條 Provider 都是一個完整的 AES session；分機第一次登入以自己的帳密建立 session 讓交換機驗證，驗證通過後即關閉該 session 改掛到既有的 CTI Provider 上
+ * 連線中斷時由 watchdog 以指數退避自動重連，並通知訂閱者換上新的 Provider
+ */
+@Service
+public class ProviderPoolService {
+
+    /**
+     * 池中的共用 Provider
+     */
+    public static class PooledProvider {
+        public final String loginId;            // 開啟 session 使用的帳號
+        public final boolean isCti;             // 是否為 CTI 用戶（可控制任意分機）
+        public volatile Provider provider;     // 重連後會換成新的 Provider
+        public final long createdTime;
+        public final AtomicInteger refCount = new AtomicInteger(0);
+        private final String password;
+        private boolean closed = false;
+
+        // 健康狀態統計
+        public volatile long downSince = 0;    // 0 表示目前正常
+        public volatile String lastDownReason;
+        public volatile long totalDowntimeMs = 0;
+        public volatile int reconnectCount = 0;
+        public volatile int failedReconnects = 0;
+
+        PooledProvider(String loginId, String password, boolean isCti, Provider provider) {
+            this.loginId = loginId;
+            this.password = password;
+            this.isCti = isCti;
+            this.provider = provider;
+            this.createdTime = System.currentTimeMillis();
+        }
+
+        public boolean isInService() {
+            try {
+                return provider.getState() == Provider.IN_SERVICE;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+        
+        /**
+         * 增加引用，已被關閉則回傳 false
+         */
+        synchronized boolean retain() {
+            if (closed) return false;
+            refCount.incrementAndGet();
+            return true;
+        }
+        
+        /**
+         * 減少引用，引用歸零時標記為關閉並回傳 true
+         */
+        synchronized boolean releaseRef() {
+            if (closed) return false;
+            if (refCount.decrementAndGet() <= 0) {
+                closed = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        synchronized void markClosed() {
+            closed = true;
+        }
+
+        /**
+         * 標記為中斷，第一次標記時回傳 true
+         */
+        synchronized boolean markDown(String reason) {
+            if (closed || downSince != 0) return false;
+            downSince = System.currentTimeMillis();
+            lastDownReason = reason;
+            return true;
+        }
+
+        synchronized void markUp() {
+            if (downSince != 0) {
+                totalDowntimeMs += System.currentTimeMillis() - downSince;
+                downSince = 0;
+            }
+        }
+
+        public long getCurrentDowntimeMs() {
+            long since = downSince;
+            return since == 0 ? 0 : System.currentTimeMillis() - since;
+        }
+    }
+    
+    // 等待 Provider 進入服務狀態的上限
+    private static final long PROVIDER_READY_TIMEOUT_SECONDS = 30;
+
+    // 重連退避：第一次 1 秒後重試，每次加倍，最多 60 秒
+    private static final long RECONNECT_INITIAL_DELAY_MS = 1000;
+    private static final long RECONNECT_MAX_DELAY_MS = 60000;
+
+    // 建立 session 使用的執行器，見 ExecutorConfig
+    @Autowired
+    private ExecutorService jtapiExecutor;
+
+    // 整個應用共用一個 JtapiPeer 和服務名稱
+    private volatile JtapiPeer peer;
+    private volatile String serviceName;
+
+    // loginId -> 共用 Provider
+    private final ConcurrentHashMap<String, PooledProvider> providers = new ConcurrentHashMap<>();
+
+    // 開啟中的 session，同一帳號同時登入時共用同一個等待結果
+    private final ConcurrentHashMap<String, CompletableFuture<PooledProvider>> pendingOpens = new ConcurrentHashMap<>();
+
+    // 已用自己的帳密成功登入過交換機的分機（只存密碼雜湊），只有驗證過的分機才能改掛共用的 CTI Provider
+    private final ConcurrentHashMap<String, String> verifiedCredentials = new ConcurrentHashMap<>();
+
+    // Provider 離線或關閉時要通知的對象（例如清除已解析的地址/終端快取）
+    private final List<Consumer<Provider>> providerDownListeners = new CopyOnWriteArrayList<>();
+
+    // 重連成功時要通知的對象，參數為（舊 Provider, 新 Provider）
+    private final List<BiConsumer<Provider, Provider>> reconnectListeners = new CopyOnWriteArrayList<>();
+
+    // 負責重連的 watchdog
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "provider-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 取得共用的 JtapiPeer（第一次使用時建立）
+     */
+    public JtapiPeer getPeer() throws Exception {
+        if (peer == null) {
+            synchronized (this) {
+                if (peer == null) {
+                    JtapiPeer newPeer;
+                    try {
+                        newPeer = JtapiPeerFactory.getJtapiPeer(null);
+                        System.out.println("[POOL] JtapiPeer 創建成功");
+                    } catch (Exception e) {
+                        try {
+                            newPeer = JtapiPeerFactory.getJtapiPeer("com.avaya.jtapi.tsapi.TsapiPeer");
+                            System.out.println("[POOL] JtapiPeer (Avaya) 創建成功");
+                        } catch (Exception e2) {
+                            throw new Exception("無法創建 JtapiPeer: " + e2.getMessage());
+                        }
+                    }
+
+                    // 取得服務列表
+                    String[] services = newPeer.getServices();
+                    if (services == null || services.length == 0) {
+                        throw new Exception("找不到可用的服務");
+                    }
+                    serviceName = services[0];
+                    System.out.println("[POOL] 使用服務: " + serviceName);
+                    peer = newPeer;
+                }
+            }
+        }
+        return peer;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * 取得一條已在服務中的 CTI Provider 供分機共用
+     * 分機的帳密必須先以自己的 session 向交換機驗證成功過，且密碼相符，否則回傳 null（改走一般登入）
+     */
+    private PooledProvider acquireShared(String loginId, String password) {
+        String verified = verifiedCredentials.get(loginId);
+        if (verified == null || !verified.equals(credentialDigest(password))) {
+            return null;
+        }
+        for (PooledProvider pooled : providers.values()) {
+            if (pooled.isCti && pooled.isInService() && pooled.retain()) {
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 取得分機登入用的 Provider
+     * 帳密驗證過就直接掛到 CTI Provider；否則先以分機自己的帳密開 session 驗證，驗證通過且有 CTI Provider 時立即釋放該 session
+     * 沒有可用的 CTI Provider 時才保留分機自己的 session
+     */
+    public CompletableFuture<PooledProvider> acquireForExtension(String extension, String password) {
+        PooledProvider shared = acquireShared(extension, password);
+        if (shared != null) {
+            System.out.println("[POOL] " + extension + " 共用 CTI Provider (" + shared.loginId + ")，不建立新 session");
+            return CompletableFuture.completedFuture(shared);
+        }
+
+        return acquireAsync(extension, password, false).thenApply(own -> {
+            PooledProvider cti = acquireShared(extension, password);
+            if (cti == null) {
+                return own;
+            }
+            // 帳密已驗證，分機自己的 session 不再需要
+            release(own.loginId);
+            System.out.println("[POOL] " + extension + " 帳密驗證通過，改用 CTI Provider (" + cti.loginId + ")");
+            return cti;
+        });
+    }
+
+    /**
+     * 取得指定帳號的 Provider，已存在就直接共用，否則非同步建立新的 session
+     * 回傳的 future 由 providerInService 事件完成，不會佔住執行緒等待
+     */
+    public CompletableFuture<PooledProvider> acquireAsync(String loginId, String password, boolean isCti) {
+        PooledProvider existing = providers.get(loginId);
+        if (existing != null && existing.isInService()) {
+            if (!existing.password.equals(password)) {
+                return CompletableFuture.failedFuture(new Exception("帳號 " + loginId + " 已有連線，但密碼不符"));
+            }
+            if (existing.retain()) {
+                System.out.println("[POOL] 共用既有 Provider: " + loginId + " (引用數: " + existing.refCount.get() + ")");
+                return CompletableFuture.completedFuture(existing);
+            }
+        }
+
+        // 同一帳號只建立一條 session，其他登入等待同一個結果
+        CompletableFuture<PooledProvider> created = new CompletableFuture<>();
+        CompletableFuture<PooledProvider> opening = pendingOpens.putIfAbsent(loginId, created);
+        if (opening == null) {
+            opening = created;
+            openPooled(loginId, password, isCti).whenComplete((pooled, error) -> {
+                pendingOpens.remove(loginId, created);
+                if (error != null) {
+                    created.completeExceptionally(error);
+                } else {
+                    created.complete(pooled);
+                }
+            });
+        }
+
+        return opening.thenApply(pooled -> {
+            if (!pooled.password.equals(password)) {
+                throw new CompletionException(new Exception("帳號 " + loginId + " 已有連線，但密碼不符"));
+            }
+            if (!pooled.retain()) {
+                throw new CompletionException(new Exception("帳號 " + loginId + " 的 Provider 已關閉"));
+            }
+            return pooled;
+        });
+    }
+
+    /**
+     * 釋放 Provider 引用，最後一個使用者釋放時才真正關閉 session
+     */
+    public void release(String loginId) {
+        if (loginId == null) return;
+
+        PooledProvider pooled = providers.get(loginId);
+        if (pooled == null) return;
+
+        boolean last = pooled.releaseRef();
+        System.out.println("[POOL] 釋放 Provider: " + loginId + " (剩餘引用數: " + Math.max(pooled.refCount.get(), 0) + ")");
+        if (last && providers.remove(loginId, pooled)) {
+            shutdownQuietly(pooled);
+            System.out.println("[POOL] Provider " + loginId + " 已關閉");
+        }
+    }
+
+    /**
+     * 訂閱 Provider 離線/關閉事件
+     */
+    public void addProviderDownListener(Consumer<Provider> listener) {
+        providerDownListeners.add(listener);
+    }
+
+    /**
+     * 訂閱重連成功事件（舊 Provider, 新 Provider）
+     */
+    public void addReconnectListener(BiConsumer<Provider, Provider> listener) {
+        reconnectListeners.add(listener);
+    }
+
+    /**
+     * 查看 Provider 健康狀態與重連統計
+     */
+    public String getHealthStatus() {
+        if (providers.isEmpty()) {
+            return "連線池目前沒有 Provider";
+        }
+
+        StringBuilder status = new StringBuilder("=== Provider 健康狀態 ===\n");
+        for (PooledProvider pooled : providers.values()) {
+            long currentDowntime = pooled.getCurrentDowntimeMs();
+            status.append("帳號 ").append(pooled.loginId).append(": ")
+                  .append(currentDowntime > 0 ? "🔴 中斷中 (" + currentDowntime / 1000 + " 秒)" : "🟢 正常").append("\n");
+            status.append("  重連成功次數: ").append(pooled.reconnectCount)
+                  .append("，重連失敗次數: ").append(pooled.failedReconnects).append("\n");
+            status.append("  累計中斷時間: ").append((pooled.totalDowntimeMs + currentDowntime) / 1000).append(" 秒\n");
+            if (pooled.lastDownReason != null) {
+                status.append("  最後中斷原因: ").append(pooled.lastDownReason).append("\n");
+            }
+        }
+        return status.toString();
+    }
+
+    /**
+     * 查看連線池狀態
+     */
+    public String getPoolStatus() {
+        if (providers.isEmpty()) {
+            return "連線池目前沒有 Provider";
+        }
+
+        StringBuilder status = new StringBuilder("=== Provider 連線池 ===\n");
+        status.append("Session 數: ").append(providers.size()).append("\n");
+        for (PooledProvider pooled : providers.values()) {
+            status.append("帳號 ").append(pooled.loginId)
+                  .append(pooled.isCti ? " (CTI)" : " (分機)")
+                  .append(" - ").append(pooled.isInService() ? "服務中" : "未在服務")
+                  .append(" - 引用數 ").append(pooled.refCount.get())
+                  .append(" - 建立於 ").append(new java.util.Date(pooled.createdTime)).append("\n");
+        }
+        return status.toString();
+    }
+
+    /**
+     * 建立新的 session 並在進入服務後放入池中
+     */
+    private CompletableFuture<PooledProvider> openPooled(String loginId, String password, boolean isCti) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                getPeer();
+
+                // 建立連線字串
+                String providerString = serviceName + ";loginID=" + loginId + ";passwd=" + password;
+                System.out.println("[POOL] 建立 Provider: " + serviceName + ";loginID=" + loginId);
+                return peer.getProvider(providerString);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, jtapiExecutor).thenCompose(provider -> awaitInService(loginId, provider)).thenApply(provider -> {
+            PooledProvider pooled = new PooledProvider(loginId, password, isCti, provider);
+            PooledProvider[] stale = new PooledProvider[1];
+            PooledProvider winner = providers.compute(loginId, (key, current) -> {
+                if (current != null && current.isInService()) {
+                    return current;
+                }
+                stale[0] = current;
+                return pooled;
+            });
+            if (winner != pooled) {
+                // 同一帳號已有在服務中的 session，關閉多開的這一條
+                shutdownQuietly(pooled);
+                return winner;
+            }
+            if (stale[0] != null) {
+                // 舊的 session 已失效，關閉它
+                shutdownQuietly(stale[0]);
+
+                // 舊 session 仍有使用者（例如重連中），轉移引用並讓它們換上新的 Provider
+                int carried = stale[0].refCount.get();
+                if (carried > 0) {
+                    pooled.refCount.addAndGet(carried);
+                    Provider staleProvider = stale[0].provider;
+                    watchdog.execute(() -> notifyReconnected(staleProvider, provider));
+                }
+            }
+            if (!isCti) {
+                // Provider 進入服務代表交換機接受了這組帳密
+                verifiedCredentials.put(loginId, credentialDigest(password));
+            }
+            watchProvider(pooled, provider);
+            System.out.println("[POOL] 新增 Provider: " + loginId + "，目前池中 session 數: " + providers.size());
+            return pooled;
+        });
+    }
+
+    /**
+     * 等待 Provider 進入服務狀態，由 ProviderListener 事件直接完成
+     */
+    private CompletableFuture<Provider> awaitInService(String loginId, Provider provider) {
+        CompletableFuture<Provider> ready = new CompletableFuture<>();
+
+        ProviderListener providerListener = new ProviderListener() {
+            @Override
+            public void providerEventTransmissionEnded(ProviderEvent event) {}
+
+            @Override
+            public void providerInService(ProviderEvent event) {
+                ready.complete(provider);
+            }
+
+            @Override
+            public void providerOutOfService(ProviderEvent event) {}
+
+            @Override
+            public void providerShutdown(ProviderEvent event) {
+                ready.completeExceptionally(new Exception("Provider 在進入服務前已關閉"));
+            }
+        };
+
+        try {
+            provider.addProviderListener(providerListener);
+            // 加入監聽器前可能已經進入服務
+            if (provider.getState() == Provider.IN_SERVICE) {
+                ready.complete(provider);
+            }
+        } catch (Exception e) {
+            ready.completeExceptionally(e);
+        }
+
+        return ready.orTimeout(PROVIDER_READY_TIMEOUT_SECONDS, TimeUnit.SECONDS).handle((p, error) -> {
+            try {
+                provider.removeProviderListener(providerListener);
+            } catch (Exception ignored) {
+            }
+
+            if (error == null) {
+                System.out.println("[POOL] " + loginId + " Provider 已進入服務狀態");
+                return p;
+            }
+
+            try {
+                provider.shutdown();
+            } catch (Exception ignored) {
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof TimeoutException) {
+                throw new CompletionException(new Exception("Provider 無法進入服務狀態，超時"));
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    /**
+     * 持續監聽池中 Provider 的狀態，離線或關閉時通知訂閱者並排程重連
+     */
+    private void watchProvider(PooledProvider pooled, Provider provider) {
+        try {
+            provider.addProviderListener(new ProviderListener() {
+                @Override
+                public void providerEventTransmissionEnded(ProviderEvent event) {}
+
+                @Override
+                public void providerInService(ProviderEvent event) {}
+
+                @Override
+                public void providerOutOfService(ProviderEvent event) {
+                    onProviderDown(pooled, provider, "Provider 離線");
+                }
+
+                @Override
+                public void providerShutdown(ProviderEvent event) {
+                    onProviderDown(pooled, provider, "Provider 已關閉");
+                }
+            });
+        } catch (Exception e) {
+            System.err.println("[POOL] 無法監聽 Provider " + pooled.loginId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Provider 中斷：立即通知訂閱者標記連線不可用，再交給 watchdog 重連
+     */
+    private void onProviderDown(PooledProvider pooled, Provider provider, String reason) {
+        // 主動關閉或已被換掉的 Provider 不處理
+        if (pooled.provider != provider || !pooled.markDown(reason)) return;
+
+        System.out.println("[WATCHDOG] " + pooled.loginId + " " + reason + "，排程重連");
+        notifyProviderDown(provider);
+        scheduleReconnect(pooled, RECONNECT_INITIAL_DELAY_MS);
+    }
+
+    private void scheduleReconnect(PooledProvider pooled, long delayMs) {
+        watchdog.schedule(() -> attemptReconnect(pooled, delayMs), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 嘗試重連，失敗則以加倍的延遲再排程
+     */
+    private void attemptReconnect(PooledProvider pooled, long delayMs) {
+        if (pooled.isClosed()) return;
+
+        Provider oldProvider = pooled.provider;
+
+        // 離線後自行恢復的情況不需要重建 session
+        try {
+            if (oldProvider.getState() == Provider.IN_SERVICE) {
+                pooled.markUp();
+                System.out.println("[WATCHDOG] " + pooled.loginId + " Provider 已自行恢復");
+                notifyReconnected(oldProvider, oldProvider);
+                return;
+            }
+        } catch (Exception ignored) {
+        }
+
+        System.out.println("[WATCHDOG] " + pooled.loginId + " 嘗試重連...");
+        try {
+            oldProvider.shutdown();
+        } catch (Exception ignored) {
+        }
+
+        CompletableFuture<Provider> reconnect;
+        try {
+            String providerString = serviceName + ";loginID=" + pooled.loginId + ";passwd=" + pooled.password;
+            reconnect = awaitInService(pooled.loginId, getPeer().getProvider(providerString));
+        } catch (Exception e) {
+            reconnect = CompletableFuture.failedFuture(e);
+        }
+
+        reconnect.whenComplete((newProvider, error) -> {
+            if (error != null) {
+                pooled.failedReconnects++;
+                long nextDelay = Math.min(delayMs * 2, RECONNECT_MAX_DELAY_MS);
+                System.err.println("[WATCHDOG] " + pooled.loginId + " 重連失敗: " + error.getMessage() +
+                                 "，" + nextDelay / 1000 + " 秒後重試");
+                if (!pooled.isClosed()) {
+                    scheduleReconnect(pooled, nextDelay);
+                }
+                return;
+            }
+
+            if (pooled.isClosed()) {
+                // 重連期間已被釋放
+                try {
+                    newProvider.shutdown();
+                } catch (Exception ignored) {
+                }
+                return;
+            }
+
+            pooled.provider = newProvider;
+            watchProvider(pooled, newProvider);
+            pooled.markUp();
+            pooled.reconnectCount++;
+            System.out.println("[WATCHDOG] " + pooled.loginId + " 重連成功 (第 " + pooled.reconnectCount + " 次)");
+            // 訂閱者會重新查詢地址/終端，不在 JTAPI 事件執行緒上執行
+            watchdog.execute(() -> notifyReconnected(oldProvider, newProvider));
+        });
+    }
+
+    private void notifyReconnected(Provider oldProvider, Provider newProvider) {
+        for (BiConsumer<Provider, Provider> listener : reconnectListeners) {
+            try {
+                listener.accept(oldProvider, newProvider);
+            } catch (Exception e) {
+                System.err.println("[POOL] 通知重連失敗: " + e.getMessage());
+            }
+        }
+    }
+
+    private void notifyProviderDown(Provider provider) {
+        for (Consumer<Provider> listener : providerDownListeners) {
+            try {
+                listener.accept(provider);
+            } catch (Exception e) {
+                System.err.println("[POOL] 通知 Provider 離線失敗: " + e.getMessage());
+            }
+        }
+    }
+
+    private void shutdownQuietly(PooledProvider pooled) {
+        pooled.markClosed();
+        try {
+            pooled.provider.shutdown();
+        } catch (Exception e) {
+            System.err.println("[POOL] 關閉 Provider " + pooled.loginId + " 失敗: " + e.getMessage());
+        }
+    }
+
+    private static String credentialDigest(String password) {
+        try {
+            byte[] hash = java.security.MessageDigest.getInstance("SHA-256")
+                    .digest((password != null ? password : "").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            return java.util.HexFormat.of().formatHex(hash);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
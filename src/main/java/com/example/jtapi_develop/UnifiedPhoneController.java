@@ -1,7 +1,11 @@
 package com.example.jtapi_develop;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -20,10 +24,56 @@ public class UnifiedPhoneController {
     @Autowired
     private AgentService agentService;
     
+    @Autowired
+    private PhoneSnapshotService phoneSnapshotService;
+    
+    @Autowired
+    private PhoneEventStreamService phoneEventStreamService;
+    
     // ========================================
     // 測試和診斷
     // ========================================
     
+    /**
+     * 多分機快照 - 一次取得線路狀態、保持/響鈴數與 Agent 狀態 (JSON)
+     * GET /api/unified-phone/snapshot?exts=1411,1420,1424
+     */
+    @GetMapping("/snapshot")
+    public List<PhoneSnapshotService.ExtensionSnapshot> snapshot(@RequestParam String exts) {
+        List<String> extensions = new ArrayList<>();
+        for (String ext : exts.split(",")) {
+            if (!ext.trim().isEmpty() && !extensions.contains(ext.trim())) {
+                extensions.add(ext.trim());
+            }
+        }
+        return phoneSnapshotService.getSnapshots(extensions);
+    }
+    
+    /**
+     * 話機事件串流 (SSE) - 推送線路、來電與監聽狀態變化，取代定時輪詢
+     * GET /api/unified-phone/stream?ext=1420&watch=1411,1424,1422
+     */
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream(@RequestParam String ext,
+                             @RequestParam(required = false, defaultValue = "") String watch) {
+        List<String> watched = new ArrayList<>();
+        for (String watchedExt : watch.split(",")) {
+            if (!watchedExt.trim().isEmpty() && !watched.contains(watchedExt.trim())) {
+                watched.add(watchedExt.trim());
+            }
+        }
+        return phoneEventStreamService.subscribe(ext, watched);
+    }
+    
+    /**
+     * 查看話機事件串流的連線數
+     * GET /api/unified-phone/stream-status
+     */
+    @GetMapping("/stream-status")
+    public String streamStatus() {
+        return phoneEventStreamService.getStreamStatus();
+    }
+    
     /**
      * 測試API - 確認服務是否正常
      * GET /api/unified-phone/test?ext=1420
@@ -55,6 +105,15 @@ public class UnifiedPhoneController {
         return phoneService.makeCall(ext, number);
     }
     
+    /**
+     * 撥給閒置最久的 Agent
+     * GET /api/unified-phone/dial-agent?ext=1420
+     */
+    @GetMapping("/dial-agent")
+    public String dialBestAgent(@RequestParam String ext) {
+        return phoneService.makeCallToBestAgent(ext);
+    }
+    
     /**
      * 掛斷鍵 (紅色按鍵)
      * GET /api/unified-phone/hangup?ext=1420
@@ -108,6 +167,15 @@ public class UnifiedPhoneController {
         return phoneService.startTransfer(ext, target);
     }
     
+    /**
+     * 轉接給閒置最久的 Agent
+     * GET /api/unified-phone/transfer-agent?ext=1420
+     */
+    @GetMapping("/transfer-agent")
+    public String transferToBestAgent(@RequestParam String ext) {
+        return phoneService.startTransferToBestAgent(ext);
+    }
+    
     /**
      * 轉接鍵 - 完成轉接 (第二次按轉接鍵)
      * GET /api/unified-phone/transfer-complete?ext=1420
@@ -148,6 +216,16 @@ public class UnifiedPhoneController {
         return phoneService.importExistingCalls(ext);
     }
     
+    /**
+     * 線路變化增量查詢 - 只回傳 since 版本之後的變化，沒有變化時 changes 為空 (JSON)
+     * GET /api/unified-phone/changes?ext=1420&since=42
+     */
+    @GetMapping("/changes")
+    public UnifiedPhoneService.LineChanges changes(@RequestParam String ext,
+                                                   @RequestParam(defaultValue = "0") long since) {
+        return phoneService.getLineChanges(ext, since);
+    }
+    
     /**
      * 調試：查看原始通話連線信息
      * GET /api/unified-phone/debug-calls?ext=1420
@@ -309,6 +387,15 @@ public class UnifiedPhoneController {
     public String getServerAvailableLines(@RequestParam String ext) {
         return phoneService.getServerAvailableLines(ext);
     }
+    
+    /**
+     * 查看Server端實際可用線路 (JSON)
+     * GET /api/unified-phone/server-lines?ext=1420&format=json
+     */
+    @GetMapping(value = "/server-lines", params = "format=json")
+    public UnifiedPhoneService.ServerLinesInfo getServerLinesJson(@RequestParam String ext) {
+        return phoneService.getServerLinesInfo(ext);
+    }
 
     /**
      * 線路選擇撥號（網頁專用）
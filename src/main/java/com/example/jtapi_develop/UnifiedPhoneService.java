@@ -1,12 +1,16 @@
 package com.example.jtapi_develop;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
+import jakarta.annotation.PostConstruct;
 import javax.telephony.*;
 import javax.telephony.callcontrol.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
 
 /**
@@ -22,6 +26,12 @@ public class UnifiedPhoneService {
     @Autowired
     private ApplicationContext applicationContext;
     
+    @Autowired
+    private CallRegistryService callRegistryService;
+    
+    @Autowired
+    private java.util.concurrent.ExecutorService jtapiExecutor;
+    
     /**
      * 話機線路狀態
      */
@@ -51,6 +61,8 @@ public class UnifiedPhoneService {
         public boolean isTransferring = false;    // 是否正在轉接
         public String transferTarget = null;      // 轉接目標
         
+        boolean seenInRegistry = false;           // 曾出現在通話登記中，之後從登記消失代表通話已結束
+        
         public PhoneLine(String lineId, Call call, String remoteParty, boolean isIncoming) {
             this.lineId = lineId;
             this.call = call;
@@ -71,6 +83,33 @@ public class UnifiedPhoneService {
         }
     }
     
+    /**
+     * 一筆線路變化（ADDED / UPDATED / REMOVED 帶線路內容，ACTIVE_LINE 只帶 activeLine）
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class LineChange {
+        public long version;
+        public long timestamp;
+        public String type;
+        public String lineId;
+        public LineState state;
+        public String remoteParty;
+        public Boolean incoming;
+        public Boolean conference;
+        public String transferTarget;
+        public String activeLine;
+    }
+    
+    /**
+     * 版本之後的線路變化；resync 為 true 時 changes 是目前完整線路（請求的版本已不在日誌中）
+     */
+    public static class LineChanges {
+        public String extension;
+        public long version;
+        public boolean resync;
+        public List<LineChange> changes = new ArrayList<>();
+    }
+    
     /**
      * 話機狀態（每個分機一個）
      */
@@ -81,9 +120,19 @@ public class UnifiedPhoneService {
         public int maxLines = 3;               // 最大線路數（1420分機實際支援3條）
         private int nextLineNumber = 1;
         
+        // 以 TSAPI call ID 索引線路（見 CallIds.key），導入與核對通話時不需逐條比對
+        private final Map<Object, PhoneLine> linesByCall = new ConcurrentHashMap<>();
+        
+        // 線路變化版本與日誌（保留最近 MAX_CHANGES 筆）
+        private static final int MAX_CHANGES = 256;
+        private long version;
+        private final java.util.ArrayDeque<LineChange> changeJournal = new java.util.ArrayDeque<>();
+        private final Map<String, String> recordedLines = new java.util.HashMap<>();   // lineId -> 上次記錄的內容
+        private String recordedActiveLine;
+        
         public PhoneState(String extension) {
             this.extension = extension;
-            this.lines = new ArrayList<>();
+            this.lines = new CopyOnWriteArrayList<>();
         }
         
         public String generateLineId() {
@@ -94,6 +143,60 @@ public class UnifiedPhoneService {
             return lines.stream().filter(l -> l.lineId.equals(lineId)).findFirst().orElse(null);
         }
         
+        /**
+         * 依通話找線路 - 先查索引；建立線路時還沒有 call ID 的通話查不到，改逐條比對後補上索引
+         */
+        public PhoneLine findLineByCall(Call call) {
+            if (call == null) return null;
+            Object key = CallIds.key(call);
+            PhoneLine line = linesByCall.get(key);
+            if (line != null) return line;
+            
+            for (PhoneLine candidate : lines) {
+                if (CallIds.sameCall(candidate.call, call)) {
+                    linesByCall.put(key, candidate);
+                    return candidate;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * 新增線路（線路表只能透過這幾個方法修改，索引才會一致）
+         */
+        public void addLine(PhoneLine line) {
+            lines.add(line);
+            if (line.call != null) {
+                linesByCall.put(CallIds.key(line.call), line);
+            }
+        }
+        
+        public boolean removeLine(PhoneLine line) {
+            unindex(line);
+            return lines.remove(line);
+        }
+        
+        public boolean removeLinesIf(java.util.function.Predicate<PhoneLine> filter) {
+            return lines.removeIf(line -> {
+                if (!filter.test(line)) return false;
+                unindex(line);
+                return true;
+            });
+        }
+        
+        // 線路可能以 call ID 或（當時還沒有 ID 的）Call 物件為索引，兩種都移除
+        private void unindex(PhoneLine line) {
+            if (line.call != null) {
+                linesByCall.remove(CallIds.key(line.call), line);
+                linesByCall.remove(line.call, line);
+            }
+        }
+        
+        public void clearLines() {
+            lines.clear();
+            linesByCall.clear();
+        }
+        
         public PhoneLine getActiveLine() {
             return lines.stream().filter(l -> l.lineId.equals(activeLine)).findFirst().orElse(null);
         }
@@ -111,13 +214,218 @@ public class UnifiedPhoneService {
         }
         
         public void removeDisconnectedLines() {
-            lines.removeIf(line -> line.state == LineState.DISCONNECTED);
+            removeLinesIf(line -> line.state == LineState.DISCONNECTED);
+        }
+        
+        public synchronized long getVersion() {
+            return version;
         }
+        
+        /**
+         * 與上次記錄比對，把新增、變化、移除的線路寫入日誌（每次線路操作結束後呼叫）
+         */
+        synchronized void recordChanges() {
+            java.util.Set<String> remaining = new java.util.HashSet<>(recordedLines.keySet());
+            for (PhoneLine line : lines) {
+                remaining.remove(line.lineId);
+                String signature = line.state + "|" + line.remoteParty + "|" + line.isConference + "|" + line.transferTarget;
+                String previous = recordedLines.put(line.lineId, signature);
+                if (!signature.equals(previous)) {
+                    appendChange(lineChange(previous == null ? "ADDED" : "UPDATED", line));
+                }
+            }
+            for (String lineId : remaining) {
+                recordedLines.remove(lineId);
+                LineChange change = new LineChange();
+                change.type = "REMOVED";
+                change.lineId = lineId;
+                appendChange(change);
+            }
+            if (!java.util.Objects.equals(activeLine, recordedActiveLine)) {
+                recordedActiveLine = activeLine;
+                LineChange change = new LineChange();
+                change.type = "ACTIVE_LINE";
+                change.activeLine = activeLine;
+                appendChange(change);
+            }
+        }
+        
+        /**
+         * 取得版本之後的變化；沒有變化時 changes 為空
+         */
+        public synchronized LineChanges getChangesSince(long sinceVersion) {
+            LineChanges result = new LineChanges();
+            result.extension = extension;
+            result.version = version;
+            if (sinceVersion == version) {
+                return result;
+            }
+            
+            LineChange oldest = changeJournal.peekFirst();
+            if (sinceVersion > version || oldest == null || sinceVersion < oldest.version - 1) {
+                // 版本超出日誌範圍（太舊或服務重啟過），改回傳完整狀態
+                result.resync = true;
+                for (PhoneLine line : lines) {
+                    result.changes.add(lineChange("ADDED", line));
+                }
+                LineChange active = new LineChange();
+                active.type = "ACTIVE_LINE";
+                active.activeLine = activeLine;
+                result.changes.add(active);
+                return result;
+            }
+            
+            for (LineChange change : changeJournal) {
+                if (change.version > sinceVersion) {
+                    result.changes.add(change);
+                }
+            }
+            return result;
+        }
+        
+        private void appendChange(LineChange change) {
+            change.version = ++version;
+            change.timestamp = System.currentTimeMillis();
+            changeJournal.addLast(change);
+            if (changeJournal.size() > MAX_CHANGES) {
+                changeJournal.removeFirst();
+            }
+        }
+        
+        private LineChange lineChange(String type, PhoneLine line) {
+            LineChange change = new LineChange();
+            change.type = type;
+            change.lineId = line.lineId;
+            change.state = line.state;
+            change.remoteParty = line.remoteParty;
+            change.incoming = line.isIncoming;
+            change.conference = line.isConference;
+            change.transferTarget = line.transferTarget;
+            change.version = version;
+            change.timestamp = System.currentTimeMillis();
+            return change;
+        }
+    }
+    
+    // 同一分機的線路操作依序執行（按鍵、自動刷新、清理不會同時改線路表），與 MultiLineService 共用同一組信箱
+    @Autowired
+    private ExtensionMailbox lineMailbox;
+    
+    /**
+     * 在分機信箱中執行線路操作，結束後把線路變化寫入版本日誌
+     */
+    private <T> T lineOperation(String extension, java.util.function.Supplier<T> action) {
+        return lineMailbox.call(extension, () -> {
+            try {
+                return action.get();
+            } finally {
+                PhoneState phone = phoneStates.get(extension);
+                if (phone != null) {
+                    phone.recordChanges();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Server 端回報的一條終端連線（JSON 格式用）
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class ServerConnection {
+        public String state;              // ACTIVE / RINGING / PASSIVE / DROPPED / IDLE / UNKNOWN
+        public String callControlState;   // HELD / TALKING / RINGING / BRIDGED / INUSE ...，不支援時為 null
+        public Integer partyCount;
+        public String remoteParty;
+        public String error;
+    }
+    
+    /**
+     * Server 端線路狀態（JSON 格式用）
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class ServerLinesInfo {
+        public String extension;
+        public long queryTime;
+        public boolean connected;
+        public List<ServerConnection> connections = new ArrayList<>();
+        public int activeCount;
+        public int ringingCount;
+        public int heldCount;
+        public int busyLines;
+        public int maxLines = 3;
+        public int availableLines;
+        public String error;
     }
     
     // 每個分機的話機狀態
     private final ConcurrentHashMap<String, PhoneState> phoneStates = new ConcurrentHashMap<>();
     
+    @PostConstruct
+    public void init() {
+        // 通話事件一到就同步線路並寫入變化日誌：來電先登記成響鈴線路，按接聽時不必再查詢終端，
+        // /changes 也只需讀日誌。交給背景執行，不在 JTAPI 事件執行緒上等待分機信箱
+        callRegistryService.addChangeListener((extension, snapshot) -> {
+            if (snapshot.ringingCount > 0 || phoneStates.containsKey(extension)) {
+                jtapiExecutor.execute(() -> syncLinesFromRegistry(extension));
+            }
+        });
+    }
+    
+    private void syncLinesFromRegistry(String extension) {
+        lineOperation(extension, () -> {
+            CallRegistryService.CallSnapshot snapshot = callRegistryService.getSnapshot(extension);
+            if (snapshot != null) {
+                applyCallSnapshot(extension, getOrCreatePhone(extension), snapshot);
+            }
+            return null;
+        });
+    }
+    
+    /**
+     * 依通話登記更新線路（只讀記憶體中的登記，不查詢終端）：
+     * 已有線路核對狀態，新的通話建立線路；曾在登記中、現在已消失的線路（終端連線 DROPPED 或通話失效）移除
+     */
+    void applyCallSnapshot(String extension, PhoneState phone, CallRegistryService.CallSnapshot snapshot) {
+        java.util.Set<PhoneLine> presentLines = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+        for (CallRegistryService.CallEntry entry : snapshot.entries) {
+            LineState lineState = mapCallEntryToLineState(entry);
+            PhoneLine line = phone.findLineByCall(entry.call);
+            if (line != null) {
+                line.seenInRegistry = true;
+                presentLines.add(line);
+                if (getTerminalConnectionStateFromLineState(line.state) != entry.state
+                        && lineState != LineState.IDLE && lineState != LineState.DISCONNECTED) {
+                    line.state = lineState;
+                }
+                continue;
+            }
+            
+            if (lineState != LineState.IDLE && lineState != LineState.DISCONNECTED &&
+                    phone.getActiveLineCount() < phone.maxLines) {
+                boolean isIncoming = entry.isRinging() || determineCallDirection(entry.call, extension);
+                PhoneLine newLine = new PhoneLine(phone.generateLineId(), entry.call,
+                                                  findRemoteParty(entry.call, extension), isIncoming);
+                newLine.state = lineState;
+                newLine.seenInRegistry = true;
+                phone.addLine(newLine);
+                presentLines.add(newLine);
+                System.out.println("[UNIFIED_PHONE] " + (entry.isRinging() ? "來電" : "通話") + "登記: " +
+                                 newLine.lineId + " 對方: " + newLine.remoteParty);
+            }
+        }
+        
+        // 剛撥出的通話可能還沒出現在登記中，只移除曾經登記過的；其餘依通話本身的連線狀態判斷
+        phone.removeLinesIf(line -> line.seenInRegistry && !presentLines.contains(line));
+        cleanupDisconnectedLines(phone);
+    }
+    
+    /**
+     * 取得分機的話機狀態（不存在時不建立）
+     */
+    public PhoneState getPhoneState(String extension) {
+        return phoneStates.get(extension);
+    }
+    
     // ========================================
     // 基本通話功能（像話機上的接聽/掛斷鍵）
     // ========================================
@@ -126,35 +434,54 @@ public class UnifiedPhoneService {
      * 接聽來電（綠色接聽鍵）
      */
     public String answerCall(String extension) {
-        try {
-            PhoneState phone = getOrCreatePhone(extension);
-            
-            // 找響鈴的線路
-            PhoneLine ringingLine = phone.lines.stream()
-                .filter(l -> l.state == LineState.RINGING)
-                .findFirst().orElse(null);
-                
-            if (ringingLine == null) {
-                // 檢查是否有新來電
-                ringingLine = detectIncomingCall(extension, phone);
-            }
-            
-            if (ringingLine == null) {
-                return "沒有來電可接聽";
+        return lineOperation(extension, () -> {
+            try {
+                PhoneState phone = getOrCreatePhone(extension);
+                
+                // 找響鈴的線路
+                PhoneLine ringingLine = phone.lines.stream()
+                    .filter(l -> l.state == LineState.RINGING)
+                    .findFirst().orElse(null);
+                    
+                if (ringingLine == null) {
+                    // 檢查是否有新來電
+                    ringingLine = detectIncomingCall(extension, phone);
+                }
+                
+                if (ringingLine == null) {
+                    return "沒有來電可接聽";
+                }
+                
+                // Hold其他活躍線路
+                holdOtherLines(phone, ringingLine.lineId);
+                
+                // 接聽
+                answerLine(extension, ringingLine);
+                ringingLine.state = LineState.TALKING;
+                phone.activeLine = ringingLine.lineId;
+                
+                return "線路 " + ringingLine.lineId + " 接聽：" + ringingLine.getDisplayName();
+                
+            } catch (Exception e) {
+                return "接聽失敗: " + e.getMessage();
             }
-            
-            // Hold其他活躍線路
-            holdOtherLines(phone, ringingLine.lineId);
-            
-            // 接聽
-            answerLine(extension, ringingLine);
-            ringingLine.state = LineState.TALKING;
-            phone.activeLine = ringingLine.lineId;
-            
-            return "線路 " + ringingLine.lineId + " 接聽：" + ringingLine.getDisplayName();
-            
-        } catch (Exception e) {
-            return "接聽失敗: " + e.getMessage();
+        });
+    }
+    
+    /**
+     * 建立線路的結果 - 成功時帶回新線路，派話時據此判斷是否要把 Agent 放回佇列
+     */
+    private static class LineResult {
+        final PhoneLine line;
+        final String message;
+        
+        LineResult(PhoneLine line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+        
+        static LineResult failed(String message) {
+            return new LineResult(null, message);
         }
     }
     
@@ -162,81 +489,106 @@ public class UnifiedPhoneService {
      * 撥打電話（輸入號碼後按撥號鍵）
      */
     public String makeCall(String extension, String target) {
-        try {
-            // 檢查目標分機Agent狀態
-            if (!isAgentAvailable(target)) {
-                return "撥打失敗: 目標分機 " + target + " 的Agent目前不接受來電";
-            }
-            
-            PhoneState phone = getOrCreatePhone(extension);
-            
-            // 清理斷開的線路，防止累積無效資料
-            cleanupDisconnectedLines(phone);
-            
-            if (phone.getActiveLineCount() >= phone.maxLines) {
-                return "已達線路上限";
-            }
-            
-            // Hold當前活躍線路
-            PhoneLine currentActive = phone.getActiveLine();
-            if (currentActive != null) {
-                holdLine(extension, currentActive);
+        return dial(extension, target).message;
+    }
+    
+    private LineResult dial(String extension, String target) {
+        return lineOperation(extension, () -> {
+            try {
+                // 檢查目標分機Agent狀態
+                if (!isAgentAvailable(target)) {
+                    return LineResult.failed("撥打失敗: 目標分機 " + target + " 的Agent目前不接受來電");
+                }
+                
+                PhoneState phone = getOrCreatePhone(extension);
+                
+                // 清理斷開的線路，防止累積無效資料
+                cleanupDisconnectedLines(phone);
+                
+                if (phone.getActiveLineCount() >= phone.maxLines) {
+                    return LineResult.failed("已達線路上限");
+                }
+                
+                // Hold當前活躍線路
+                PhoneLine currentActive = phone.getActiveLine();
+                if (currentActive != null) {
+                    holdLine(extension, currentActive);
+                }
+                
+                // 建立新線路
+                String lineId = phone.generateLineId();
+                Call newCall = createCall(extension, target);
+                
+                PhoneLine newLine = new PhoneLine(lineId, newCall, target, false);
+                newLine.state = LineState.TALKING;
+                phone.addLine(newLine);
+                phone.activeLine = lineId;
+                
+                return new LineResult(newLine, "線路 " + lineId + " 撥打：" + newLine.getDisplayName());
+                
+            } catch (Exception e) {
+                return LineResult.failed("撥打失敗: " + e.getMessage());
             }
-            
-            // 建立新線路
-            String lineId = phone.generateLineId();
-            Call newCall = createCall(extension, target);
-            
-            PhoneLine newLine = new PhoneLine(lineId, newCall, target, false);
-            newLine.state = LineState.TALKING;
-            phone.lines.add(newLine);
-            phone.activeLine = lineId;
-            
-            return "線路 " + lineId + " 撥打：" + newLine.getDisplayName();
-            
-        } catch (Exception e) {
-            return "撥打失敗: " + e.getMessage();
+        });
+    }
+    
+    /**
+     * 撥給目前閒置最久的 Agent（由派話佇列挑選）
+     */
+    public String makeCallToBestAgent(String extension) {
+        AgentRoutingService routingService = applicationContext.getBean(AgentRoutingService.class);
+        AgentRoutingService.AvailableAgent agent = routingService.pickBestAgent(extension);
+        if (agent == null) {
+            return "撥打失敗: 目前沒有可接聽的 Agent";
+        }
+        
+        LineResult result = dial(extension, agent.extension);
+        if (result.line == null) {
+            routingService.returnAgent(agent);
         }
+        return "派話給 Agent " + agent.agentId + " (分機 " + agent.extension + ")\n" + result.message;
     }
     
     /**
      * 掛斷當前線路（紅色掛斷鍵）
      */
     public String hangupCurrentLine(String extension) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            PhoneLine activeLine = phone.getActiveLine();
-            if (activeLine == null) return "沒有活躍線路";
-            
-            // 掛斷
-            disconnectLine(extension, activeLine);
-            activeLine.state = LineState.DISCONNECTED;
-            phone.lines.remove(activeLine);
-            
-            // 自動切換到下一條線路
-            PhoneLine nextLine = phone.getHeldLines().stream().findFirst().orElse(null);
-            if (nextLine != null) {
-                unholdLine(extension, nextLine);
-                phone.activeLine = nextLine.lineId;
-                return "線路 " + activeLine.lineId + " 已掛斷，切換到 " + nextLine.lineId;
-            } else {
-                phone.activeLine = null;
+        return lineOperation(extension, () -> {
+            try {
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
                 
-                // 檢查 Agent 模式，如果是 Manual-in 則自動切換到 AUX
-                String result = "線路 " + activeLine.lineId + " 已掛斷";
-                String auxResult = checkAndSwitchToAuxIfManualIn(extension);
-                if (auxResult != null) {
-                    result += "\n" + auxResult;
+                PhoneLine activeLine = phone.getActiveLine();
+                if (activeLine == null) return "沒有活躍線路";
+                
+                // 掛斷
+                disconnectLine(extension, activeLine);
+                activeLine.state = LineState.DISCONNECTED;
+                phone.removeLine(activeLine);
+                
+                // 自動切換到下一條線路
+                PhoneLine nextLine = phone.getHeldLines().stream().findFirst().orElse(null);
+                if (nextLine != null) {
+                    unholdLine(extension, nextLine);
+                    phone.activeLine = nextLine.lineId;
+                    return "線路 " + activeLine.lineId + " 已掛斷，切換到 " + nextLine.lineId;
+                } else {
+                    phone.activeLine = null;
+                    
+                    // 檢查 Agent 模式，如果是 Manual-in 則自動切換到 AUX
+                    String result = "線路 " + activeLine.lineId + " 已掛斷";
+                    String auxResult = checkAndSwitchToAuxIfManualIn(extension);
+                    if (auxResult != null) {
+                        result += "\n" + auxResult;
+                    }
+                    
+                    return result;
                 }
                 
-                return result;
+            } catch (Exception e) {
+                return "掛斷失敗: " + e.getMessage();
             }
-            
-        } catch (Exception e) {
-            return "掛斷失敗: " + e.getMessage();
-        }
+        });
     }
     
     // ========================================
@@ -247,175 +599,187 @@ public class UnifiedPhoneService {
      * Hold當前線路（Hold鍵）
      */
     public String holdCurrentLine(String extension) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            PhoneLine activeLine = phone.getActiveLine();
-            if (activeLine == null) return "沒有活躍線路";
-            
-            holdLine(extension, activeLine);
-            activeLine.state = LineState.HELD;
-            phone.activeLine = null;
-            
-            return "線路 " + activeLine.lineId + " 已保持";
-            
-        } catch (Exception e) {
-            return "Hold失敗: " + e.getMessage();
-        }
+        return lineOperation(extension, () -> {
+            try {
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
+                
+                PhoneLine activeLine = phone.getActiveLine();
+                if (activeLine == null) return "沒有活躍線路";
+                
+                holdLine(extension, activeLine);
+                activeLine.state = LineState.HELD;
+                phone.activeLine = null;
+                
+                return "線路 " + activeLine.lineId + " 已保持";
+                
+            } catch (Exception e) {
+                return "Hold失敗: " + e.getMessage();
+            }
+        });
     }
     
     /**
      * 一般的 Unhold 功能（恢復被 Hold 的通話）
      */
     public String unholdCall(String extension) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            // 找到被 Hold 的線路
-            List<PhoneLine> heldLines = phone.getHeldLines();
-            if (heldLines.isEmpty()) {
-                return "沒有保持中的線路可以恢復";
-            }
-            
-            // 恢復第一條被 Hold 的線路
-            PhoneLine heldLine = heldLines.get(0);
-            
-            // 先 Hold 當前活躍線路（如果有的話）
-            PhoneLine currentActive = phone.getActiveLine();
-            if (currentActive != null && !currentActive.lineId.equals(heldLine.lineId)) {
-                holdLine(extension, currentActive);
-                currentActive.state = LineState.HELD;
+        return lineOperation(extension, () -> {
+            try {
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
+                
+                // 找到被 Hold 的線路
+                List<PhoneLine> heldLines = phone.getHeldLines();
+                if (heldLines.isEmpty()) {
+                    return "沒有保持中的線路可以恢復";
+                }
+                
+                // 恢復第一條被 Hold 的線路
+                PhoneLine heldLine = heldLines.get(0);
+                
+                // 先 Hold 當前活躍線路（如果有的話）
+                PhoneLine currentActive = phone.getActiveLine();
+                if (currentActive != null && !currentActive.lineId.equals(heldLine.lineId)) {
+                    holdLine(extension, currentActive);
+                    currentActive.state = LineState.HELD;
+                }
+                
+                // 恢復被 Hold 的線路
+                unholdLine(extension, heldLine);
+                heldLine.state = LineState.TALKING;
+                phone.activeLine = heldLine.lineId;
+                
+                return "線路 " + heldLine.lineId + " 已恢復：" + heldLine.getDisplayName();
+                
+            } catch (Exception e) {
+                return "恢復通話失敗: " + e.getMessage();
             }
-            
-            // 恢復被 Hold 的線路
-            unholdLine(extension, heldLine);
-            heldLine.state = LineState.TALKING;
-            phone.activeLine = heldLine.lineId;
-            
-            return "線路 " + heldLine.lineId + " 已恢復：" + heldLine.getDisplayName();
-            
-        } catch (Exception e) {
-            return "恢復通話失敗: " + e.getMessage();
-        }
+        });
     }
 
     /**
      * 一般的 Hold 功能（保持當前活躍通話）
      */
     public String holdActiveCall(String extension) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            PhoneLine activeLine = phone.getActiveLine();
-            if (activeLine == null) return "沒有活躍線路可以保持";
-            
-            if (activeLine.state != LineState.TALKING) {
-                return "線路 " + activeLine.lineId + " 不是通話狀態，無法保持";
+        return lineOperation(extension, () -> {
+            try {
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
+                
+                PhoneLine activeLine = phone.getActiveLine();
+                if (activeLine == null) return "沒有活躍線路可以保持";
+                
+                if (activeLine.state != LineState.TALKING) {
+                    return "線路 " + activeLine.lineId + " 不是通話狀態，無法保持";
+                }
+                
+                // 執行 Hold
+                holdLine(extension, activeLine);
+                activeLine.state = LineState.HELD;
+                phone.activeLine = null;
+                
+                return "線路 " + activeLine.lineId + " 已保持：" + activeLine.getDisplayName();
+                
+            } catch (Exception e) {
+                return "保持通話失敗: " + e.getMessage();
             }
-            
-            // 執行 Hold
-            holdLine(extension, activeLine);
-            activeLine.state = LineState.HELD;
-            phone.activeLine = null;
-            
-            return "線路 " + activeLine.lineId + " 已保持：" + activeLine.getDisplayName();
-            
-        } catch (Exception e) {
-            return "保持通話失敗: " + e.getMessage();
-        }
+        });
     }
 
     /**
      * 智能 Hold/Unhold 切換
      */
     public String toggleHoldCall(String extension) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            PhoneLine activeLine = phone.getActiveLine();
-            List<PhoneLine> heldLines = phone.getHeldLines();
-            
-            if (activeLine != null && activeLine.state == LineState.TALKING) {
-                // 有活躍通話，執行 Hold
-                return holdActiveCall(extension);
-            } else if (!heldLines.isEmpty()) {
-                // 沒有活躍通話但有保持的通話，執行 Unhold
-                return unholdCall(extension);
-            } else {
-                return "沒有可操作的通話";
+        return lineOperation(extension, () -> {
+            try {
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
+                
+                PhoneLine activeLine = phone.getActiveLine();
+                List<PhoneLine> heldLines = phone.getHeldLines();
+                
+                if (activeLine != null && activeLine.state == LineState.TALKING) {
+                    // 有活躍通話，執行 Hold
+                    return holdActiveCall(extension);
+                } else if (!heldLines.isEmpty()) {
+                    // 沒有活躍通話但有保持的通話，執行 Unhold
+                    return unholdCall(extension);
+                } else {
+                    return "沒有可操作的通話";
+                }
+                
+            } catch (Exception e) {
+                return "Hold/Unhold 切換失敗: " + e.getMessage();
             }
-            
-        } catch (Exception e) {
-            return "Hold/Unhold 切換失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 切換到指定線路（線路選擇鍵）
      */
     public String switchToLine(String extension, String lineId) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            PhoneLine targetLine = phone.findLine(lineId);
-            if (targetLine == null) return "線路不存在";
-            
-            // Hold當前活躍線路
-            PhoneLine currentActive = phone.getActiveLine();
-            if (currentActive != null && !currentActive.lineId.equals(lineId)) {
-                holdLine(extension, currentActive);
-                currentActive.state = LineState.HELD;
-            }
-            
-            // 激活目標線路
-            if (targetLine.state == LineState.HELD) {
-                unholdLine(extension, targetLine);
+        return lineOperation(extension, () -> {
+            try {
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
+                
+                PhoneLine targetLine = phone.findLine(lineId);
+                if (targetLine == null) return "線路不存在";
+                
+                // Hold當前活躍線路
+                PhoneLine currentActive = phone.getActiveLine();
+                if (currentActive != null && !currentActive.lineId.equals(lineId)) {
+                    holdLine(extension, currentActive);
+                    currentActive.state = LineState.HELD;
+                }
+                
+                // 激活目標線路
+                if (targetLine.state == LineState.HELD) {
+                    unholdLine(extension, targetLine);
+                }
+                targetLine.state = LineState.TALKING;
+                phone.activeLine = lineId;
+                
+                return "已切換到線路 " + lineId + ": " + targetLine.getDisplayName();
+                
+            } catch (Exception e) {
+                return "切換失敗: " + e.getMessage();
             }
-            targetLine.state = LineState.TALKING;
-            phone.activeLine = lineId;
-            
-            return "已切換到線路 " + lineId + ": " + targetLine.getDisplayName();
-            
-        } catch (Exception e) {
-            return "切換失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 快速切換（像話機的Flash鍵，在兩條線路間切換）
      */
     public String flashSwitch(String extension) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            List<PhoneLine> availableLines = phone.lines.stream()
-                .filter(l -> l.state == LineState.TALKING || l.state == LineState.HELD)
-                .collect(java.util.stream.Collectors.toList());
+        return lineOperation(extension, () -> {
+            try {
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
                 
-            if (availableLines.size() < 2) {
-                return "需要至少兩條線路才能切換";
-            }
-            
-            // 找到非當前活躍的線路
-            PhoneLine targetLine = availableLines.stream()
-                .filter(l -> !l.lineId.equals(phone.activeLine))
-                .findFirst().orElse(null);
+                List<PhoneLine> availableLines = phone.lines.stream()
+                    .filter(l -> l.state == LineState.TALKING || l.state == LineState.HELD)
+                    .collect(java.util.stream.Collectors.toList());
+                    
+                if (availableLines.size() < 2) {
+                    return "需要至少兩條線路才能切換";
+                }
+                
+                // 找到非當前活躍的線路
+                PhoneLine targetLine = availableLines.stream()
+                    .filter(l -> !l.lineId.equals(phone.activeLine))
+                    .findFirst().orElse(null);
+                    
+                if (targetLine != null) {
+                    return switchToLine(extension, targetLine.lineId);
+                }
                 
-            if (targetLine != null) {
-                return switchToLine(extension, targetLine.lineId);
+                return "無法切換";
+                
+            } catch (Exception e) {
+                return "Flash切換失敗: " + e.getMessage();
             }
-            
-            return "無法切換";
-            
-        } catch (Exception e) {
-            return "Flash切換失敗: " + e.getMessage();
-        }
+        });
     }
     
     // ========================================
@@ -426,238 +790,235 @@ public class UnifiedPhoneService {
      * 指定線路撥打電話（新增線路選擇功能）
      */
     public String makeCallOnSpecificLine(String extension, String target, String preferredLineId) {
-        try {
-            // 檢查目標分機Agent狀態
-            if (!isAgentAvailable(target)) {
-                return "撥打失敗: 目標分機 " + target + " 的Agent目前不接受來電";
-            }
-            
-            PhoneState phone = getOrCreatePhone(extension);
-            
-            // 清理斷開的線路，防止累積無效資料
-            cleanupDisconnectedLines(phone);
-            
-            // 檢查指定線路是否真的可用
-            if (preferredLineId != null) {
-                PhoneLine existingLine = phone.findLine(preferredLineId);
-                if (existingLine != null && existingLine.state != LineState.IDLE) {
-                    return "線路 " + preferredLineId + " 正在使用中，無法撥號";
+        return lineOperation(extension, () -> {
+            try {
+                // 檢查目標分機Agent狀態
+                if (!isAgentAvailable(target)) {
+                    return "撥打失敗: 目標分機 " + target + " 的Agent目前不接受來電";
                 }
-            }
-            
-            if (phone.getActiveLineCount() >= phone.maxLines) {
-                return "已達線路上限";
-            }
-            
-            // 檢查指定線路是否可用
-            if (preferredLineId != null && !preferredLineId.isEmpty()) {
-                PhoneLine existingLine = phone.findLine(preferredLineId);
-                if (existingLine != null) {
-                    return "指定線路 " + preferredLineId + " 已被使用";
+                
+                PhoneState phone = getOrCreatePhone(extension);
+                
+                // 清理斷開的線路，防止累積無效資料
+                cleanupDisconnectedLines(phone);
+                
+                // 檢查指定線路是否真的可用
+                if (preferredLineId != null) {
+                    PhoneLine existingLine = phone.findLine(preferredLineId);
+                    if (existingLine != null && existingLine.state != LineState.IDLE) {
+                        return "線路 " + preferredLineId + " 正在使用中，無法撥號";
+                    }
                 }
+                
+                if (phone.getActiveLineCount() >= phone.maxLines) {
+                    return "已達線路上限";
+                }
+                
+                // 檢查指定線路是否可用
+                if (preferredLineId != null && !preferredLineId.isEmpty()) {
+                    PhoneLine existingLine = phone.findLine(preferredLineId);
+                    if (existingLine != null) {
+                        return "指定線路 " + preferredLineId + " 已被使用";
+                    }
+                }
+                
+                // Hold當前活躍線路
+                PhoneLine currentActive = phone.getActiveLine();
+                if (currentActive != null) {
+                    holdLine(extension, currentActive);
+                    currentActive.state = LineState.HELD;
+                }
+                
+                // 建立新線路（使用指定的線路ID或自動生成）
+                String lineId = (preferredLineId != null && !preferredLineId.isEmpty()) 
+                               ? preferredLineId 
+                               : phone.generateLineId();
+                
+                Call newCall = createCall(extension, target);
+                
+                PhoneLine newLine = new PhoneLine(lineId, newCall, target, false);
+                newLine.state = LineState.TALKING;
+                phone.addLine(newLine);
+                phone.activeLine = lineId;
+                
+                return "線路 " + lineId + " 撥打成功：" + newLine.getDisplayName();
+                
+            } catch (Exception e) {
+                return "指定線路撥打失敗: " + e.getMessage();
             }
-            
-            // Hold當前活躍線路
-            PhoneLine currentActive = phone.getActiveLine();
-            if (currentActive != null) {
-                holdLine(extension, currentActive);
-                currentActive.state = LineState.HELD;
-            }
-            
-            // 建立新線路（使用指定的線路ID或自動生成）
-            String lineId = (preferredLineId != null && !preferredLineId.isEmpty()) 
-                           ? preferredLineId 
-                           : phone.generateLineId();
-            
-            Call newCall = createCall(extension, target);
-            
-            PhoneLine newLine = new PhoneLine(lineId, newCall, target, false);
-            newLine.state = LineState.TALKING;
-            phone.lines.add(newLine);
-            phone.activeLine = lineId;
-            
-            return "線路 " + lineId + " 撥打成功：" + newLine.getDisplayName();
-            
-        } catch (Exception e) {
-            return "指定線路撥打失敗: " + e.getMessage();
-        }
+        });
     }
 
     /**
      * 取得可用線路列表 (本地狀態)
      */
     public String getAvailableLines(String extension) {
-        PhoneState phone = getOrCreatePhone(extension);
+        return lineOperation(extension, () -> {
+            PhoneState phone = getOrCreatePhone(extension);
+            
+            StringBuilder result = new StringBuilder();
+            result.append("=== 可用線路狀態 (本地) ===\n");
+            result.append("最大線路數：").append(phone.maxLines).append("\n");
+            result.append("已使用線路：").append(phone.getActiveLineCount()).append("\n");
+            result.append("可用線路數：").append(phone.maxLines - phone.getActiveLineCount()).append("\n\n");
+            
+            // 顯示建議的線路ID
+            if (phone.getActiveLineCount() < phone.maxLines) {
+                String nextLineId = phone.generateLineId();
+                result.append("建議使用線路ID：").append(nextLineId).append("\n");
+            }
+            
+            return result.toString();
+        });
+    }
+    
+    /**
+     * 從Server查詢實際可用線路數量（由 getServerLinesInfo 的結果組成文字）
+     */
+    public String getServerAvailableLines(String extension) {
+        ServerLinesInfo info = getServerLinesInfo(extension);
         
         StringBuilder result = new StringBuilder();
-        result.append("=== 可用線路狀態 (本地) ===\n");
-        result.append("最大線路數：").append(phone.maxLines).append("\n");
-        result.append("已使用線路：").append(phone.getActiveLineCount()).append("\n");
-        result.append("可用線路數：").append(phone.maxLines - phone.getActiveLineCount()).append("\n\n");
+        result.append("=== Server端實際線路狀態 ===\n");
+        result.append("分機：").append(extension).append("\n");
+        result.append("查詢時間：").append(new java.util.Date(info.queryTime)).append("\n\n");
+        
+        if (!info.connected) {
+            result.append("❌ ").append(info.error).append("\n");
+            return result.toString();
+        }
         
-        // 顯示建議的線路ID
-        if (phone.getActiveLineCount() < phone.maxLines) {
-            String nextLineId = phone.generateLineId();
-            result.append("建議使用線路ID：").append(nextLineId).append("\n");
+        if (!info.connections.isEmpty()) {
+            result.append("Server回報終端連線數：").append(info.connections.size()).append("\n\n");
+            for (int i = 0; i < info.connections.size(); i++) {
+                result.append("連線 ").append(i + 1).append(": ")
+                      .append(formatServerConnection(info.connections.get(i))).append("\n");
+            }
+        } else {
+            result.append("Server回報：無終端連線\n");
+        }
+        
+        if (info.error != null) {
+            result.append("❌ ").append(info.error).append("\n");
+        }
+        
+        // 統計摘要
+        result.append("\n=== 統計摘要 ===\n");
+        result.append("總連線數：").append(info.connections.size()).append("\n");
+        result.append("通話中：").append(info.activeCount).append("\n");
+        result.append("響鈴中：").append(info.ringingCount).append("\n");
+        result.append("Hold中：").append(info.heldCount).append("\n");
+        result.append("忙線數：").append(info.busyLines).append("\n");
+        result.append("預估可用線路：").append(info.availableLines).append("/").append(info.maxLines).append("\n");
+        
+        if (info.availableLines > 0) {
+            result.append("✅ 可以建立新通話\n");
+        } else {
+            result.append("❌ 已達線路上限，無法建立新通話\n");
         }
         
         return result.toString();
     }
     
     /**
-     * 從Server查詢實際可用線路數量
+     * 一條終端連線的顯示文字：連線 1: 🟢 通話中 (ACTIVE) [通話方數: 3] 🟠 [HELD] ↔ 1424
      */
-    public String getServerAvailableLines(String extension) {
-        StringBuilder result = new StringBuilder();
-        result.append("=== Server端實際線路狀態 ===\n");
-        result.append("分機：").append(extension).append("\n");
-        result.append("查詢時間：").append(new java.util.Date()).append("\n\n");
+    private String formatServerConnection(ServerConnection line) {
+        StringBuilder text = new StringBuilder();
+        boolean held = "HELD".equals(line.callControlState);
+        switch (line.state) {
+            case "ACTIVE": text.append(held ? "🟠 Hold中 (HELD)" : "🟢 通話中 (ACTIVE)"); break;
+            case "RINGING": text.append("🔔 響鈴中 (RINGING)"); break;
+            case "PASSIVE": text.append("🟡 被動狀態 (PASSIVE)"); break;
+            case "DROPPED": text.append("❌ 已斷開 (DROPPED)"); break;
+            case "IDLE": text.append("⚪ 空閒 (IDLE)"); break;
+            default: text.append("❓ 未知 (").append(line.state).append(")"); break;
+        }
+        
+        if (line.partyCount != null) {
+            text.append(" [通話方數: ").append(line.partyCount).append("]");
+        }
+        if (line.callControlState != null) {
+            switch (line.callControlState) {
+                case "HELD": text.append(" 🟠 [HELD]"); break;
+                case "TALKING": text.append(" 💬 [TALKING]"); break;
+                case "RINGING": text.append(" 📞 [CC_RINGING]"); break;
+                case "BRIDGED": text.append(" 🌉 [BRIDGED]"); break;
+                case "INUSE": text.append(" 📱 [INUSE]"); break;
+                default: break;
+            }
+        }
+        if (line.remoteParty != null) {
+            text.append(" ↔ ").append(line.remoteParty);
+        }
+        if (line.error != null) {
+            text.append(" [查詢通話資訊失敗: ").append(line.error).append("]");
+        }
+        return text.toString();
+    }
+    
+    /**
+     * 查看Server端實際線路狀態（結構化結果，文字版也由此組成）
+     */
+    public ServerLinesInfo getServerLinesInfo(String extension) {
+        ServerLinesInfo info = new ServerLinesInfo();
+        info.extension = extension;
+        info.queryTime = System.currentTimeMillis();
         
         try {
-            // 從Server獲取實際連線狀態
             var conn = phoneCallService.getExtensionConnection(extension);
-            if (conn == null) {
-                result.append("❌ 分機未連線到CTI系統\n");
-                return result.toString();
-            }
-            
             var extensionConn = (PhoneCallService.ExtensionConnection) conn;
-            if (extensionConn.terminal == null) {
-                result.append("❌ 分機終端不可用\n");
-                return result.toString();
+            if (extensionConn == null || extensionConn.terminal == null) {
+                info.error = conn == null ? "分機未連線到CTI系統" : "分機終端不可用";
+                info.availableLines = info.maxLines;
+                return info;
             }
+            info.connected = true;
             
-            // 查詢Server端的終端連線
             TerminalConnection[] termConnections = extensionConn.terminal.getTerminalConnections();
-            int activeConnections = 0;
-            int ringingConnections = 0;
-            int heldConnections = 0;
-            int totalConnections = 0;
-            
             if (termConnections != null) {
-                totalConnections = termConnections.length;
-                result.append("Server回報終端連線數：").append(totalConnections).append("\n\n");
-                
-                for (int i = 0; i < termConnections.length; i++) {
-                    TerminalConnection termConn = termConnections[i];
+                for (TerminalConnection termConn : termConnections) {
+                    ServerConnection line = new ServerConnection();
                     int state = termConn.getState();
-                    
-                    result.append("連線 ").append(i + 1).append(": ");
-                    
-                    switch (state) {
-                        case TerminalConnection.ACTIVE:
-                            result.append("🟢 通話中 (ACTIVE)");
-                            activeConnections++;
-                            break;
-                        case TerminalConnection.RINGING:
-                            result.append("🔔 響鈴中 (RINGING)");
-                            ringingConnections++;
-                            break;
-                        case TerminalConnection.PASSIVE:
-                            result.append("🟡 被動狀態 (PASSIVE)");
-                            break;
-                        case TerminalConnection.DROPPED:
-                            result.append("❌ 已斷開 (DROPPED)");
-                            break;
-                        case TerminalConnection.IDLE:
-                            result.append("⚪ 空閒 (IDLE)");
-                            break;
-                        case TerminalConnection.UNKNOWN:
-                            result.append("❓ 未知 (UNKNOWN)");
-                            break;
-                        default:
-                            result.append("❓ 狀態碼: " + state);
-                    }
+                    line.state = getTerminalConnectionStateName(state);
+                    if (state == TerminalConnection.ACTIVE) info.activeCount++;
+                    if (state == TerminalConnection.RINGING) info.ringingCount++;
                     
                     try {
-                        // 獲取通話資訊
-                        Call call = termConn.getConnection().getCall();
-                        if (call != null) {
-                            Connection[] callConnections = call.getConnections();
-                            if (callConnections != null) {
-                                result.append(" [通話方數: ").append(callConnections.length).append("]");
-                            } else {
-                                result.append(" [通話方數: 0]");
-                            }
-                            
-                            // 檢查是否為Hold狀態 (根據JTAPI標準)
-                            if (termConn instanceof javax.telephony.callcontrol.CallControlTerminalConnection) {
-                                javax.telephony.callcontrol.CallControlTerminalConnection cctc = 
-                                    (javax.telephony.callcontrol.CallControlTerminalConnection) termConn;
-                                int callControlState = cctc.getCallControlState();
-                                
-                                // 詳細狀態檢查
-                                switch (callControlState) {
-                                    case javax.telephony.callcontrol.CallControlTerminalConnection.HELD:
-                                        result.append(" 🟠 [HELD]");
-                                        heldConnections++;
-                                        // 如果是Hold狀態，修改主要狀態顯示
-                                        if (state == TerminalConnection.ACTIVE) {
-                                            result.setLength(result.length() - "🟢 通話中 (ACTIVE)".length());
-                                            result.append("🟠 Hold中 (HELD)");
-                                        }
-                                        break;
-                                    case javax.telephony.callcontrol.CallControlTerminalConnection.TALKING:
-                                        result.append(" 💬 [TALKING]");
-                                        break;
-                                    case javax.telephony.callcontrol.CallControlTerminalConnection.RINGING:
-                                        result.append(" 📞 [CC_RINGING]");
-                                        break;
-                                    case javax.telephony.callcontrol.CallControlTerminalConnection.BRIDGED:
-                                        result.append(" 🌉 [BRIDGED]");
-                                        break;
-                                    case javax.telephony.callcontrol.CallControlTerminalConnection.INUSE:
-                                        result.append(" 📱 [INUSE]");
-                                        break;
-                                }
+                        Call call = termConn.getConnection().getCall();
+                        if (call != null) {
+                            Connection[] callConnections = call.getConnections();
+                            line.partyCount = callConnections != null ? callConnections.length : 0;
+                            
+                            if (termConn instanceof CallControlTerminalConnection) {
+                                int callControlState = ((CallControlTerminalConnection) termConn).getCallControlState();
+                                line.callControlState = getCallControlStateName(callControlState);
+                                if (callControlState == CallControlTerminalConnection.HELD) info.heldCount++;
                             }
                             
-                            // 找到對方號碼
-                            for (Connection callConn : callConnections) {
-                                String addr = callConn.getAddress().getName();
-                                if (!addr.equals(extension)) {
-                                    result.append(" ↔ ").append(addr);
-                                    break;
+                            if (callConnections != null) {
+                                for (Connection callConn : callConnections) {
+                                    String addr = callConn.getAddress().getName();
+                                    if (!addr.equals(extension)) {
+                                        line.remoteParty = addr;
+                                        break;
+                                    }
                                 }
                             }
                         }
                     } catch (Exception e) {
-                        result.append(" [查詢通話資訊失敗: ").append(e.getMessage()).append("]");
+                        line.error = e.getMessage();
                     }
-                    
-                    result.append("\n");
+                    info.connections.add(line);
                 }
-            } else {
-                result.append("Server回報：無終端連線\n");
             }
-            
-            // 統計摘要
-            result.append("\n=== 統計摘要 ===\n");
-            result.append("總連線數：").append(totalConnections).append("\n");
-            result.append("通話中：").append(activeConnections).append("\n");
-            result.append("響鈴中：").append(ringingConnections).append("\n");
-            result.append("Hold中：").append(heldConnections).append("\n");
-            
-            // 計算可用線路數（基於Avaya系統通常的限制）
-            int busyLines = activeConnections + ringingConnections + heldConnections;
-            int maxLines = 3; // 1420分機實際支援3條線路
-            int availableLines = maxLines - busyLines;
-            
-            result.append("忙線數：").append(busyLines).append("\n");
-            result.append("預估可用線路：").append(Math.max(0, availableLines)).append("/").append(maxLines).append("\n");
-            
-            if (availableLines > 0) {
-                result.append("✅ 可以建立新通話\n");
-            } else {
-                result.append("❌ 已達線路上限，無法建立新通話\n");
-            }
-            
         } catch (Exception e) {
-            result.append("❌ 查詢Server狀態失敗：").append(e.getMessage()).append("\n");
-            e.printStackTrace();
+            info.error = "查詢Server狀態失敗：" + e.getMessage();
         }
         
-        return result.toString();
+        info.busyLines = info.activeCount + info.ringingCount + info.heldCount;
+        info.availableLines = Math.max(0, info.maxLines - info.busyLines);
+        return info;
     }
     
     // ========================================
@@ -668,50 +1029,52 @@ public class UnifiedPhoneService {
      * 一段轉接（盲轉）- 直接轉接不諮詢
      */
     public String blindTransfer(String extension, String target) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            PhoneLine activeLine = phone.getActiveLine();
-            if (activeLine == null) return "沒有活躍線路可轉接";
-            
-            String originalParty = activeLine.remoteParty;
-            
-            // 執行一段轉接 - 直接重新連接
+        return lineOperation(extension, () -> {
             try {
-                if (activeLine.call instanceof CallControlCall) {
-                    CallControlCall controlCall = (CallControlCall) activeLine.call;
-                    
-                    // 找到原通話的另一方連線
-                    Connection[] connections = controlCall.getConnections();
-                    for (Connection connection : connections) {
-                        if (connection.getAddress().getName().equals(extension)) {
-                            // 使用 redirect 方法進行一段轉接
-                            if (connection instanceof CallControlConnection) {
-                                CallControlConnection ccConn = (CallControlConnection) connection;
-                                ccConn.redirect(target);
-                                
-                                // 移除線路
-                                phone.lines.remove(activeLine);
-                                phone.activeLine = null;
-                                
-                                return "一段轉接成功：" + originalParty + " → " + target;
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
+                
+                PhoneLine activeLine = phone.getActiveLine();
+                if (activeLine == null) return "沒有活躍線路可轉接";
+                
+                String originalParty = activeLine.remoteParty;
+                
+                // 執行一段轉接 - 直接重新連接
+                try {
+                    if (activeLine.call instanceof CallControlCall) {
+                        CallControlCall controlCall = (CallControlCall) activeLine.call;
+                        
+                        // 找到原通話的另一方連線
+                        Connection[] connections = controlCall.getConnections();
+                        for (Connection connection : connections) {
+                            if (connection.getAddress().getName().equals(extension)) {
+                                // 使用 redirect 方法進行一段轉接
+                                if (connection instanceof CallControlConnection) {
+                                    CallControlConnection ccConn = (CallControlConnection) connection;
+                                    ccConn.redirect(target);
+                                    
+                                    // 移除線路
+                                    phone.removeLine(activeLine);
+                                    phone.activeLine = null;
+                                    
+                                    return "一段轉接成功：" + originalParty + " → " + target;
+                                }
                             }
                         }
                     }
+                    
+                    // 如果 redirect 不支援，使用替代方法
+                    return blindTransferAlternative(extension, target, activeLine, phone);
+                    
+                } catch (Exception e) {
+                    System.err.println("[BLIND_TRANSFER] Redirect 失敗: " + e.getMessage());
+                    return blindTransferAlternative(extension, target, activeLine, phone);
                 }
                 
-                // 如果 redirect 不支援，使用替代方法
-                return blindTransferAlternative(extension, target, activeLine, phone);
-                
             } catch (Exception e) {
-                System.err.println("[BLIND_TRANSFER] Redirect 失敗: " + e.getMessage());
-                return blindTransferAlternative(extension, target, activeLine, phone);
+                return "一段轉接失敗: " + e.getMessage();
             }
-            
-        } catch (Exception e) {
-            return "一段轉接失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
@@ -723,12 +1086,9 @@ public class UnifiedPhoneService {
             
             // 先掛斷現有通話
             disconnectLine(extension, activeLine);
-            phone.lines.remove(activeLine);
+            phone.removeLine(activeLine);
             phone.activeLine = null;
             
-            // 等待一下
-            Thread.sleep(1000);
-            
             // 建立新通話：目標 → 原通話方
             var conn = phoneCallService.getExtensionConnection(extension);
             var extensionConn = (PhoneCallService.ExtensionConnection) conn;
@@ -751,126 +1111,153 @@ public class UnifiedPhoneService {
      * 開始轉接（Transfer鍵 + 撥號）- 二段轉接
      */
     public String startTransfer(String extension, String target) {
-        try {
-            // 檢查轉接目標Agent狀態
-            if (!isAgentAvailable(target)) {
-                return "轉接失敗: 目標分機 " + target + " 的Agent目前不接受來電";
+        return beginTransfer(extension, target).message;
+    }
+    
+    private LineResult beginTransfer(String extension, String target) {
+        return lineOperation(extension, () -> {
+            try {
+                // 檢查轉接目標Agent狀態
+                if (!isAgentAvailable(target)) {
+                    return LineResult.failed("轉接失敗: 目標分機 " + target + " 的Agent目前不接受來電");
+                }
+                
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return LineResult.failed("話機未初始化");
+                
+                PhoneLine activeLine = phone.getActiveLine();
+                if (activeLine == null) return LineResult.failed("沒有活躍線路可轉接");
+                
+                // 標記為轉接狀態
+                activeLine.isTransferring = true;
+                activeLine.transferTarget = target;
+                
+                // Hold當前線路
+                holdLine(extension, activeLine);
+                activeLine.state = LineState.HELD;
+                
+                // 撥打給轉接目標
+                String lineId = phone.generateLineId();
+                Call consultCall = createCall(extension, target);
+                
+                PhoneLine consultLine = new PhoneLine(lineId, consultCall, target, false);
+                consultLine.state = LineState.TALKING;
+                phone.addLine(consultLine);
+                phone.activeLine = lineId;
+                
+                return new LineResult(consultLine, "二段轉接諮詢開始：正在連接 " + target + "，確認後按【完成轉接】或按【取消轉接】");
+                
+            } catch (Exception e) {
+                return LineResult.failed("二段轉接開始失敗: " + e.getMessage());
             }
-            
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            PhoneLine activeLine = phone.getActiveLine();
-            if (activeLine == null) return "沒有活躍線路可轉接";
-            
-            // 標記為轉接狀態
-            activeLine.isTransferring = true;
-            activeLine.transferTarget = target;
-            
-            // Hold當前線路
-            holdLine(extension, activeLine);
-            activeLine.state = LineState.HELD;
-            
-            // 撥打給轉接目標
-            String lineId = phone.generateLineId();
-            Call consultCall = createCall(extension, target);
-            
-            PhoneLine consultLine = new PhoneLine(lineId, consultCall, target, false);
-            consultLine.state = LineState.TALKING;
-            phone.lines.add(consultLine);
-            phone.activeLine = lineId;
-            
-            return "二段轉接諮詢開始：正在連接 " + target + "，確認後按【完成轉接】或按【取消轉接】";
-            
-        } catch (Exception e) {
-            return "二段轉接開始失敗: " + e.getMessage();
+        });
+    }
+    
+    /**
+     * 轉接給目前閒置最久的 Agent（由派話佇列挑選）
+     */
+    public String startTransferToBestAgent(String extension) {
+        AgentRoutingService routingService = applicationContext.getBean(AgentRoutingService.class);
+        AgentRoutingService.AvailableAgent agent = routingService.pickBestAgent(extension);
+        if (agent == null) {
+            return "轉接失敗: 目前沒有可接聽的 Agent";
+        }
+        
+        LineResult result = beginTransfer(extension, agent.extension);
+        if (result.line == null) {
+            routingService.returnAgent(agent);
         }
+        return "派話給 Agent " + agent.agentId + " (分機 " + agent.extension + ")\n" + result.message;
     }
     
     /**
      * 完成轉接（再按一次Transfer鍵）
      */
     public String completeTransfer(String extension) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            // 找轉接中的線路
-            PhoneLine transferringLine = phone.lines.stream()
-                .filter(l -> l.isTransferring)
-                .findFirst().orElse(null);
-                
-            if (transferringLine == null) return "沒有進行中的轉接";
-            
-            PhoneLine consultLine = phone.getActiveLine();
-            if (consultLine == null) return "沒有諮詢線路";
-            
-            // 執行轉接
+        return lineOperation(extension, () -> {
             try {
-                if (transferringLine.call instanceof CallControlCall && 
-                    consultLine.call instanceof CallControlCall) {
-                    CallControlCall heldCall = (CallControlCall) transferringLine.call;
-                    CallControlCall consultCall = (CallControlCall) consultLine.call;
-                    
-                    // 嘗試轉接
-                    consultCall.transfer(heldCall);
-                    
-                    // 清理線路
-                    phone.lines.remove(transferringLine);
-                    phone.lines.remove(consultLine);
-                    phone.activeLine = null;
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
+                
+                // 找轉接中的線路
+                PhoneLine transferringLine = phone.lines.stream()
+                    .filter(l -> l.isTransferring)
+                    .findFirst().orElse(null);
                     
-                    return "二段轉接完成：" + transferringLine.remoteParty + " → " + consultLine.remoteParty;
+                if (transferringLine == null) return "沒有進行中的轉接";
+                
+                PhoneLine consultLine = phone.getActiveLine();
+                if (consultLine == null) return "沒有諮詢線路";
+                
+                // 執行轉接
+                try {
+                    if (transferringLine.call instanceof CallControlCall && 
+                        consultLine.call instanceof CallControlCall) {
+                        CallControlCall heldCall = (CallControlCall) transferringLine.call;
+                        CallControlCall consultCall = (CallControlCall) consultLine.call;
+                        
+                        // 嘗試轉接
+                        consultCall.transfer(heldCall);
+                        
+                        // 清理線路
+                        phone.removeLine(transferringLine);
+                        phone.removeLine(consultLine);
+                        phone.activeLine = null;
+                        
+                        return "二段轉接完成：" + transferringLine.remoteParty + " → " + consultLine.remoteParty;
+                    }
+                } catch (Exception e) {
+                    // 轉接失敗，恢復狀態
+                    transferringLine.isTransferring = false;
+                    transferringLine.transferTarget = null;
+                    return "轉接失敗: " + e.getMessage() + "，可按【取消轉接】恢復通話";
                 }
+                
+                return "轉接失敗";
+                
             } catch (Exception e) {
-                // 轉接失敗，恢復狀態
-                transferringLine.isTransferring = false;
-                transferringLine.transferTarget = null;
-                return "轉接失敗: " + e.getMessage() + "，可按【取消轉接】恢復通話";
+                return "完成轉接失敗: " + e.getMessage();
             }
-            
-            return "轉接失敗";
-            
-        } catch (Exception e) {
-            return "完成轉接失敗: " + e.getMessage();
-        }
+        });
     }
     
     /**
      * 取消轉接（在諮詢階段取消）
      */
     public String cancelTransfer(String extension) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            // 找轉接中的線路
-            PhoneLine transferringLine = phone.lines.stream()
-                .filter(l -> l.isTransferring)
-                .findFirst().orElse(null);
+        return lineOperation(extension, () -> {
+            try {
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
                 
-            if (transferringLine == null) return "沒有進行中的轉接可取消";
-            
-            PhoneLine consultLine = phone.getActiveLine();
-            
-            // 掛斷諮詢通話
-            if (consultLine != null) {
-                disconnectLine(extension, consultLine);
-                phone.lines.remove(consultLine);
+                // 找轉接中的線路
+                PhoneLine transferringLine = phone.lines.stream()
+                    .filter(l -> l.isTransferring)
+                    .findFirst().orElse(null);
+                    
+                if (transferringLine == null) return "沒有進行中的轉接可取消";
+                
+                PhoneLine consultLine = phone.getActiveLine();
+                
+                // 掛斷諮詢通話
+                if (consultLine != null) {
+                    disconnectLine(extension, consultLine);
+                    phone.removeLine(consultLine);
+                }
+                
+                // 恢復原始通話
+                transferringLine.isTransferring = false;
+                transferringLine.transferTarget = null;
+                unholdLine(extension, transferringLine);
+                transferringLine.state = LineState.TALKING;
+                phone.activeLine = transferringLine.lineId;
+                
+                return "轉接已取消，已恢復與 " + transferringLine.remoteParty + " 的通話";
+                
+            } catch (Exception e) {
+                return "取消轉接失敗: " + e.getMessage();
             }
-            
-            // 恢復原始通話
-            transferringLine.isTransferring = false;
-            transferringLine.transferTarget = null;
-            unholdLine(extension, transferringLine);
-            transferringLine.state = LineState.TALKING;
-            phone.activeLine = transferringLine.lineId;
-            
-            return "轉接已取消，已恢復與 " + transferringLine.remoteParty + " 的通話";
-            
-        } catch (Exception e) {
-            return "取消轉接失敗: " + e.getMessage();
-        }
+        });
     }
     
     // ========================================
@@ -881,50 +1268,52 @@ public class UnifiedPhoneService {
      * 建立三方通話（Conference鍵）
      */
     public String startConference(String extension) {
-        try {
-            PhoneState phone = phoneStates.get(extension);
-            if (phone == null) return "話機未初始化";
-            
-            List<PhoneLine> availableLines = phone.lines.stream()
-                .filter(l -> l.state == LineState.TALKING || l.state == LineState.HELD)
-                .collect(java.util.stream.Collectors.toList());
-                
-            if (availableLines.size() < 2) {
-                return "需要至少兩條線路才能建立會議";
-            }
-            
-            PhoneLine line1 = availableLines.get(0);
-            PhoneLine line2 = availableLines.get(1);
-            
+        return lineOperation(extension, () -> {
             try {
-                if (line1.call instanceof CallControlCall && 
-                    line2.call instanceof CallControlCall) {
-                    CallControlCall call1 = (CallControlCall) line1.call;
-                    CallControlCall call2 = (CallControlCall) line2.call;
-                    
-                    // 建立會議
-                    call1.conference(call2);
-                    
-                    // 標記為會議狀態
-                    line1.isConference = true;
-                    line1.state = LineState.CONFERENCING;
-                    line2.isConference = true;
-                    line2.state = LineState.CONFERENCING;
-                    
-                    phone.activeLine = line1.lineId;
+                PhoneState phone = phoneStates.get(extension);
+                if (phone == null) return "話機未初始化";
+                
+                List<PhoneLine> availableLines = phone.lines.stream()
+                    .filter(l -> l.state == LineState.TALKING || l.state == LineState.HELD)
+                    .collect(java.util.stream.Collectors.toList());
                     
-                    return "三方會議建立成功：" + extension + " + " + 
-                           line1.remoteParty + " + " + line2.remoteParty;
+                if (availableLines.size() < 2) {
+                    return "需要至少兩條線路才能建立會議";
+                }
+                
+                PhoneLine line1 = availableLines.get(0);
+                PhoneLine line2 = availableLines.get(1);
+                
+                try {
+                    if (line1.call instanceof CallControlCall && 
+                        line2.call instanceof CallControlCall) {
+                        CallControlCall call1 = (CallControlCall) line1.call;
+                        CallControlCall call2 = (CallControlCall) line2.call;
+                        
+                        // 建立會議
+                        call1.conference(call2);
+                        
+                        // 標記為會議狀態
+                        line1.isConference = true;
+                        line1.state = LineState.CONFERENCING;
+                        line2.isConference = true;
+                        line2.state = LineState.CONFERENCING;
+                        
+                        phone.activeLine = line1.lineId;
+                        
+                        return "三方會議建立成功：" + extension + " + " + 
+                               line1.remoteParty + " + " + line2.remoteParty;
+                    }
+                } catch (Exception e) {
+                    return "會議建立失敗: " + e.getMessage();
                 }
+                
+                return "會議建立失敗";
+                
             } catch (Exception e) {
-                return "會議建立失敗: " + e.getMessage();
+                return "建立會議失敗: " + e.getMessage();
             }
-            
-            return "會議建立失敗";
-            
-        } catch (Exception e) {
-            return "建立會議失敗: " + e.getMessage();
-        }
+        });
     }
     
     // ========================================
@@ -935,69 +1324,95 @@ public class UnifiedPhoneService {
      * 顯示話機狀態（像話機LCD顯示屏）
      */
     public String getPhoneDisplay(String extension) {
-        PhoneState phone = getOrCreatePhone(extension);
-        
-        // 自動檢測並導入現有通話
-        detectAndImportExistingCalls(extension, phone);
-        
-        StringBuilder display = new StringBuilder();
-        display.append("=== 話機 ").append(extension).append(" ===\n");
-        
-        if (phone.lines.isEmpty()) {
-            display.append("所有線路空閒\n");
-            return display.toString();
-        }
-        
-        for (int i = 0; i < phone.lines.size(); i++) {
-            PhoneLine line = phone.lines.get(i);
-            String marker = line.lineId.equals(phone.activeLine) ? ">>> " : "    ";
+        return lineOperation(extension, () -> {
+            PhoneState phone = getOrCreatePhone(extension);
             
-            display.append(marker)
-                   .append("L").append(i + 1).append(": ")
-                   .append(getStateDisplay(line.state)).append(" ")
-                   .append(line.getDisplayName()).append("\n");
-        }
-        
-        return display.toString();
+            // 自動檢測並導入現有通話
+            detectAndImportExistingCalls(extension, phone);
+            
+            StringBuilder display = new StringBuilder();
+            display.append("=== 話機 ").append(extension).append(" ===\n");
+            
+            if (phone.lines.isEmpty()) {
+                display.append("所有線路空閒\n");
+                return display.toString();
+            }
+            
+            for (int i = 0; i < phone.lines.size(); i++) {
+                PhoneLine line = phone.lines.get(i);
+                String marker = line.lineId.equals(phone.activeLine) ? ">>> " : "    ";
+                
+                display.append(marker)
+                       .append("L").append(i + 1).append(": ")
+                       .append(getStateDisplay(line.state)).append(" ")
+                       .append(line.getDisplayName()).append("\n");
+            }
+            
+            return display.toString();
+        });
+    }
+    
+    /**
+     * 取得版本之後的線路變化（沒有變化時回傳空清單）
+     * 日誌由通話事件即時更新，這裡直接讀取；分機第一次查詢時才開始追蹤並以目前的通話登記同步一次
+     */
+    public LineChanges getLineChanges(String extension, long sinceVersion) {
+        return lineOperation(extension, () -> {
+            PhoneState phone = getOrCreatePhone(extension);
+            if (callRegistryService.getSnapshot(extension) == null) {
+                PhoneCallService.ExtensionConnection conn = phoneCallService.getExtensionConnection(extension);
+                CallRegistryService.CallSnapshot snapshot = conn != null && conn.terminal != null
+                        ? callRegistryService.snapshotFor(extension, conn.terminal) : null;
+                if (snapshot != null) {
+                    applyCallSnapshot(extension, phone, snapshot);
+                }
+            }
+            phone.recordChanges();
+            return phone.getChangesSince(sinceVersion);
+        });
     }
     
     /**
      * 清理並刷新話機狀態
      */
     public String cleanupAndRefresh(String extension) {
-        PhoneState phone = getOrCreatePhone(extension);
-        
-        // 完全清除現有線路
-        int beforeCount = phone.lines.size();
-        phone.lines.clear();
-        phone.activeLine = null;
-        
-        // 重新檢測並導入
-        detectAndImportExistingCalls(extension, phone);
-        
-        int afterCount = phone.lines.size();
-        
-        return "清理完成：移除 " + beforeCount + " 條舊線路，重新導入 " + afterCount + " 條線路\n" +
-               getPhoneDisplay(extension);
+        return lineOperation(extension, () -> {
+            PhoneState phone = getOrCreatePhone(extension);
+            
+            // 完全清除現有線路
+            int beforeCount = phone.lines.size();
+            phone.clearLines();
+            phone.activeLine = null;
+            
+            // 重新檢測並導入
+            detectAndImportExistingCalls(extension, phone);
+            
+            int afterCount = phone.lines.size();
+            
+            return "清理完成：移除 " + beforeCount + " 條舊線路，重新導入 " + afterCount + " 條線路\n" +
+                   getPhoneDisplay(extension);
+        });
     }
     
     /**
      * 手動導入現有通話
      */
     public String importExistingCalls(String extension) {
-        PhoneState phone = getOrCreatePhone(extension);
-        int beforeCount = phone.lines.size();
-        
-        detectAndImportExistingCalls(extension, phone);
-        
-        int afterCount = phone.lines.size();
-        int importedCount = afterCount - beforeCount;
-        
-        if (importedCount > 0) {
-            return "成功導入 " + importedCount + " 條現有通話\n" + getPhoneDisplay(extension);
-        } else {
-            return "沒有發現新的通話可導入\n" + getPhoneDisplay(extension);
-        }
+        return lineOperation(extension, () -> {
+            PhoneState phone = getOrCreatePhone(extension);
+            int beforeCount = phone.lines.size();
+            
+            detectAndImportExistingCalls(extension, phone);
+            
+            int afterCount = phone.lines.size();
+            int importedCount = afterCount - beforeCount;
+            
+            if (importedCount > 0) {
+                return "成功導入 " + importedCount + " 條現有通話\n" + getPhoneDisplay(extension);
+            } else {
+                return "沒有發現新的通話可導入\n" + getPhoneDisplay(extension);
+            }
+        });
     }
     
     /**
@@ -1162,17 +1577,23 @@ public class UnifiedPhoneService {
             
             var extensionConn = (PhoneCallService.ExtensionConnection) conn;
             if (extensionConn.terminal != null) {
+                // 優先讀通話登記（第一次使用時開始追蹤，之後由事件維護）
+                CallRegistryService.CallSnapshot snapshot = callRegistryService.snapshotFor(extension, extensionConn.terminal);
+                if (snapshot != null) {
+                    for (CallRegistryService.CallEntry entry : snapshot.entries) {
+                        if (entry.isRinging()) {
+                            return findOrAddIncomingLine(extension, phone, entry.call);
+                        }
+                    }
+                    return null;
+                }
+                
+                // 無法追蹤時才直接列舉終端連線
                 TerminalConnection[] termConnections = extensionConn.terminal.getTerminalConnections();
                 if (termConnections != null) {
                     for (TerminalConnection termConn : termConnections) {
                         if (termConn.getState() == TerminalConnection.RINGING) {
-                            Call incomingCall = termConn.getConnection().getCall();
-                            String remoteParty = findRemoteParty(incomingCall, extension);
-                            
-                            String lineId = phone.generateLineId();
-                            PhoneLine newLine = new PhoneLine(lineId, incomingCall, remoteParty, true);
-                            phone.lines.add(newLine);
-                            return newLine;
+                            return findOrAddIncomingLine(extension, phone, termConn.getConnection().getCall());
                         }
                     }
                 }
@@ -1183,6 +1604,19 @@ public class UnifiedPhoneService {
         return null;
     }
     
+    private PhoneLine findOrAddIncomingLine(String extension, PhoneState phone, Call incomingCall) {
+        PhoneLine trackedLine = phone.findLineByCall(incomingCall);
+        if (trackedLine != null) {
+            return trackedLine;
+        }
+        String remoteParty = findRemoteParty(incomingCall, extension);
+        
+        String lineId = phone.generateLineId();
+        PhoneLine newLine = new PhoneLine(lineId, incomingCall, remoteParty, true);
+        phone.addLine(newLine);
+        return newLine;
+    }
+    
     /**
      * 檢測並導入現有的通話（重要！）
      */
@@ -1200,8 +1634,8 @@ public class UnifiedPhoneService {
             // 清理已斷開的線路
             cleanupDisconnectedLines(phone);
             
-            // 收集當前實際的通話
-            java.util.Set<String> currentCallIds = new java.util.HashSet<>();
+            // 收集仍對應到實際通話的線路（getCall() 每次回傳新物件，改記線路而不是 Call）
+            java.util.Set<PhoneLine> presentLines = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
             
             for (TerminalConnection termConn : termConnections) {
                 if (termConn.getState() == TerminalConnection.DROPPED) {
@@ -1209,48 +1643,42 @@ public class UnifiedPhoneService {
                 }
                 
                 Call existingCall = termConn.getConnection().getCall();
-                String remoteParty = findRemoteParty(existingCall, extension);
-                
-                // 使用更可靠的通話標識：對方號碼+通話狀態
-                String callId = remoteParty + "_" + termConn.getState();
-                currentCallIds.add(callId);
+                LineState lineState = mapTerminalConnectionToLineState(termConn);
                 
-                // 檢查是否已經存在相同的通話
-                boolean alreadyExists = phone.lines.stream()
-                    .anyMatch(line -> {
-                        String existingCallId = line.remoteParty + "_" + getTerminalConnectionStateFromLineState(line.state);
-                        return existingCallId.equals(callId);
-                    });
+                // 已有線路：只核對狀態
+                PhoneLine existingLine = phone.findLineByCall(existingCall);
+                if (existingLine != null) {
+                    presentLines.add(existingLine);
+                    if (getTerminalConnectionStateFromLineState(existingLine.state) != termConn.getState()
+                            && lineState != LineState.IDLE && lineState != LineState.DISCONNECTED) {
+                        existingLine.state = lineState;
+                    }
+                    continue;
+                }
                 
-                if (!alreadyExists) {
+                if (lineState != LineState.IDLE && lineState != LineState.DISCONNECTED) {
                     String lineId = phone.generateLineId();
+                    String remoteParty = findRemoteParty(existingCall, extension);
                     boolean isIncoming = determineCallDirection(existingCall, extension);
                     
-                    // 根據 TerminalConnection 狀態設定線路狀態
-                    LineState lineState = mapTerminalConnectionToLineState(termConn);
+                    PhoneLine importedLine = new PhoneLine(lineId, existingCall, remoteParty, isIncoming);
+                    importedLine.state = lineState;
+                    phone.addLine(importedLine);
+                    presentLines.add(importedLine);
                     
-                    if (lineState != LineState.IDLE && lineState != LineState.DISCONNECTED) {
-                        PhoneLine importedLine = new PhoneLine(lineId, existingCall, remoteParty, isIncoming);
-                        importedLine.state = lineState;
-                        phone.lines.add(importedLine);
-                        
-                        // 設定活躍線路
-                        if (lineState == LineState.TALKING && phone.activeLine == null) {
-                            phone.activeLine = lineId;
-                        }
-                        
-                        System.out.println("[UNIFIED_PHONE] 導入通話: " + lineId + 
-                                         " 狀態: " + lineState + " 對方: " + remoteParty + 
-                                         " 方向: " + (isIncoming ? "來電" : "撥出"));
+                    // 設定活躍線路
+                    if (lineState == LineState.TALKING && phone.activeLine == null) {
+                        phone.activeLine = lineId;
                     }
+                    
+                    System.out.println("[UNIFIED_PHONE] 導入通話: " + lineId + 
+                                     " 狀態: " + lineState + " 對方: " + remoteParty + 
+                                     " 方向: " + (isIncoming ? "來電" : "撥出"));
                 }
             }
             
             // 移除已經不存在的通話
-            phone.lines.removeIf(line -> {
-                String lineCallId = line.remoteParty + "_" + getTerminalConnectionStateFromLineState(line.state);
-                return !currentCallIds.contains(lineCallId);
-            });
+            phone.removeLinesIf(line -> line.call == null || !presentLines.contains(line));
             
         } catch (Exception e) {
             System.err.println("[UNIFIED_PHONE] 檢測現有通話失敗: " + e.getMessage());
@@ -1258,10 +1686,11 @@ public class UnifiedPhoneService {
     }
     
     /**
-     * 清理已斷開的線路（增強版）
+     * 清理已斷開的線路：通話失效、沒有仍在進行的連線，或有一方已斷線（DISCONNECTED/FAILED）且剩不到兩方
+     * 響鈴（ALERTING/OFFERED）、撥號中（INPROGRESS）的連線都算仍在進行，來電響鈴與撥出回鈴的線路不會被清掉
      */
     private void cleanupDisconnectedLines(PhoneState phone) {
-        phone.lines.removeIf(line -> {
+        phone.removeLinesIf(line -> {
             try {
                 if (line.call != null) {
                     // 檢查通話是否還有效
@@ -1277,24 +1706,22 @@ public class UnifiedPhoneService {
                         return true; // 移除此線路
                     }
                     
-                    boolean hasActiveConnection = false;
-                    int connectedCount = 0;
+                    int liveCount = 0;
+                    boolean partyLeft = false;
                     
                     for (Connection conn : connections) {
                         int connState = conn.getState();
-                        if (connState == Connection.CONNECTED) {
-                            connectedCount++;
-                            hasActiveConnection = true;
-                        } else if (connState != Connection.DISCONNECTED && 
-                                  connState != Connection.FAILED) {
-                            hasActiveConnection = true;
+                        if (connState == Connection.DISCONNECTED || connState == Connection.FAILED) {
+                            partyLeft = true;
+                        } else {
+                            liveCount++;
                         }
                     }
                     
-                    // 如果沒有活躍連線，或者連線數少於2（正常通話需要至少2個連線）
-                    if (!hasActiveConnection || connectedCount < 2) {
+                    // 沒有仍在進行的連線，或有一方離開後剩不到兩方（撥號剛開始只有本端一方時保留）
+                    if (liveCount == 0 || (partyLeft && liveCount < 2)) {
                         System.out.println("[UNIFIED_PHONE] 清理斷開的線路: " + line.lineId + 
-                                          " (活躍連線: " + hasActiveConnection + ", 連線數: " + connectedCount + ")");
+                                          " (進行中連線數: " + liveCount + ", 有一方斷線: " + partyLeft + ")");
                         return true; // 移除此線路
                     }
                 }
@@ -1341,6 +1768,24 @@ public class UnifiedPhoneService {
         }
     }
     
+    /**
+     * 通話登記項目對應的線路狀態（與 mapTerminalConnectionToLineState 相同規則）
+     */
+    private LineState mapCallEntryToLineState(CallRegistryService.CallEntry entry) {
+        switch (entry.state) {
+            case TerminalConnection.RINGING:
+                return LineState.RINGING;
+            case TerminalConnection.ACTIVE:
+                return LineState.TALKING;
+            case TerminalConnection.PASSIVE:
+                return entry.callControlState == CallControlTerminalConnection.HELD ? LineState.HELD : LineState.TALKING;
+            case TerminalConnection.DROPPED:
+                return LineState.DISCONNECTED;
+            default:
+                return LineState.IDLE;
+        }
+    }
+    
     /**
      * 從線路狀態反推 TerminalConnection 狀態（用於比較）
      */
@@ -1408,7 +1853,12 @@ public class UnifiedPhoneService {
     }
     
     private void answerLine(String extension, PhoneLine line) throws Exception {
-        // 實現接聽邏輯
+        // 通話登記中有這條線路的響鈴連線時直接接聽，不必再查詢終端
+        TerminalConnection ringingConnection = callRegistryService.findRingingConnection(extension, line.call);
+        if (ringingConnection != null) {
+            ringingConnection.answer();
+            return;
+        }
         phoneCallService.answerCall(extension);
     }
     
@@ -1527,27 +1977,13 @@ public class UnifiedPhoneService {
             // 使用ApplicationContext來避免循環依賴
             AgentService agentService = applicationContext.getBean(AgentService.class);
             
-            // 先檢查Agent是否登入
-            String agentStatus = agentService.getAgentStatus(extension);
-            
-            // 如果沒有Agent登入，則允許通話（普通分機模式）
-            if (agentStatus.contains("沒有 Agent 登入")) {
-                System.out.println("[UNIFIED_AGENT_CHECK] 分機 " + extension + " 沒有Agent登入，允許通話");
-                return true;
-            }
-            
-            // 有Agent登入，檢查狀態
-            if (agentStatus.contains("待機中")) {
-                System.out.println("[UNIFIED_AGENT_CHECK] 分機 " + extension + " Agent處於待機狀態，允許通話");
-                return true;
-            } else if (agentStatus.contains("忙碌中") || agentStatus.contains("休息中")) {
-                System.out.println("[UNIFIED_AGENT_CHECK] 分機 " + extension + " Agent處於" + 
-                                 (agentStatus.contains("忙碌中") ? "忙碌" : "休息") + "狀態，拒絕通話");
-                return false;
+            // 有狀態監聽器時讀本地記錄，否則向交換機查詢
+            AgentService.AgentAvailability availability = agentService.getAvailability(extension);
+            if (!availability.acceptsCalls) {
+                System.out.println("[UNIFIED_AGENT_CHECK] 分機 " + extension + " Agent處於" +
+                                 (availability == AgentService.AgentAvailability.BUSY ? "忙碌" : "休息") + "狀態，拒絕通話");
             }
-            
-            // 其他狀態預設允許
-            return true;
+            return availability.acceptsCalls;
             
         } catch (Exception e) {
             System.err.println("[UNIFIED_AGENT_CHECK] 檢查Agent狀態失敗: " + e.getMessage());
@@ -1588,8 +2024,14 @@ public class UnifiedPhoneService {
         status.append("=== 所有話機通話狀態總覽 ===\n");
         status.append("查詢時間: ").append(new java.util.Date()).append("\n\n");
         
-        // 定義要檢查的分機列表
-        String[] extensions = {"1411", "1420", "1424", "1425", "1001", "1002", "1003"};
+        // 涵蓋所有有話機狀態、已連線或有 Agent 記錄的分機；線路與 Agent 狀態都只讀記憶體，不查詢交換機
+        AgentService agentService = applicationContext.getBean(AgentService.class);
+        java.util.Set<String> extensions = new java.util.TreeSet<>(phoneStates.keySet());
+        extensions.addAll(phoneCallService.getAllExtensionConnections().keySet());
+        extensions.addAll(agentService.getTrackedExtensions());
+        
+        int totalActiveLines = 0;
+        int busyExtensions = 0;
         
         for (String ext : extensions) {
             status.append("📞 分機 ").append(ext).append(":\n");
@@ -1599,16 +2041,13 @@ public class UnifiedPhoneService {
                 PhoneState phoneState = phoneStates.get(ext);
                 if (phoneState == null || phoneState.lines.isEmpty()) {
                     status.append("   狀態: 空閒 (無活動線路)\n");
-                    
-                    // 檢查Agent狀態
-                    String agentStatus = checkAgentStatus(ext);
-                    if (!agentStatus.contains("普通分機模式")) {
-                        status.append("   Agent: ").append(agentStatus.substring(agentStatus.indexOf("Agent") + 5)).append("\n");
-                    }
                 } else {
-                    status.append("   線路數: ").append(phoneState.lines.size()).append("\n");
+                    List<PhoneLine> lines = phoneState.lines;
+                    totalActiveLines += lines.size();
+                    busyExtensions++;
+                    status.append("   線路數: ").append(lines.size()).append("\n");
                     
-                    for (PhoneLine line : phoneState.lines) {
+                    for (PhoneLine line : lines) {
                         status.append("   └─ 線路 ").append(line.lineId).append(": ");
                         status.append(getLineStateDisplay(line.state)).append(" ");
                         
@@ -1631,12 +2070,14 @@ public class UnifiedPhoneService {
                         
                         status.append("\n");
                     }
-                    
-                    // 檢查Agent狀態
-                    String agentStatus = checkAgentStatus(ext);
-                    if (!agentStatus.contains("普通分機模式")) {
-                        status.append("   Agent: ").append(agentStatus.substring(agentStatus.indexOf("Agent") + 5)).append("\n");
-                    }
+                }
+                
+                // Agent狀態（普通分機不顯示），只讀本地記錄
+                String agentDisplay = getAvailabilityDisplay(agentService, ext, agentService.getLocalAvailability(ext));
+                if (agentDisplay != null) {
+                    AgentService.AgentStatus agentStatus = agentService.getLocalAgentStatus(ext);
+                    status.append("   Agent: ").append(agentDisplay)
+                          .append(agentStatus != null && !agentStatus.verified ? " (尚未向交換機確認)" : "").append("\n");
                 }
             } catch (Exception e) {
                 status.append("   錯誤: ").append(e.getMessage()).append("\n");
@@ -1647,24 +2088,32 @@ public class UnifiedPhoneService {
         
         // 統計資訊
         status.append("=== 系統統計 ===\n");
-        int totalActiveLines = 0;
-        int busyExtensions = 0;
-        
-        for (String ext : extensions) {
-            PhoneState phoneState = phoneStates.get(ext);
-            if (phoneState != null && !phoneState.lines.isEmpty()) {
-                totalActiveLines += phoneState.lines.size();
-                busyExtensions++;
-            }
-        }
-        
         status.append("活躍線路總數: ").append(totalActiveLines).append("\n");
-        status.append("忙碌分機數: ").append(busyExtensions).append("/").append(extensions.length).append("\n");
-        status.append("空閒分機數: ").append(extensions.length - busyExtensions).append("/").append(extensions.length).append("\n");
+        status.append("忙碌分機數: ").append(busyExtensions).append("/").append(extensions.size()).append("\n");
+        status.append("空閒分機數: ").append(extensions.size() - busyExtensions).append("/").append(extensions.size()).append("\n");
         
         return status.toString();
     }
     
+    /**
+     * Agent 可用狀態的顯示文字，沒有 Agent 登入時回傳 null
+     * 休息與其他狀態（AUX、後處理等）顯示 Agent 記錄上的實際狀態
+     */
+    private String getAvailabilityDisplay(AgentService agentService, String extension,
+                                          AgentService.AgentAvailability availability) {
+        switch (availability) {
+            case NO_AGENT: return null;
+            case AVAILABLE: return "待機中 - 可接受來電";
+            case BUSY: return "忙碌中 - 拒絕來電";
+            default:
+                AgentService.AgentStatus agentStatus = agentService.getLocalAgentStatus(extension);
+                String statusText = agentStatus != null && agentStatus.isLoggedIn
+                        ? agentStatus.getStatusDisplay()
+                        : (availability == AgentService.AgentAvailability.ON_BREAK ? "休息中" : "狀態未知");
+                return statusText + (availability.acceptsCalls ? " - 可接受來電" : " - 拒絕來電");
+        }
+    }
+    
     /**
      * 獲取線路狀態的顯示文字
      */
@@ -0,0 +1,182 @@
+package com.example.jtapi_develop;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Agent 派話順序：技能等級優先、同等級閒置最久優先，派出後的預約與放回，只讀本地記錄
+ */
+class AgentRoutingServiceTest {
+
+    private AgentService agentService;
+    private AgentRoutingService routing;
+    private ExecutorService jtapiExecutor;
+
+    // 向交換機確認（getAvailability）的分機與執行緒
+    private final ConcurrentLinkedQueue<String> switchQueries = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Thread> switchQueryThreads = new ConcurrentLinkedQueue<>();
+
+    @BeforeEach
+    void setUp() {
+        // 交換機查詢只記錄下來，不改變本地記錄
+        agentService = new AgentService() {
+            @Override
+            public AgentAvailability getAvailability(String extension) {
+                switchQueries.add(extension);
+                switchQueryThreads.add(Thread.currentThread());
+                return AgentAvailability.AVAILABLE;
+            }
+        };
+        jtapiExecutor = Executors.newSingleThreadExecutor();
+        routing = new AgentRoutingService();
+        ReflectionTestUtils.setField(routing, "agentService", agentService);
+        ReflectionTestUtils.setField(routing, "jtapiExecutor", jtapiExecutor);
+        ReflectionTestUtils.setField(routing, "reservationSeconds", 60L);
+        routing.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        jtapiExecutor.shutdownNow();
+    }
+
+    /**
+     * 還原一筆待機記錄並視為已向交換機確認
+     */
+    private void becomeAvailable(String extension, String agentId) throws InterruptedException {
+        restoreUnconfirmed(extension, agentId);
+        agentService.getLocalAgentStatus(extension).verified = true;
+    }
+
+    private void restoreUnconfirmed(String extension, String agentId) throws InterruptedException {
+        agentService.restoreAgentStatus(extension, agentId, "AVAILABLE", System.currentTimeMillis());
+        Thread.sleep(5);   // 讓閒置起點有先後
+    }
+
+    @Test
+    void longestIdleFirstWithinTheSameSkillLevel() throws Exception {
+        becomeAvailable("1411", "A1");
+        becomeAvailable("1422", "A2");
+        becomeAvailable("1424", "A3");
+
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+        assertEquals("1422", routing.pickBestAgent(null).extension);
+        assertEquals("1424", routing.pickBestAgent(null).extension);
+        assertNull(routing.pickBestAgent(null));
+    }
+
+    @Test
+    void higherSkillLevelWinsOverIdleTime() throws Exception {
+        becomeAvailable("1411", "A1");
+        becomeAvailable("1422", "A2");
+        becomeAvailable("1424", "A3");
+        routing.setSkillLevel("1424", 3);
+        routing.setSkillLevel("1422", 1);
+
+        assertEquals("1424", routing.pickBestAgent(null).extension);
+        assertEquals("1422", routing.pickBestAgent(null).extension);
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+    }
+
+    @Test
+    void excludedExtensionStaysQueued() throws Exception {
+        becomeAvailable("1411", "A1");
+        becomeAvailable("1422", "A2");
+
+        assertEquals("1422", routing.pickBestAgent("1411").extension);
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+    }
+
+    @Test
+    void busyAgentsLeaveTheQueue() throws Exception {
+        becomeAvailable("1411", "A1");
+        becomeAvailable("1422", "A2");
+        agentService.setAgentStatus("1411", "BUSY");
+
+        assertEquals("1422", routing.pickBestAgent(null).extension);
+        assertNull(routing.pickBestAgent(null));
+    }
+
+    @Test
+    void failedDialReturnsAgentWithOriginalIdleTime() throws Exception {
+        becomeAvailable("1411", "A1");
+        becomeAvailable("1422", "A2");
+
+        AgentRoutingService.AvailableAgent picked = routing.pickBestAgent(null);
+        routing.returnAgent(picked);
+
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+    }
+
+    @Test
+    void unansweredPickComesBackAfterReservationExpires() throws Exception {
+        ReflectionTestUtils.setField(routing, "reservationSeconds", 0L);
+        becomeAvailable("1411", "A1");
+
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+        // 沒有轉為忙碌，預約逾時後下一次挑選又能派給同一位
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+    }
+
+    @Test
+    void reservedAgentIsNotPickedTwice() throws Exception {
+        becomeAvailable("1411", "A1");
+
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+        assertNull(routing.pickBestAgent(null));
+    }
+
+    @Test
+    void answeredCallEndsReservationAndAgentRequeuesWhenFree() throws Exception {
+        becomeAvailable("1411", "A1");
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+
+        agentService.setAgentStatus("1411", "BUSY");
+        assertNull(routing.pickBestAgent(null));
+
+        agentService.setAgentStatus("1411", "AVAILABLE");
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+    }
+
+    @Test
+    void pickingDoesNotQuerySwitchForConfirmedAgents() throws Exception {
+        becomeAvailable("1411", "A1");
+        becomeAvailable("1422", "A2");
+
+        routing.pickBestAgent(null);
+        routing.returnAgent(routing.pickBestAgent(null));
+        routing.pickBestAgent(null);
+
+        assertTrue(switchQueries.isEmpty(), "不應查詢交換機: " + switchQueries);
+    }
+
+    @Test
+    void unconfirmedAgentStaysQueuedAndIsConfirmedInBackground() throws Exception {
+        restoreUnconfirmed("1411", "A1");
+        becomeAvailable("1422", "A2");
+
+        // 閒置較久的 1411 尚未確認，先派給 1422，1411 留在佇列
+        assertEquals("1422", routing.pickBestAgent(null).extension);
+        assertNull(routing.pickBestAgent(null));
+
+        jtapiExecutor.shutdown();
+        assertTrue(jtapiExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(switchQueries.contains("1411"));
+        assertTrue(switchQueryThreads.stream().noneMatch(thread -> thread == Thread.currentThread()),
+                   "交換機查詢不應在挑選的執行緒上執行");
+
+        // 交換機確認後可以派話，且保留原本的閒置時間
+        agentService.getLocalAgentStatus("1411").verified = true;
+        assertEquals("1411", routing.pickBestAgent(null).extension);
+    }
+}
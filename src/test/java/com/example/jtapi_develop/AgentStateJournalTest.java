@@ -0,0 +1,145 @@
+package com.example.jtapi_develop;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Agent 狀態日誌：分段換檔、舊分段清理、重啟後重播還原
+ */
+class AgentStateJournalTest {
+
+    @TempDir
+    Path journalDir;
+
+    private final List<AgentStateJournal> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeJournals() {
+        opened.forEach(AgentStateJournal::close);
+    }
+
+    private AgentStateJournal openJournal(AgentService agentService, int segmentBytes, long rolloverMinutes, int maxSegments) {
+        AgentStateJournal journal = new AgentStateJournal();
+        ReflectionTestUtils.setField(journal, "agentService", agentService);
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "journalDir", journalDir.toString());
+        ReflectionTestUtils.setField(journal, "segmentBytes", segmentBytes);
+        ReflectionTestUtils.setField(journal, "rolloverMinutes", rolloverMinutes);
+        ReflectionTestUtils.setField(journal, "maxSegments", maxSegments);
+        journal.init();
+        opened.add(journal);
+        return journal;
+    }
+
+    private int segmentCount() {
+        File[] segments = journalDir.toFile().listFiles((dir, name) -> name.endsWith(".seg"));
+        return segments != null ? segments.length : 0;
+    }
+
+    @Test
+    void rollsOverFullSegmentsWithoutLosingRecords() {
+        AgentService agentService = new AgentService();
+        // 每筆 26 bytes，128 bytes 的分段約 4 筆就換檔
+        AgentStateJournal journal = openJournal(agentService, 128, 60, 48);
+
+        agentService.restoreAgentStatus("1420", "A100", "AVAILABLE", System.currentTimeMillis());
+        String[] statuses = {"BUSY", "AVAILABLE", "BREAK", "AVAILABLE", "BUSY", "AVAILABLE", "BUSY", "BREAK", "AVAILABLE"};
+        for (String status : statuses) {
+            agentService.setAgentStatus("1420", status);
+        }
+
+        assertTrue(segmentCount() >= 3, "應換到第三個分段，實際 " + segmentCount());
+        List<AgentStateJournal.JournalRecord> records = journal.query("1420", 0, Long.MAX_VALUE);
+        assertEquals(statuses.length + 1, records.size());
+        assertEquals("AVAILABLE", records.get(0).status);
+        for (int i = 0; i < statuses.length; i++) {
+            assertEquals(statuses[i], records.get(i + 1).status);
+            assertEquals("A100", records.get(i + 1).agentId);
+            assertTrue(records.get(i + 1).isLoggedIn);
+        }
+    }
+
+    @Test
+    void rollsOverByTime() {
+        AgentService agentService = new AgentService();
+        // 換檔間隔 0 分鐘：每筆都開新分段
+        AgentStateJournal journal = openJournal(agentService, 4096, 0, 48);
+
+        agentService.restoreAgentStatus("1420", "A100", "AVAILABLE", System.currentTimeMillis());
+        agentService.setAgentStatus("1420", "BUSY");
+        agentService.setAgentStatus("1420", "AVAILABLE");
+
+        assertTrue(segmentCount() >= 3);
+        assertEquals(3, journal.query("1420", 0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    void deletesSegmentsBeyondTheLimit() {
+        AgentService agentService = new AgentService();
+        openJournal(agentService, 64, 60, 2);
+
+        agentService.restoreAgentStatus("1420", "A100", "AVAILABLE", System.currentTimeMillis());
+        for (int i = 0; i < 20; i++) {
+            agentService.setAgentStatus("1420", i % 2 == 0 ? "BUSY" : "AVAILABLE");
+        }
+
+        assertEquals(2, segmentCount());
+    }
+
+    @Test
+    void replayRestoresLatestStatePerAgentAsUnverified() {
+        AgentService firstRun = new AgentService();
+        AgentStateJournal journal = openJournal(firstRun, 128, 60, 48);
+        long loginTime = System.currentTimeMillis() - 60_000;
+        firstRun.restoreAgentStatus("1420", "A100", "AVAILABLE", loginTime);
+        firstRun.restoreAgentStatus("1411", "A200", "AVAILABLE", loginTime);
+        firstRun.setAgentStatus("1420", "BUSY");
+        firstRun.setAgentStatus("1411", "BREAK");
+        firstRun.setAgentStatus("1420", "AVAILABLE");
+        firstRun.setAgentStatus("1420", "BUSY");
+        journal.close();
+
+        // 模擬重啟：新的 AgentService 由同一目錄重播
+        AgentService secondRun = new AgentService();
+        openJournal(secondRun, 128, 60, 48);
+
+        AgentService.AgentStatus agent1420 = secondRun.getLocalAgentStatus("1420");
+        assertNotNull(agent1420);
+        assertEquals("A100", agent1420.agentId);
+        assertEquals("BUSY", agent1420.status);
+        assertTrue(agent1420.isLoggedIn);
+        assertFalse(agent1420.verified, "還原的記錄要等交換機確認");
+
+        AgentService.AgentStatus agent1411 = secondRun.getLocalAgentStatus("1411");
+        assertNotNull(agent1411);
+        assertEquals("BREAK", agent1411.status);
+    }
+
+    @Test
+    void replayedJournalKeepsAppendingAfterRestart() {
+        AgentService firstRun = new AgentService();
+        AgentStateJournal journal = openJournal(firstRun, 4096, 60, 48);
+        firstRun.restoreAgentStatus("1420", "A100", "AVAILABLE", System.currentTimeMillis());
+        journal.close();
+
+        AgentService secondRun = new AgentService();
+        AgentStateJournal reopened = openJournal(secondRun, 4096, 60, 48);
+        secondRun.setAgentStatus("1420", "BREAK");
+
+        List<AgentStateJournal.JournalRecord> records = reopened.query("1420", 0, Long.MAX_VALUE);
+        assertEquals(2, records.size(), "重啟前的紀錄不應被新分段覆蓋");
+        assertEquals("AVAILABLE", records.get(0).status);
+        assertEquals("BREAK", records.get(1).status);
+    }
+}
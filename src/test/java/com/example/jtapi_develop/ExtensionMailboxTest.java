@@ -0,0 +1,203 @@
+package com.example.jtapi_develop;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 分機信箱：同一分機依序執行、不同分機並行、可重入、例外原樣拋回、排隊逾時取消、互相等待、閒置移除
+ */
+class ExtensionMailboxTest {
+
+    private final ExtensionMailbox mailbox = new ExtensionMailbox();
+
+    @AfterEach
+    void tearDown() {
+        mailbox.shutdown();
+    }
+
+    private void awaitIdle(String extension) throws InterruptedException {
+        for (int i = 0; i < 500 && mailbox.isActive(extension); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void runsOneOperationAtATimePerExtension() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        int[] counter = {0};   // 不加鎖，只靠信箱保證依序
+
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                results.add(pool.submit(() -> mailbox.call("1420", () -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    int value = ++counter[0];
+                    inFlight.decrementAndGet();
+                    return value;
+                })));
+            }
+            for (Future<Integer> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(2000, counter[0]);
+        assertEquals(1, maxInFlight.get(), "同一分機同時執行的操作數");
+        assertEquals(0, mailbox.getQueueDepth("1420"));
+    }
+
+    @Test
+    void differentExtensionsDoNotBlockEachOther() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        CountDownLatch otherExtensionRan = new CountDownLatch(1);
+        try {
+            // 1420 的操作等待 1411 的操作完成；若兩者互相阻塞會逾時
+            Future<Boolean> first = pool.submit(() -> mailbox.call("1420", () -> {
+                try {
+                    return otherExtensionRan.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }));
+            Future<Boolean> second = pool.submit(() -> mailbox.call("1411", () -> {
+                otherExtensionRan.countDown();
+                return true;
+            }));
+
+            assertTrue(second.get(5, TimeUnit.SECONDS));
+            assertTrue(first.get(5, TimeUnit.SECONDS), "1420 的操作被 1411 阻塞");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void nestedCallOnSameExtensionRunsInline() {
+        String result = mailbox.call("1420", () -> "外層/" + mailbox.call("1420", () -> "內層"));
+        assertEquals("外層/內層", result);
+    }
+
+    @Test
+    void exceptionsReachTheCallerAndMailboxKeepsWorking() {
+        IllegalStateException error = assertThrows(IllegalStateException.class,
+                () -> mailbox.call("1420", () -> {
+                    throw new IllegalStateException("線路不存在");
+                }));
+        assertEquals("線路不存在", error.getMessage());
+
+        assertEquals("ok", mailbox.call("1420", () -> "ok"));
+    }
+
+    @Test
+    void operationsRunOnTheMailboxThreadNotTheCaller() {
+        Thread caller = Thread.currentThread();
+        Thread runner = mailbox.call("1420", Thread::currentThread);
+        assertNotSame(caller, runner);
+    }
+
+    @Test
+    void idleMailboxIsRemoved() throws Exception {
+        mailbox.call("1420", () -> "ok");
+        awaitIdle("1420");
+        assertFalse(mailbox.isActive("1420"), "閒置的信箱應被移除");
+
+        // 移除後再次使用會建立新的信箱
+        assertEquals("again", mailbox.call("1420", () -> "again"));
+    }
+
+    @Test
+    void queuedOperationIsCancelledWhenWaitTimesOut() throws Exception {
+        ReflectionTestUtils.setField(mailbox, "waitSeconds", 1L);
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean queuedRan = new AtomicBoolean();
+        try {
+            Future<Boolean> blocking = pool.submit(() -> mailbox.call("1420", () -> {
+                started.countDown();
+                try {
+                    return release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            long start = System.nanoTime();
+            assertThrows(IllegalStateException.class, () -> mailbox.call("1420", () -> {
+                queuedRan.set(true);
+                return "late";
+            }));
+            assertTrue((System.nanoTime() - start) / 1_000_000 < 5000, "呼叫端等待時間應有上限");
+
+            release.countDown();
+            assertTrue(blocking.get(5, TimeUnit.SECONDS));
+            awaitIdle("1420");
+            assertFalse(queuedRan.get(), "逾時取消的操作不應再執行");
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void mailboxesWaitingOnEachOtherFailInsteadOfDeadlocking() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        CountDownLatch bothInside = new CountDownLatch(2);
+        try {
+            // 1420 的操作呼叫 1411，同時 1411 的操作呼叫 1420
+            Future<String> first = pool.submit(() -> mailbox.call("1420", () -> {
+                bothInside.countDown();
+                awaitQuietly(bothInside);
+                try {
+                    return mailbox.call("1411", () -> "1420→1411");
+                } catch (IllegalStateException e) {
+                    return "互相等待";
+                }
+            }));
+            Future<String> second = pool.submit(() -> mailbox.call("1411", () -> {
+                bothInside.countDown();
+                awaitQuietly(bothInside);
+                try {
+                    return mailbox.call("1420", () -> "1411→1420");
+                } catch (IllegalStateException e) {
+                    return "互相等待";
+                }
+            }));
+
+            String a = first.get(10, TimeUnit.SECONDS);
+            String b = second.get(10, TimeUnit.SECONDS);
+            assertTrue(a.equals("互相等待") || b.equals("互相等待"), a + " / " + b);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.jtapi_develop;
+
+import org.junit.jupiter.api.Test;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 日誌環形緩衝區：滿了覆蓋最舊的、依寫入順序讀出、訊息到讀取時才組出
+ */
+class LogRingBufferTest {
+
+    @Test
+    void keepsOnlyTheNewestEntriesInOrder() {
+        LogRingBuffer buffer = new LogRingBuffer(3);
+        for (int i = 1; i <= 5; i++) {
+            buffer.add("訊息 " + i);
+        }
+
+        List<LogRingBuffer.Entry> entries = buffer.snapshot();
+        assertEquals(3, entries.size());
+        assertEquals("訊息 3", entries.get(0).message());
+        assertEquals("訊息 4", entries.get(1).message());
+        assertEquals("訊息 5", entries.get(2).message());
+        assertEquals(4, entries.get(2).sequence);
+        assertTrue(entries.get(0).timestamp <= entries.get(2).timestamp);
+    }
+
+    @Test
+    void emptyBufferHasNoEntries() {
+        assertTrue(new LogRingBuffer(4).snapshot().isEmpty());
+    }
+
+    @Test
+    void messageIsBuiltOnFirstReadOnly() {
+        LogRingBuffer buffer = new LogRingBuffer(2);
+        AtomicInteger built = new AtomicInteger();
+        buffer.add(() -> "狀態 " + built.incrementAndGet());
+
+        assertEquals(0, built.get(), "寫入時不應組字");
+        LogRingBuffer.Entry entry = buffer.snapshot().get(0);
+        assertEquals("狀態 1", entry.message());
+        assertEquals("狀態 1", entry.message());
+        assertEquals(1, built.get());
+    }
+
+    @Test
+    void overwrittenEntriesAreNeverBuilt() {
+        LogRingBuffer buffer = new LogRingBuffer(1);
+        AtomicInteger built = new AtomicInteger();
+        buffer.add(() -> "舊 " + built.incrementAndGet());
+        buffer.add("新");
+
+        assertEquals("新", buffer.snapshot().get(0).message());
+        assertEquals(0, built.get());
+    }
+}
@@ -0,0 +1,250 @@
+package com.example.jtapi_develop;
+
+import org.junit.jupiter.api.Test;
+import javax.telephony.Address;
+import javax.telephony.Call;
+import javax.telephony.Connection;
+import javax.telephony.TerminalConnection;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 話機線路變化日誌：新增/更新/移除/活躍線路的增量，以及版本超出日誌範圍時的完整重送
+ * 以及由通話登記匯入線路時，響鈴與回鈴中的線路不會被清掉
+ */
+class PhoneStateChangesTest {
+
+    private final UnifiedPhoneService service = new UnifiedPhoneService();
+
+    /**
+     * 以介面代理建立的 JTAPI 物件，方法依名稱回傳；equals/hashCode 以物件本身為準
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Function<String, Object> answers) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals": return proxy == args[0];
+                case "hashCode": return System.identityHashCode(proxy);
+                case "toString": return type.getSimpleName() + "@" + System.identityHashCode(proxy);
+                default: return answers.apply(method.getName());
+            }
+        });
+    }
+
+    /**
+     * 通話的各方連線，狀態可在測試中改變
+     */
+    private static final class FakeCall {
+        final List<String> parties = new ArrayList<>();
+        final List<Integer> states = new ArrayList<>();
+        final Call call = stub(Call.class, method -> {
+            switch (method) {
+                case "getState": return Call.ACTIVE;
+                case "getConnections": return connections();
+                default: return null;
+            }
+        });
+
+        FakeCall party(String address, int connectionState) {
+            parties.add(address);
+            states.add(connectionState);
+            return this;
+        }
+
+        void setState(String address, int connectionState) {
+            states.set(parties.indexOf(address), connectionState);
+        }
+
+        private Connection[] connections() {
+            Connection[] connections = new Connection[parties.size()];
+            for (int i = 0; i < connections.length; i++) {
+                int index = i;
+                Address address = stub(Address.class, method -> "getName".equals(method) ? parties.get(index) : null);
+                connections[i] = stub(Connection.class, method -> {
+                    switch (method) {
+                        case "getState": return states.get(index);
+                        case "getAddress": return address;
+                        case "getCall": return call;
+                        default: return null;
+                    }
+                });
+            }
+            return connections;
+        }
+    }
+
+    private static CallRegistryService.CallSnapshot snapshot(long version, Call call, int terminalConnectionState) {
+        List<CallRegistryService.CallEntry> entries = new ArrayList<>();
+        if (call != null) {
+            entries.add(new CallRegistryService.CallEntry(null, call, terminalConnectionState, -1, System.currentTimeMillis()));
+        }
+        return new CallRegistryService.CallSnapshot("1420", entries, version);
+    }
+
+    private UnifiedPhoneService.PhoneLine addLine(UnifiedPhoneService.PhoneState phone, String remoteParty,
+                                                  UnifiedPhoneService.LineState state) {
+        UnifiedPhoneService.PhoneLine line = new UnifiedPhoneService.PhoneLine(phone.generateLineId(), null, remoteParty, false);
+        line.state = state;
+        phone.addLine(line);
+        return line;
+    }
+
+    @Test
+    void recordsAddedLineAndActiveLine() {
+        UnifiedPhoneService.PhoneState phone = new UnifiedPhoneService.PhoneState("1420");
+        UnifiedPhoneService.PhoneLine line = addLine(phone, "1411", UnifiedPhoneService.LineState.TALKING);
+        phone.activeLine = line.lineId;
+        phone.recordChanges();
+
+        UnifiedPhoneService.LineChanges changes = phone.getChangesSince(0);
+        assertFalse(changes.resync);
+        assertEquals(2, changes.version);
+        assertEquals(2, changes.changes.size());
+        assertEquals("ADDED", changes.changes.get(0).type);
+        assertEquals(line.lineId, changes.changes.get(0).lineId);
+        assertEquals(UnifiedPhoneService.LineState.TALKING, changes.changes.get(0).state);
+        assertEquals("ACTIVE_LINE", changes.changes.get(1).type);
+        assertEquals(line.lineId, changes.changes.get(1).activeLine);
+    }
+
+    @Test
+    void unchangedLinesProduceNoChanges() {
+        UnifiedPhoneService.PhoneState phone = new UnifiedPhoneService.PhoneState("1420");
+        addLine(phone, "1411", UnifiedPhoneService.LineState.TALKING);
+        phone.recordChanges();
+        long version = phone.getVersion();
+
+        phone.recordChanges();
+
+        assertEquals(version, phone.getVersion());
+        assertTrue(phone.getChangesSince(version).changes.isEmpty());
+    }
+
+    @Test
+    void returnsOnlyChangesAfterTheGivenVersion() {
+        UnifiedPhoneService.PhoneState phone = new UnifiedPhoneService.PhoneState("1420");
+        UnifiedPhoneService.PhoneLine first = addLine(phone, "1411", UnifiedPhoneService.LineState.TALKING);
+        UnifiedPhoneService.PhoneLine second = addLine(phone, "1422", UnifiedPhoneService.LineState.RINGING);
+        phone.recordChanges();
+        long seen = phone.getVersion();
+
+        first.state = UnifiedPhoneService.LineState.HELD;
+        phone.removeLine(second);
+        phone.recordChanges();
+
+        UnifiedPhoneService.LineChanges changes = phone.getChangesSince(seen);
+        assertFalse(changes.resync);
+        assertEquals(2, changes.changes.size());
+        assertEquals("UPDATED", changes.changes.get(0).type);
+        assertEquals(first.lineId, changes.changes.get(0).lineId);
+        assertEquals(UnifiedPhoneService.LineState.HELD, changes.changes.get(0).state);
+        assertEquals("REMOVED", changes.changes.get(1).type);
+        assertEquals(second.lineId, changes.changes.get(1).lineId);
+    }
+
+    @Test
+    void versionOlderThanTheJournalGetsFullState() {
+        UnifiedPhoneService.PhoneState phone = new UnifiedPhoneService.PhoneState("1420");
+        UnifiedPhoneService.PhoneLine line = addLine(phone, "1411", UnifiedPhoneService.LineState.TALKING);
+        phone.activeLine = line.lineId;
+        phone.recordChanges();
+        // 日誌只保留最近 256 筆，來回切換讓最早的變化被丟掉
+        for (int i = 0; i < 300; i++) {
+            line.state = i % 2 == 0 ? UnifiedPhoneService.LineState.HELD : UnifiedPhoneService.LineState.TALKING;
+            phone.recordChanges();
+        }
+
+        UnifiedPhoneService.LineChanges changes = phone.getChangesSince(1);
+        assertTrue(changes.resync);
+        assertEquals(2, changes.changes.size());
+        assertEquals("ADDED", changes.changes.get(0).type);
+        assertEquals(line.state, changes.changes.get(0).state);
+        assertEquals(line.lineId, changes.changes.get(1).activeLine);
+    }
+
+    @Test
+    void versionFromBeforeARestartGetsFullState() {
+        UnifiedPhoneService.PhoneState phone = new UnifiedPhoneService.PhoneState("1420");
+        addLine(phone, "1411", UnifiedPhoneService.LineState.RINGING);
+        phone.recordChanges();
+
+        // 用戶端帶著重啟前較大的版本號
+        UnifiedPhoneService.LineChanges changes = phone.getChangesSince(500);
+        assertTrue(changes.resync);
+        assertEquals("ADDED", changes.changes.get(0).type);
+    }
+
+    @Test
+    void ringingEntrySurvivesApplyCallSnapshot() {
+        UnifiedPhoneService.PhoneState phone = new UnifiedPhoneService.PhoneState("1420");
+        // 來電響鈴：主叫已接通，被叫（本分機）響鈴中
+        FakeCall incoming = new FakeCall().party("1411", Connection.CONNECTED).party("1420", Connection.ALERTING);
+
+        service.applyCallSnapshot("1420", phone, snapshot(1, incoming.call, TerminalConnection.RINGING));
+        phone.recordChanges();
+
+        assertEquals(1, phone.lines.size());
+        assertEquals(UnifiedPhoneService.LineState.RINGING, phone.lines.get(0).state);
+        assertEquals("1411", phone.lines.get(0).remoteParty);
+        UnifiedPhoneService.LineChanges changes = phone.getChangesSince(0);
+        assertEquals("ADDED", changes.changes.get(0).type);
+        assertEquals(UnifiedPhoneService.LineState.RINGING, changes.changes.get(0).state);
+    }
+
+    @Test
+    void dialedLineSurvivesRingbackUntilFarEndHangsUp() {
+        UnifiedPhoneService.PhoneState phone = new UnifiedPhoneService.PhoneState("1420");
+        FakeCall outgoing = new FakeCall().party("1420", Connection.CONNECTED).party("1411", Connection.INPROGRESS);
+        UnifiedPhoneService.PhoneLine dialed = new UnifiedPhoneService.PhoneLine(phone.generateLineId(), outgoing.call, "1411", false);
+        dialed.state = UnifiedPhoneService.LineState.TALKING;
+        phone.addLine(dialed);
+        phone.activeLine = dialed.lineId;
+
+        // 其他通話的事件先到，撥出的通話還沒出現在登記中
+        service.applyCallSnapshot("1420", phone, snapshot(1, null, 0));
+        assertEquals(1, phone.lines.size());
+        assertEquals(dialed.lineId, phone.activeLine);
+
+        // 回鈴中出現在登記，對方接聽
+        outgoing.setState("1411", Connection.ALERTING);
+        service.applyCallSnapshot("1420", phone, snapshot(2, outgoing.call, TerminalConnection.ACTIVE));
+        outgoing.setState("1411", Connection.CONNECTED);
+        service.applyCallSnapshot("1420", phone, snapshot(3, outgoing.call, TerminalConnection.ACTIVE));
+        assertEquals(1, phone.lines.size());
+        assertEquals(dialed.lineId, phone.activeLine);
+
+        // 對方掛斷
+        outgoing.setState("1411", Connection.DISCONNECTED);
+        service.applyCallSnapshot("1420", phone, snapshot(4, outgoing.call, TerminalConnection.ACTIVE));
+        assertTrue(phone.lines.isEmpty());
+        assertNull(phone.activeLine);
+    }
+
+    @Test
+    void lineIsRemovedWhenItsRegistryEntryDrops() {
+        UnifiedPhoneService.PhoneState phone = new UnifiedPhoneService.PhoneState("1420");
+        FakeCall call = new FakeCall().party("1411", Connection.CONNECTED).party("1420", Connection.CONNECTED);
+
+        service.applyCallSnapshot("1420", phone, snapshot(1, call.call, TerminalConnection.ACTIVE));
+        phone.recordChanges();
+        long seen = phone.getVersion();
+        assertEquals(1, phone.lines.size());
+        String lineId = phone.lines.get(0).lineId;
+
+        // 終端連線 DROPPED 或 callInvalid 後登記中已沒有這通電話
+        service.applyCallSnapshot("1420", phone, snapshot(2, null, 0));
+        phone.recordChanges();
+
+        assertTrue(phone.lines.isEmpty());
+        UnifiedPhoneService.LineChanges changes = phone.getChangesSince(seen);
+        assertEquals("REMOVED", changes.changes.get(0).type);
+        assertEquals(lineId, changes.changes.get(0).lineId);
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.jtapi_develop;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 平台執行緒與虛擬執行緒的吞吐量比較 - 走真正的控制器與 JTAPI 路徑，需要實驗用交換機
+ * mvn test -Dtest=ThreadModeBenchmarkTest -Dbenchmark.extension=1420 -Dbenchmark.password=... [-Dbenchmark.requests=2000]
+ * 注意：TSAPI 在 TSInvokeID.waitForConf 以 synchronized + wait 阻塞，Java 21 的虛擬執行緒會被釘在載體執行緒上
+ */
+@SpringBootTest(properties = "agent.journal.enabled=false")
+@EnabledIfSystemProperty(named = "benchmark.extension", matches = ".+")
+class ThreadModeBenchmarkTest {
+
+    @Autowired
+    private UnifiedPhoneController unifiedPhoneController;
+
+    @Test
+    void compareThreadModesOnServerLinesPath() throws Exception {
+        String extension = System.getProperty("benchmark.extension");
+        int requests = Integer.getInteger("benchmark.requests", 2000);
+
+        String login = unifiedPhoneController.login(extension, System.getProperty("benchmark.password", "")).get(60, TimeUnit.SECONDS);
+        assertTrue(login.contains("成功"), "登入失敗: " + login);
+
+        // 先暖機一次，避免第一次解析地址/終端的成本算進結果
+        unifiedPhoneController.getServerAvailableLines(extension);
+
+        long platformMs = run(Executors.newFixedThreadPool(200), extension, requests);
+        long virtualMs = run(Executors.newVirtualThreadPerTaskExecutor(), extension, requests);
+
+        System.out.println("[BENCHMARK] " + requests + " 個 /server-lines 請求：平台執行緒(200) " + platformMs +
+                           "ms，虛擬執行緒 " + virtualMs + "ms");
+    }
+
+    private long run(ExecutorService executor, String extension, int requests) throws Exception {
+        try (executor) {
+            long start = System.nanoTime();
+            List<Future<String>> futures = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                futures.add(executor.submit(() -> unifiedPhoneController.getServerAvailableLines(extension)));
+            }
+            for (Future<String> future : futures) {
+                future.get(10, TimeUnit.MINUTES);
+            }
+            return (System.nanoTime() - start) / 1_000_000;
+        }
+    }
+}
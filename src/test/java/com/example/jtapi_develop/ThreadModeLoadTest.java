@@ -0,0 +1,86 @@
+package com.example.jtapi_develop;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * 模擬 JTAPI 往返的負載：每個請求在 synchronized 區塊內阻塞（TSAPI 等待交換機回應的方式）
+ * 比較 jtapiExecutor 的平台執行緒池與虛擬執行緒的完成時間，不需要交換機
+ */
+class ThreadModeLoadTest {
+
+    private static final int REQUESTS = 200;
+    private static final long ROUND_TRIP_MS = 10;
+
+    private ExecutorService jtapiExecutor() {
+        ExecutorConfig config = new ExecutorConfig();
+        ReflectionTestUtils.setField(config, "platformThreads", 200);
+        return config.jtapiExecutor();
+    }
+
+    /**
+     * 模擬一次交換機往返：持有監視器時阻塞
+     */
+    private static void simulatedRoundTrip() {
+        Object invokeId = new Object();
+        synchronized (invokeId) {
+            try {
+                Thread.sleep(ROUND_TRIP_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long run(ExecutorService executor) throws Exception {
+        try {
+            CountDownLatch done = new CountDownLatch(REQUESTS);
+            long start = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                executor.execute(() -> {
+                    simulatedRoundTrip();
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(2, TimeUnit.MINUTES), "模擬請求未在時限內完成");
+            return (System.nanoTime() - start) / 1_000_000;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void jtapiExecutorUsesPlatformThreads() throws Exception {
+        ExecutorService executor = jtapiExecutor();
+        try {
+            assertFalse(executor.submit(() -> Thread.currentThread().isVirtual()).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void platformPoolOutrunsPinnedVirtualThreads() throws Exception {
+        // 載體執行緒數接近平台執行緒池大小時兩者差距不明顯，只在一般機器上比較
+        int carriers = Runtime.getRuntime().availableProcessors();
+        assumeTrue(carriers * 8 <= REQUESTS, "載體執行緒數過多: " + carriers);
+
+        run(jtapiExecutor());   // 暖機
+        long platformMs = run(jtapiExecutor());
+        long virtualMs = run(Executors.newVirtualThreadPerTaskExecutor());
+        System.out.println("[LOAD_TEST] " + REQUESTS + " 個模擬 JTAPI 請求：平台執行緒(200) " + platformMs +
+                           "ms，虛擬執行緒 " + virtualMs + "ms（載體 " + carriers + "）");
+
+        // 平台執行緒池一輪就能全部並行；虛擬執行緒被釘住，最多載體數個同時進行，至少要 8 輪
+        assertTrue(virtualMs >= platformMs * 3,
+                   "虛擬執行緒 " + virtualMs + "ms 應明顯慢於平台執行緒 " + platformMs + "ms");
+    }
+}